@@ -0,0 +1,80 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures copying large primitive arrays between Lua tables
+ * and Java arrays.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ArrayBenchmark {
+    @Param({"1000", "100000"})
+    public int size;
+
+    private int[] mInts;
+    private double[] mDoubles;
+    private String[] mStrings;
+    private LuaTable mIntTable;
+    private LuaTable mDoubleTable;
+    private LuaTable mStringTable;
+
+    @Setup
+    public void setup() {
+        mInts = new int[size];
+        mDoubles = new double[size];
+        mStrings = new String[size];
+        for (int i = 0; i < size; ++i) {
+            mInts[i] = i;
+            mDoubles[i] = i + 0.5;
+            mStrings[i] = "s" + i;
+        }
+        mIntTable = LuaUtils.toTable(mInts);
+        mDoubleTable = LuaUtils.toTable(mDoubles);
+        mStringTable = LuaUtils.toTable(mStrings);
+    }
+
+    @Benchmark
+    public Object toArrayInt() {
+        return LuaUtils.toArray(mIntTable, int.class);
+    }
+
+    @Benchmark
+    public Object toArrayDouble() {
+        return LuaUtils.toArray(mDoubleTable, double.class);
+    }
+
+    @Benchmark
+    public Object toArrayString() {
+        return LuaUtils.toArray(mStringTable, String.class);
+    }
+
+    @Benchmark
+    public Object toArrayBoxed() {
+        return LuaUtils.toArray(mIntTable, Integer.class);
+    }
+
+    @Benchmark
+    public int copyToIntArray() {
+        return LuaArrays.copyToArray(mIntTable, mInts);
+    }
+
+    @Benchmark
+    public LuaTable toTableInt() {
+        return LuaUtils.toTable(mInts);
+    }
+
+    @Benchmark
+    public LuaTable toTableDouble() {
+        return LuaUtils.toTable(mDoubles);
+    }
+
+    @Benchmark
+    public LuaTable toTableString() {
+        return LuaUtils.toTable(mStrings);
+    }
+}
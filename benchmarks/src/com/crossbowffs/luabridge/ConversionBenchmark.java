@@ -0,0 +1,109 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the conversion of single values between Lua and Java.
+ * The {@code Uncached} string benchmarks bypass the string cache,
+ * for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConversionBenchmark {
+    private final LuaValue mLuaInt = LuaValue.valueOf(12345);
+    private final LuaValue mLuaDouble = LuaValue.valueOf(3.14159);
+    private final LuaValue mLuaString = LuaValue.valueOf("hello");
+    private final LuaValue mLuaBoolean = LuaValue.TRUE;
+    private final LuaTable mLuaTable = LuaValue.listOf(new LuaValue[] {
+        LuaValue.valueOf(1), LuaValue.valueOf(2), LuaValue.valueOf(3)
+    });
+
+    private final Object mJavaInt = 12345;
+    private final Object mJavaDouble = 3.14159;
+    private final Object mJavaString = "hello";
+    private final Object mJavaBoolean = Boolean.TRUE;
+    private final Object mJavaObject = new Object();
+    private final Object mJavaIntArray = new int[] {1, 2, 3};
+
+    @Benchmark
+    public Object luaToJavaInt() {
+        return LuaUtils.bridgeLuaToJava(mLuaInt);
+    }
+
+    @Benchmark
+    public Object luaToJavaDouble() {
+        return LuaUtils.bridgeLuaToJava(mLuaDouble);
+    }
+
+    @Benchmark
+    public Object luaToJavaString() {
+        return LuaUtils.bridgeLuaToJava(mLuaString);
+    }
+
+    @Benchmark
+    public Object luaToJavaStringUncached() {
+        return mLuaString.tojstring();
+    }
+
+    @Benchmark
+    public Object luaToJavaByteBuffer() {
+        return LuaUtils.bridgeLuaToJava(mLuaString, ByteBuffer.class);
+    }
+
+    @Benchmark
+    public Object luaToJavaBoolean() {
+        return LuaUtils.bridgeLuaToJava(mLuaBoolean);
+    }
+
+    @Benchmark
+    public Object luaToJavaTable() {
+        return LuaUtils.bridgeLuaToJava(mLuaTable);
+    }
+
+    @Benchmark
+    public Object luaToJavaTyped() {
+        return LuaUtils.bridgeLuaToJava(mLuaInt, int.class);
+    }
+
+    @Benchmark
+    public LuaValue javaToLuaInt() {
+        return LuaUtils.bridgeJavaToLuaIn(mJavaInt);
+    }
+
+    @Benchmark
+    public LuaValue javaToLuaDouble() {
+        return LuaUtils.bridgeJavaToLuaIn(mJavaDouble);
+    }
+
+    @Benchmark
+    public LuaValue javaToLuaString() {
+        return LuaUtils.bridgeJavaToLuaIn(mJavaString);
+    }
+
+    @Benchmark
+    public LuaValue javaToLuaStringUncached() {
+        return LuaString.valueOf((String)mJavaString);
+    }
+
+    @Benchmark
+    public LuaValue javaToLuaBoolean() {
+        return LuaUtils.bridgeJavaToLuaIn(mJavaBoolean);
+    }
+
+    @Benchmark
+    public LuaValue javaToLuaUserdata() {
+        return LuaUtils.bridgeJavaToLuaIn(mJavaObject);
+    }
+
+    @Benchmark
+    public LuaValue javaToLuaArray() {
+        return LuaUtils.bridgeJavaToLuaIn(mJavaIntArray);
+    }
+}
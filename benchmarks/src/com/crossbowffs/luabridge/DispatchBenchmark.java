@@ -0,0 +1,225 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures calls from Lua to exposed Java methods with different
+ * arities and argument types. Each benchmark runs a Lua loop that
+ * calls the method {@link #CALLS} times, so the results are per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+    private static final int CALLS = 1000;
+
+    public static class Target extends ExposedJavaClass {
+        private int mCounter;
+
+        @ExposeToLua
+        public void noArgs() {
+            mCounter++;
+        }
+
+        @ExposeToLua
+        public static int staticAdd(int a, int b) {
+            return a + b;
+        }
+
+        @ExposeToLua
+        public int addInts(int a, int b) {
+            return a + b;
+        }
+
+        @ExposeToLua
+        public int largeInt() {
+            // Outside of LuaJ's own integer cache
+            return 1000 + (mCounter++ & 1023);
+        }
+
+        @ExposeToLua
+        public double half() {
+            return 0.5;
+        }
+
+        @ExposeToLua
+        public double addDoubles(double a, double b) {
+            return a + b;
+        }
+
+        @ExposeToLua
+        public int length(String str) {
+            return str.length();
+        }
+
+        @ExposeToLua
+        public Target self() {
+            return this;
+        }
+
+        @ExposeToLua
+        public int sum5(int a, int b, int c, int d, int e) {
+            return a + b + c + d + e;
+        }
+
+        @ExposeToLua
+        public int count(Varargs args) {
+            return args.narg();
+        }
+
+        @ExposeToLua
+        public int size(LuaTable table) {
+            return table.length();
+        }
+
+        @ExposeToLua("add")
+        public int overloadedAdd(int a, int b) {
+            return a + b;
+        }
+
+        @ExposeToLua("add")
+        public double overloadedAdd(double a, double b) {
+            return a + b;
+        }
+
+        @ExposeToLua("__add")
+        public static Target plus(Target a, Target b) {
+            return a;
+        }
+    }
+
+    private LuaValue mNoArgs;
+    private LuaValue mStaticAdd;
+    private LuaValue mAddInts;
+    private LuaValue mLinkedAddInts;
+    private LuaValue mAddDoubles;
+    private LuaValue mLargeInt;
+    private LuaValue mHalf;
+    private LuaValue mString;
+    private LuaValue mReturnObject;
+    private LuaValue mFiveArgs;
+    private LuaValue mVarargs;
+    private LuaValue mTable;
+    private LuaValue mOverloaded;
+    private LuaValue mOperator;
+
+    @Setup
+    public void setup() {
+        Globals globals = JsePlatform.standardGlobals();
+        globals.set("target", new Target());
+        mNoArgs = loop(globals, "target:noArgs()");
+        mStaticAdd = loop(globals, "target.staticAdd(i, 1)");
+        mAddInts = loop(globals, "target:addInts(i, 1)");
+        globals.set("addInts", LuaLinker.link(Target.class, "addInts"));
+        mLinkedAddInts = globals.load(
+            "local target, addInts = target, addInts\n" +
+            "for i = 1, " + CALLS + " do addInts(target, i, 1) end");
+        mAddDoubles = loop(globals, "target:addDoubles(i + 0.5, 1.5)");
+        mLargeInt = loop(globals, "target:largeInt()");
+        mHalf = loop(globals, "target:half()");
+        mString = loop(globals, "target:length('hello')");
+        mReturnObject = loop(globals, "target:self()");
+        mFiveArgs = loop(globals, "target:sum5(i, 1, 2, 3, 4)");
+        mVarargs = loop(globals, "target:count(i, 1, 2)");
+        mTable = loop(globals, "target:size(t)");
+        mOverloaded = loop(globals, "target:add(i, 1)");
+        mOperator = loop(globals, "local r = target + target");
+    }
+
+    private static LuaValue loop(Globals globals, String call) {
+        return globals.load(
+            "local target, t = target, {1, 2, 3}\n" +
+            "for i = 1, " + CALLS + " do " + call + " end");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue noArgs() {
+        return mNoArgs.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue staticTwoInts() {
+        return mStaticAdd.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue twoInts() {
+        return mAddInts.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue linkedTwoInts() {
+        return mLinkedAddInts.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue twoDoubles() {
+        return mAddDoubles.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue largeIntReturn() {
+        return mLargeInt.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue doubleConstantReturn() {
+        return mHalf.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue string() {
+        return mString.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue returnObject() {
+        return mReturnObject.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue fiveInts() {
+        return mFiveArgs.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue varargs() {
+        return mVarargs.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue table() {
+        return mTable.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue overloaded() {
+        return mOverloaded.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue operator() {
+        return mOperator.call();
+    }
+}
@@ -0,0 +1,86 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures iterating and streaming over large tables, and
+ * checking whether they are arrays.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IterationBenchmark {
+    @Param({"1000", "100000"})
+    public int size;
+
+    private LuaTable mArray;
+    private LuaTable mHash;
+
+    @Setup
+    public void setup() {
+        mArray = new LuaTable();
+        mHash = new LuaTable();
+        for (int i = 1; i <= size; ++i) {
+            mArray.set(i, LuaValue.valueOf(i));
+            mHash.set("k" + i, LuaValue.valueOf(i));
+        }
+    }
+
+    @Benchmark
+    public void arrayIterator(Blackhole bh) {
+        LuaArrayIterator iterator = new LuaArrayIterator(mArray);
+        while (iterator.hasNext()) {
+            Varargs entry = iterator.next();
+            bh.consume(entry.arg(2));
+        }
+    }
+
+    @Benchmark
+    public void mapIteratorOverArray(Blackhole bh) {
+        LuaMapIterator iterator = new LuaMapIterator(mArray);
+        while (iterator.hasNext()) {
+            Varargs entry = iterator.next();
+            bh.consume(entry.arg(2));
+        }
+    }
+
+    @Benchmark
+    public void mapIteratorOverHash(Blackhole bh) {
+        LuaMapIterator iterator = new LuaMapIterator(mHash);
+        while (iterator.hasNext()) {
+            Varargs entry = iterator.next();
+            bh.consume(entry.arg(2));
+        }
+    }
+
+    @Benchmark
+    public long intStream() {
+        return LuaTableStreams.intStream(mArray, false).asLongStream().sum();
+    }
+
+    @Benchmark
+    public long parallelIntStream() {
+        return LuaTableStreams.intStream(mArray, true).asLongStream().sum();
+    }
+
+    @Benchmark
+    public long entryStreamOverHash() {
+        return LuaTableStreams.entryStream(mHash, false).count();
+    }
+
+    @Benchmark
+    public boolean isArrayOfArray() {
+        return LuaUtils.isArray(mArray);
+    }
+
+    @Benchmark
+    public boolean isArrayOfHash() {
+        return LuaUtils.isArray(mHash);
+    }
+}
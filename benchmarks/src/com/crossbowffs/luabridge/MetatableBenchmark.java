@@ -0,0 +1,52 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building the metatable of an exposed class, which happens
+ * once per class, and wrapping objects, which uses the cached metatable.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetatableBenchmark {
+    public static class Target {
+        @ExposeToLua public void a() { }
+        @ExposeToLua public int b(int x) { return x; }
+        @ExposeToLua public double c(double x, double y) { return x + y; }
+        @ExposeToLua public String d(String s) { return s; }
+        @ExposeToLua public static int e(int x, int y, int z) { return x + y + z; }
+        @ExposeToLua public int f(int a, int b, int c, int d) { return a + b + c + d; }
+        @ExposeToLua("g") public int g1(int x) { return x; }
+        @ExposeToLua("g") public String g2(String s) { return s; }
+    }
+
+    private final Target mTarget = new Target();
+    private ExposedJavaClass mWrapper;
+
+    @Setup
+    public void setup() {
+        // Keep the cached wrapper alive, otherwise
+        // it may be collected between invocations
+        mWrapper = ExposedJavaClass.wrap(mTarget);
+    }
+
+    @Benchmark
+    public LuaTable createMetatable() {
+        // Bypasses the cache, this is the cost paid once per class
+        return ExposedJavaClass.createMetatable(Target.class);
+    }
+
+    @Benchmark
+    public ExposedJavaClass newWrapper() {
+        return new ExposedJavaClass(mTarget);
+    }
+
+    @Benchmark
+    public ExposedJavaClass cachedWrapper() {
+        return ExposedJavaClass.wrap(mTarget);
+    }
+}
@@ -0,0 +1,72 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of {@link LuaProfiler} on calls to Lua
+ * functions and exposed Java methods, with the profiler not installed,
+ * installed but not sampling, and sampling. Each benchmark runs a Lua
+ * loop that makes {@link #CALLS} calls, so the results are per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProfilerBenchmark {
+    private static final int CALLS = 1000;
+
+    public static class Target extends ExposedJavaClass {
+        @ExposeToLua
+        public int addInts(int a, int b) {
+            return a + b;
+        }
+    }
+
+    @Param({"off", "installed", "sampling"})
+    public String mode;
+
+    private Globals mGlobals;
+    private LuaValue mLuaCalls;
+    private LuaValue mJavaCalls;
+
+    @Setup
+    public void setup() {
+        mGlobals = JsePlatform.standardGlobals();
+        if (!mode.equals("off")) {
+            LuaProfiler.install(mGlobals);
+        }
+        if (mode.equals("sampling")) {
+            LuaProfiler.start(1, TimeUnit.MILLISECONDS);
+        }
+        mGlobals.set("target", new Target());
+        mLuaCalls = mGlobals.load(
+            "local function add(a, b) return a + b end\n" +
+            "for i = 1, " + CALLS + " do add(i, 1) end");
+        mJavaCalls = mGlobals.load(
+            "local target = target\n" +
+            "for i = 1, " + CALLS + " do target:addInts(i, 1) end");
+    }
+
+    @TearDown
+    public void tearDown() {
+        LuaProfiler.stop();
+        LuaProfiler.uninstall(mGlobals);
+        LuaProfiler.reset();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue luaFunction() {
+        return mLuaCalls.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue exposedMethod() {
+        return mJavaCalls.call();
+    }
+}
@@ -0,0 +1,120 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading and writing exposed properties from Lua, compared
+ * to calling the equivalent getter and setter methods. Each benchmark
+ * runs a Lua loop that accesses the property {@link #CALLS} times,
+ * so the results are per access.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PropertyBenchmark {
+    private static final int CALLS = 1000;
+
+    public static class Target extends ExposedJavaClass {
+        @ExposeToLua
+        public int field;
+
+        @ExposeToLua
+        public String stringField = "hello";
+
+        private int mValue;
+
+        @ExposePropertyToLua
+        public int getValue() {
+            return mValue;
+        }
+
+        @ExposePropertyToLua
+        public void setValue(int value) {
+            mValue = value;
+        }
+
+        @ExposeToLua
+        public int readValue() {
+            return mValue;
+        }
+
+        @ExposeToLua
+        public void writeValue(int value) {
+            mValue = value;
+        }
+    }
+
+    private LuaValue mGetField;
+    private LuaValue mSetField;
+    private LuaValue mGetStringField;
+    private LuaValue mGetProperty;
+    private LuaValue mSetProperty;
+    private LuaValue mGetterCall;
+    private LuaValue mSetterCall;
+
+    @Setup
+    public void setup() {
+        Globals globals = JsePlatform.standardGlobals();
+        globals.set("target", new Target());
+        mGetField = loop(globals, "local v = target.field");
+        mSetField = loop(globals, "target.field = i");
+        mGetStringField = loop(globals, "local v = target.stringField");
+        mGetProperty = loop(globals, "local v = target.value");
+        mSetProperty = loop(globals, "target.value = i");
+        mGetterCall = loop(globals, "local v = target:readValue()");
+        mSetterCall = loop(globals, "target:writeValue(i)");
+    }
+
+    private static LuaValue loop(Globals globals, String access) {
+        return globals.load(
+            "local target = target\n" +
+            "for i = 1, " + CALLS + " do " + access + " end");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue getField() {
+        return mGetField.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue setField() {
+        return mSetField.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue getStringField() {
+        return mGetStringField.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue getProperty() {
+        return mGetProperty.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue setProperty() {
+        return mSetProperty.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue getterCall() {
+        return mGetterCall.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public LuaValue setterCall() {
+        return mSetterCall.call();
+    }
+}
@@ -0,0 +1,77 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaDouble;
+import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures calls from Java to a Lua function through an interface
+ * implemented by {@link LuaProxy}, compared to converting the
+ * arguments and calling the function by hand.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProxyBenchmark {
+    public static class Event { }
+
+    @LuaInterface
+    public interface Listener {
+        int onEvent(Event event, int code, double value);
+    }
+
+    /**
+     * Equivalent to the implementation generated by the annotation
+     * processor, which is not run on the benchmarks.
+     */
+    public static final class GeneratedListener extends LuaProxy implements Listener {
+        private static final LuaConverter<Object> m0c0 = argumentConverter(Event.class);
+        private final LuaValue f0;
+
+        public GeneratedListener(LuaValue target) {
+            super(target);
+            f0 = function("onEvent");
+        }
+
+        @Override
+        public int onEvent(Event p0, int p1, double p2) {
+            return call(f0, m0c0.toLua(p0), LuaInteger.valueOf(p1), LuaDouble.valueOf(p2)).checkint();
+        }
+    }
+
+    private final Event mEvent = new Event();
+    private LuaValue mFunction;
+    private Listener mGenerated;
+    private Listener mReflective;
+
+    @Setup
+    public void setup() {
+        Globals globals = JsePlatform.standardGlobals();
+        mFunction = globals.load("return function(event, code, value) return code end").call();
+        mGenerated = new GeneratedListener(mFunction);
+        mReflective = LuaProxy.create(Listener.class, mFunction);
+    }
+
+    @Benchmark
+    public int manual() {
+        return mFunction.call(
+            LuaUtils.bridgeJavaToLuaIn(mEvent),
+            LuaUtils.bridgeJavaToLuaIn(42),
+            LuaUtils.bridgeJavaToLuaIn(1.5)).checkint();
+    }
+
+    @Benchmark
+    public int generatedProxy() {
+        return mGenerated.onEvent(mEvent, 42, 1.5);
+    }
+
+    @Benchmark
+    public int reflectiveProxy() {
+        return mReflective.onEvent(mEvent, 42, 1.5);
+    }
+}
@@ -0,0 +1,60 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serializing and deserializing a snapshot made of
+ * records with a few numbers and strings each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+    @Param({"1000"})
+    public int size;
+
+    private LuaTable mSnapshot;
+    private ByteBuffer mSerialized;
+    private byte[] mSerializedBytes;
+    private ByteBuffer mOutput;
+
+    @Setup
+    public void setup() {
+        mSnapshot = new LuaTable();
+        for (int i = 1; i <= size; ++i) {
+            LuaTable record = new LuaTable();
+            record.set("id", LuaValue.valueOf(i));
+            record.set("score", LuaValue.valueOf(i * 0.5));
+            record.set("name", LuaValue.valueOf("record number " + i));
+            record.set("active", LuaValue.valueOf(i % 2 == 0));
+            mSnapshot.set(i, record);
+        }
+        mSerialized = LuaSerializer.serialize(mSnapshot);
+        mSerializedBytes = new byte[mSerialized.remaining()];
+        mSerialized.duplicate().get(mSerializedBytes);
+        mOutput = ByteBuffer.allocate(mSerialized.remaining());
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() throws IOException {
+        mOutput.clear();
+        new LuaSerializer(mOutput).write(mSnapshot);
+        return mOutput;
+    }
+
+    @Benchmark
+    public LuaValue deserialize() throws IOException {
+        return new LuaDeserializer(mSerialized.duplicate()).read();
+    }
+
+    @Benchmark
+    public LuaValue deserializeZeroCopy() throws IOException {
+        return new LuaDeserializer(ByteBuffer.wrap(mSerializedBytes), true).read();
+    }
+}
@@ -0,0 +1,617 @@
+package com.crossbowffs.luabridge.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Generates an {@code ExposedJavaBinding} for every class that has
+ * methods annotated with {@code @ExposeToLua}. The generated binding
+ * calls the methods directly instead of through reflection, and is
+ * picked up automatically by {@code ExposedJavaClass}.
+ *
+ * <p>
+ * Also generates a {@code LuaProxy} subclass for every interface
+ * annotated with {@code @LuaInterface}, which implements the interface
+ * by calling Lua functions, and is picked up by {@code LuaProxy#create}.
+ */
+public class ExposeToLuaProcessor extends AbstractProcessor {
+    private static final String PACKAGE = "com.crossbowffs.luabridge";
+    private static final String EXPOSE_TO_LUA = PACKAGE + ".ExposeToLua";
+    private static final String LUA_INTERFACE = PACKAGE + ".LuaInterface";
+    private static final String PROXY_CLASS = PACKAGE + ".LuaProxy";
+    private static final String PROXY_SUFFIX = "$$LuaProxy";
+    private static final String BINDING_CLASS = PACKAGE + ".ExposedJavaBinding";
+    private static final String BINDING_SUFFIX = "$$LuaBinding";
+    private static final String CONVERTER_CLASS = PACKAGE + ".LuaConverter";
+    private static final String METRICS_CLASS = PACKAGE + ".MethodMetrics";
+    private static final String VARARGS_CLASS = "org.luaj.vm2.Varargs";
+    private static final String LUA_VALUE_CLASS = "org.luaj.vm2.LuaValue";
+    private static final String COMPLETION_STAGE_CLASS = "java.util.concurrent.CompletionStage";
+    private static final String[] FIXED_ARITY_CLASSES = {
+        "ZeroArgFunction", "OneArgFunction", "TwoArgFunction", "ThreeArgFunction"
+    };
+
+    private Elements mElements;
+    private Types mTypes;
+    private Filer mFiler;
+    private Messager mMessager;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        mElements = processingEnv.getElementUtils();
+        mTypes = processingEnv.getTypeUtils();
+        mFiler = processingEnv.getFiler();
+        mMessager = processingEnv.getMessager();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return new HashSet<String>(Arrays.asList(EXPOSE_TO_LUA, LUA_INTERFACE));
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        processBindings(roundEnv);
+        processProxies(roundEnv);
+        return false;
+    }
+
+    private void processBindings(RoundEnvironment roundEnv) {
+        TypeElement annotation = mElements.getTypeElement(EXPOSE_TO_LUA);
+        if (annotation == null) {
+            return;
+        }
+
+        // Collect every class that directly declares an exposed method
+        Set<TypeElement> classes = new LinkedHashSet<TypeElement>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            if (element.getKind() == ElementKind.METHOD) {
+                classes.add((TypeElement)element.getEnclosingElement());
+            }
+        }
+
+        for (TypeElement cls : classes) {
+            if (canGenerateBinding(cls)) {
+                generateBinding(cls, annotation);
+            }
+        }
+    }
+
+    private void processProxies(RoundEnvironment roundEnv) {
+        TypeElement annotation = mElements.getTypeElement(LUA_INTERFACE);
+        if (annotation == null) {
+            return;
+        }
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            if (element.getKind() != ElementKind.INTERFACE) {
+                mMessager.printMessage(Diagnostic.Kind.ERROR,
+                    "@LuaInterface can only be applied to interfaces", element);
+                continue;
+            }
+            TypeElement iface = (TypeElement)element;
+            if (isAccessible(iface, "Not generating Lua proxy for inaccessible interface, " +
+                    "a reflective proxy will be used instead")) {
+                generateProxy(iface);
+            }
+        }
+    }
+
+    private boolean canGenerateBinding(TypeElement cls) {
+        if (cls.getKind() != ElementKind.CLASS) {
+            return false;
+        }
+        return isAccessible(cls, "Not generating Lua binding for inaccessible class, " +
+            "reflection will be used instead");
+    }
+
+    private boolean isAccessible(TypeElement cls, String note) {
+        // Generated classes live in the same package as the type, so the
+        // type and all of its enclosing types must not be private
+        Element element = cls;
+        while (element.getKind().isClass() || element.getKind().isInterface()) {
+            TypeElement type = (TypeElement)element;
+            if (type.getNestingKind() == NestingKind.LOCAL ||
+                type.getNestingKind() == NestingKind.ANONYMOUS ||
+                type.getModifiers().contains(Modifier.PRIVATE)) {
+                mMessager.printMessage(Diagnostic.Kind.NOTE, note, cls);
+                return false;
+            }
+            element = element.getEnclosingElement();
+        }
+        return true;
+    }
+
+    private void generateBinding(TypeElement cls, TypeElement annotation) {
+        String packageName = mElements.getPackageOf(cls).getQualifiedName().toString();
+        String binaryName = mElements.getBinaryName(cls).toString();
+        String simpleBindingName = binaryName.substring(binaryName.lastIndexOf('.') + 1) + BINDING_SUFFIX;
+        String className = mTypes.erasure(cls.asType()).toString();
+
+        // Exposed methods are looked up the same way as Class#getMethods(),
+        // which also includes public methods inherited from superclasses.
+        // Methods sharing a name are bound as overloads.
+        Map<String, List<ExecutableElement>> methods = new LinkedHashMap<String, List<ExecutableElement>>();
+        for (ExecutableElement method : ElementFilter.methodsIn(mElements.getAllMembers(cls))) {
+            AnnotationMirror mirror = getAnnotationMirror(method, annotation);
+            if (mirror == null || !method.getModifiers().contains(Modifier.PUBLIC)) {
+                continue;
+            }
+            if (!checkParameters(method)) {
+                return;
+            }
+
+            String exposedName = getExposedName(method, mirror);
+            List<ExecutableElement> overloads = methods.get(exposedName);
+            if (overloads == null) {
+                overloads = new ArrayList<ExecutableElement>(1);
+                methods.put(exposedName, overloads);
+            }
+            overloads.add(method);
+        }
+
+        try {
+            JavaFileObject file = mFiler.createSourceFile(
+                packageName.isEmpty() ? simpleBindingName : packageName + "." + simpleBindingName, cls);
+            PrintWriter writer = new PrintWriter(file.openWriter());
+            try {
+                writeBinding(writer, packageName, simpleBindingName, className, methods);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR,
+                "Failed to write Lua binding: " + e.getMessage(), cls);
+        }
+    }
+
+    private void generateProxy(TypeElement iface) {
+        String packageName = mElements.getPackageOf(iface).getQualifiedName().toString();
+        String binaryName = mElements.getBinaryName(iface).toString();
+        String simpleProxyName = binaryName.substring(binaryName.lastIndexOf('.') + 1) + PROXY_SUFFIX;
+        String interfaceName = mTypes.erasure(iface.asType()).toString();
+
+        // Collect the abstract methods of the interface and its superinterfaces,
+        // skipping methods that are already implemented by Object (e.g. equals())
+        // and methods with the same signature declared by multiple interfaces
+        List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+        Set<String> signatures = new HashSet<String>();
+        for (ExecutableElement method : ElementFilter.methodsIn(mElements.getAllMembers(iface))) {
+            if (!method.getModifiers().contains(Modifier.ABSTRACT) || isObjectMethod(method)) {
+                continue;
+            }
+            if (!signatures.add(getErasedSignature(method))) {
+                continue;
+            }
+            for (VariableElement parameter : method.getParameters()) {
+                if (isVarargs(parameter.asType())) {
+                    mMessager.printMessage(Diagnostic.Kind.ERROR,
+                        "Varargs parameters are not supported in Lua interfaces", method);
+                    return;
+                }
+            }
+            methods.add(method);
+        }
+
+        try {
+            JavaFileObject file = mFiler.createSourceFile(
+                packageName.isEmpty() ? simpleProxyName : packageName + "." + simpleProxyName, iface);
+            PrintWriter writer = new PrintWriter(file.openWriter());
+            try {
+                writeProxy(writer, packageName, simpleProxyName, interfaceName, methods);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR,
+                "Failed to write Lua proxy: " + e.getMessage(), iface);
+        }
+    }
+
+    private boolean isObjectMethod(ExecutableElement method) {
+        TypeElement object = mElements.getTypeElement("java.lang.Object");
+        for (ExecutableElement objectMethod : ElementFilter.methodsIn(object.getEnclosedElements())) {
+            if (objectMethod.getModifiers().contains(Modifier.PUBLIC) &&
+                getErasedSignature(objectMethod).equals(getErasedSignature(method))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getErasedSignature(ExecutableElement method) {
+        StringBuilder sb = new StringBuilder(method.getSimpleName()).append('(');
+        for (VariableElement parameter : method.getParameters()) {
+            sb.append(mTypes.erasure(parameter.asType())).append(',');
+        }
+        return sb.append(')').toString();
+    }
+
+    private void writeProxy(PrintWriter w, String packageName, String proxyName,
+                            String interfaceName, List<ExecutableElement> methods) {
+        w.println("// Generated by " + getClass().getName() + ", do not modify");
+        if (!packageName.isEmpty()) {
+            w.println("package " + packageName + ";");
+            w.println();
+        }
+        w.println("@SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+        w.println("public final class " + proxyName + " extends " + PROXY_CLASS + " implements " + interfaceName + " {");
+
+        // Converters only depend on the interface, so they are shared by
+        // all proxies, while functions are looked up once per proxy
+        for (int m = 0; m < methods.size(); ++m) {
+            ExecutableElement method = methods.get(m);
+            List<? extends VariableElement> parameters = method.getParameters();
+            for (int i = 0; i < parameters.size(); ++i) {
+                TypeMirror type = mTypes.erasure(parameters.get(i).asType());
+                if (!type.getKind().isPrimitive()) {
+                    w.println("    private static final " + CONVERTER_CLASS + "<Object> m" + m + "c" + i +
+                        " = argumentConverter(" + type + ".class);");
+                }
+            }
+            TypeMirror returnType = mTypes.erasure(method.getReturnType());
+            if (!returnType.getKind().isPrimitive() && returnType.getKind() != TypeKind.VOID && !isVarargs(returnType)) {
+                w.println("    private static final " + CONVERTER_CLASS + "<" + returnType + "> m" + m + "rc" +
+                    " = returnConverter(" + returnType + ".class);");
+            }
+        }
+        for (int m = 0; m < methods.size(); ++m) {
+            w.println("    private final org.luaj.vm2.LuaValue f" + m + ";");
+        }
+        w.println();
+
+        w.println("    public " + proxyName + "(org.luaj.vm2.LuaValue target) {");
+        w.println("        super(target);");
+        for (int m = 0; m < methods.size(); ++m) {
+            w.println("        f" + m + " = function(" + quote(methods.get(m).getSimpleName().toString()) + ");");
+        }
+        w.println("    }");
+
+        for (int m = 0; m < methods.size(); ++m) {
+            writeProxyMethod(w, m, methods.get(m));
+        }
+        w.println("}");
+    }
+
+    private void writeProxyMethod(PrintWriter w, int index, ExecutableElement method) {
+        List<? extends VariableElement> parameters = method.getParameters();
+        TypeMirror returnType = mTypes.erasure(method.getReturnType());
+
+        StringBuilder params = new StringBuilder();
+        StringBuilder args = new StringBuilder();
+        for (int i = 0; i < parameters.size(); ++i) {
+            TypeMirror type = mTypes.erasure(parameters.get(i).asType());
+            if (i > 0) {
+                params.append(", ");
+                args.append(", ");
+            }
+            params.append(type).append(" p").append(i);
+            if (type.getKind().isPrimitive()) {
+                args.append(convertJavaToLua(type, "p" + i, null));
+            } else {
+                args.append("m").append(index).append("c").append(i).append(".toLua(p").append(i).append(")");
+            }
+        }
+
+        w.println();
+        w.println("    @Override");
+        w.println("    public " + returnType + " " + method.getSimpleName() + "(" + params + ") {");
+
+        // Functions with up to 3 arguments are called through LuaJ's
+        // fixed-arity entry points, which avoid allocating Varargs
+        String function = "f" + index;
+        boolean returnsVarargs = isVarargs(returnType);
+        String call;
+        if (parameters.size() <= 3 && !returnsVarargs) {
+            call = "call(" + function + (parameters.isEmpty() ? "" : ", " + args) + ")";
+        } else {
+            call = "invoke(" + function + ", new org.luaj.vm2.LuaValue[] {" + args + "})";
+        }
+
+        if (returnType.getKind() == TypeKind.VOID) {
+            w.println("        " + call + ";");
+        } else if (returnsVarargs) {
+            w.println("        return " + call + ";");
+        } else {
+            String result = call + (call.startsWith("invoke(") ? ".arg1()" : "");
+            w.println("        return " + convertLuaToJava(returnType, "m" + index + "rc", result) + ";");
+        }
+        w.println("    }");
+    }
+
+    private AnnotationMirror getAnnotationMirror(Element element, TypeElement annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (mTypes.isSameType(mirror.getAnnotationType(), annotation.asType())) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private String getExposedName(ExecutableElement method, AnnotationMirror mirror) {
+        // Use the name provided in the annotation if specified,
+        // or the Java method name otherwise
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+                mirror.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals("value")) {
+                String value = (String)entry.getValue().getValue();
+                if (!value.isEmpty()) {
+                    return value;
+                }
+            }
+        }
+        return method.getSimpleName().toString();
+    }
+
+    private boolean checkParameters(ExecutableElement method) {
+        List<? extends VariableElement> parameters = method.getParameters();
+        for (int i = 0; i < parameters.size() - 1; ++i) {
+            if (isVarargs(parameters.get(i).asType())) {
+                mMessager.printMessage(Diagnostic.Kind.ERROR,
+                    "Varargs must be the last argument in target Java method", method);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isVarargs(TypeMirror type) {
+        return mTypes.erasure(type).toString().equals(VARARGS_CLASS);
+    }
+
+    private void writeBinding(PrintWriter w, String packageName, String bindingName,
+                              String className, Map<String, List<ExecutableElement>> methods) {
+        w.println("// Generated by " + getClass().getName() + ", do not modify");
+        if (!packageName.isEmpty()) {
+            w.println("package " + packageName + ";");
+            w.println();
+        }
+        w.println("@SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+        w.println("public final class " + bindingName + " extends " + BINDING_CLASS + " {");
+        w.println("    @Override");
+        w.println("    public void bind(org.luaj.vm2.LuaTable methodTable) {");
+        for (Map.Entry<String, List<ExecutableElement>> entry : methods.entrySet()) {
+            List<ExecutableElement> overloads = entry.getValue();
+            for (ExecutableElement method : overloads) {
+                writeMethodStub(w, className, entry.getKey(), method, overloads.size() > 1);
+            }
+        }
+        w.println("    }");
+        w.println("}");
+    }
+
+    private void writeMethodStub(PrintWriter w, String className, String exposedName,
+                                 ExecutableElement method, boolean isOverload) {
+        String quotedName = quote(exposedName);
+        boolean isStatic = method.getModifiers().contains(Modifier.STATIC);
+        List<? extends VariableElement> parameters = method.getParameters();
+
+        // Methods taking at most 3 arguments from Lua and returning a single
+        // value use LuaJ's fixed-arity function classes, which avoid packing
+        // the arguments and return value into Varargs
+        TypeMirror returnType = method.getReturnType();
+        int luaArity = parameters.size() + (isStatic ? 0 : 1);
+        boolean fixedArity = luaArity < FIXED_ARITY_CLASSES.length && !isVarargsReturn(returnType);
+        for (VariableElement parameter : parameters) {
+            if (isVarargs(parameter.asType())) {
+                fixedArity = false;
+            }
+        }
+
+        String functionClass = fixedArity ? FIXED_ARITY_CLASSES[luaArity] : "VarArgFunction";
+        String bindMethod = isOverload ? "bindOverload" : "bindMethod";
+        w.println("        " + bindMethod + "(methodTable, " + quotedName + ", new org.luaj.vm2.lib." + functionClass + "() {");
+
+        // Resolve converters for non-primitive types once per method
+        for (int i = 0; i < parameters.size(); ++i) {
+            TypeMirror type = mTypes.erasure(parameters.get(i).asType());
+            if (!type.getKind().isPrimitive() && !isVarargs(type)) {
+                w.println("            private final " + CONVERTER_CLASS + "<" + type + "> c" + i +
+                    " = " + PACKAGE + ".LuaConverters.forType(" + type + ".class);");
+            }
+        }
+        // Futures are waited for, and their results converted dynamically
+        boolean isAsync = isAsyncReturn(returnType);
+        if (needsConverter(returnType) && !isAsync) {
+            w.println("            private final " + CONVERTER_CLASS + "<Object> rc = returnConverter(" +
+                mTypes.erasure(returnType) + ".class);");
+        }
+        w.println("            private final " + METRICS_CLASS + " mm = metrics(" +
+            mTypes.erasure(method.getEnclosingElement().asType()) + ".class, " + quotedName + ");");
+
+        w.println("            @Override");
+        if (fixedArity) {
+            StringBuilder callParams = new StringBuilder();
+            for (int i = 1; i <= luaArity; ++i) {
+                if (i > 1) {
+                    callParams.append(", ");
+                }
+                callParams.append("org.luaj.vm2.LuaValue arg").append(i);
+            }
+            w.println("            public org.luaj.vm2.LuaValue call(" + callParams + ") {");
+        } else {
+            w.println("            public org.luaj.vm2.Varargs invoke(org.luaj.vm2.Varargs args) {");
+        }
+
+        // Convert arguments to native Java objects
+        w.println("                long t0 = startCall(mm);");
+        int argIndex = 1;
+        String target;
+        if (isStatic) {
+            target = className;
+        } else {
+            w.println("                " + className + " self = checkInstance(" + argExpr(fixedArity, 1) + ", " +
+                className + ".class, " + quotedName + ");");
+            target = "self";
+            argIndex++;
+        }
+
+        StringBuilder callArgs = new StringBuilder();
+        for (int i = 0; i < parameters.size(); ++i, ++argIndex) {
+            TypeMirror type = mTypes.erasure(parameters.get(i).asType());
+            w.println("                " + type + " p" + i + " = " + convertLuaToJava(type, "c" + i, argExpr(fixedArity, argIndex)) + ";");
+            if (i > 0) {
+                callArgs.append(", ");
+            }
+            callArgs.append("p").append(i);
+        }
+
+        // Time spent in the Java method is recorded separately
+        // from the time spent converting arguments and return values
+        String call = target + "." + method.getSimpleName() + "(" + callArgs + ")";
+        boolean isVoid = returnType.getKind() == TypeKind.VOID;
+        w.println("                long t1 = timestamp(mm, t0);");
+        if (isAsync) {
+            w.println("                Object r;");
+            call = "await(" + call + ")";
+        } else if (!isVoid) {
+            w.println("                " + mTypes.erasure(returnType) + " r;");
+        }
+        w.println("                try {");
+        w.println("                    " + (isVoid ? "" : "r = ") + call + ";");
+        w.println("                } catch (Throwable e) {");
+        w.println("                    failCall(mm, t0, t1);");
+        w.println("                    throw new org.luaj.vm2.LuaError(e);");
+        w.println("                }");
+        w.println("                long t2 = timestamp(mm, t0);");
+        String resultType = fixedArity ? "org.luaj.vm2.LuaValue" : "org.luaj.vm2.Varargs";
+        String result;
+        if (isVoid) {
+            result = "org.luaj.vm2.LuaValue.NIL";
+        } else if (isAsync) {
+            result = PACKAGE + ".LuaUtils.bridgeJavaToLuaOut(r)" + (fixedArity ? ".arg1()" : "");
+        } else {
+            result = convertJavaToLua(returnType, "r", "rc");
+        }
+        w.println("                " + resultType + " result = " + result + ";");
+        w.println("                endCall(mm, t0, t1, t2);");
+        w.println("                return result;");
+        w.println("            }");
+        if (isOverload) {
+            // Overloads are selected at runtime based on the parameter types
+            StringBuilder parameterTypes = new StringBuilder();
+            for (VariableElement parameter : parameters) {
+                parameterTypes.append(", ").append(mTypes.erasure(parameter.asType())).append(".class");
+            }
+            w.println("        }, " + isStatic + parameterTypes + ");");
+        } else {
+            w.println("        });");
+        }
+    }
+
+    private static String argExpr(boolean fixedArity, int argIndex) {
+        return fixedArity ? "arg" + argIndex : "args.arg(" + argIndex + ")";
+    }
+
+    private boolean isVarargsReturn(TypeMirror type) {
+        // LuaValue is a subclass of Varargs, but methods returning one
+        // (e.g. fluent methods returning an ExposedJavaClass) return a
+        // single value, so they can still use fixed-arity stubs
+        return type.getKind() == TypeKind.DECLARED &&
+            mTypes.isAssignable(type, mElements.getTypeElement(VARARGS_CLASS).asType()) &&
+            !isLuaValue(type);
+    }
+
+    private boolean isLuaValue(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED &&
+            mTypes.isAssignable(type, mElements.getTypeElement(LUA_VALUE_CLASS).asType());
+    }
+
+    private boolean isAsyncReturn(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED &&
+            mTypes.isAssignable(mTypes.erasure(type), mTypes.erasure(mElements.getTypeElement(COMPLETION_STAGE_CLASS).asType()));
+    }
+
+    private boolean needsConverter(TypeMirror type) {
+        return !type.getKind().isPrimitive() && type.getKind() != TypeKind.VOID &&
+            !mTypes.isAssignable(type, mElements.getTypeElement(VARARGS_CLASS).asType());
+    }
+
+    private String convertLuaToJava(TypeMirror type, String converter, String arg) {
+        switch (type.getKind()) {
+        case INT:
+            return arg + ".checkint()";
+        case FLOAT:
+            return "(float)" + arg + ".checkdouble()";
+        case BOOLEAN:
+            return arg + ".checkboolean()";
+        case DOUBLE:
+            return arg + ".checkdouble()";
+        case LONG:
+            return arg + ".checklong()";
+        case SHORT:
+            return "(short)" + arg + ".checkint()";
+        case BYTE:
+            return "(byte)" + arg + ".checkint()";
+        case CHAR:
+            return "(char)" + arg + ".checkint()";
+        default:
+            if (isVarargs(type)) {
+                // Only possible for VarArgFunction stubs
+                return arg.replace(".arg(", ".subargs(");
+            }
+            return converter + ".toJava(" + arg + ")";
+        }
+    }
+
+    private String convertJavaToLua(TypeMirror type, String expr, String converter) {
+        switch (type.getKind()) {
+        case INT:
+        case SHORT:
+        case BYTE:
+        case CHAR:
+        case LONG:
+        case FLOAT:
+        case DOUBLE:
+            // Both generated base classes provide this helper,
+            // which goes through the number cache
+            return "luaNumber(" + expr + ")";
+        case BOOLEAN:
+            return "org.luaj.vm2.LuaBoolean.valueOf(" + expr + ")";
+        default:
+            if (needsConverter(type)) {
+                return converter + ".toLua(" + expr + ")";
+            } else if (isLuaValue(type)) {
+                // Passed through, but null still needs to become nil
+                return PACKAGE + ".LuaUtils.bridgeJavaToLuaIn(" + expr + ")";
+            }
+            return PACKAGE + ".LuaUtils.bridgeJavaToLuaOut(" + expr + ")";
+        }
+    }
+
+    private static String quote(String str) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < str.length(); ++i) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                sb.append(String.format("\\u%04x", (int)c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
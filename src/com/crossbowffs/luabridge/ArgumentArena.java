@@ -0,0 +1,103 @@
+package com.crossbowffs.luabridge;
+
+/**
+ * Per-thread pool of argument arrays used when calling exposed methods
+ * that take too many arguments for the fixed-arity call paths. Arrays
+ * are handed out like stack frames: each nested call on the same thread
+ * (e.g. a Java method that calls back into Lua, which then calls another
+ * exposed method) gets its own array, and no array is ever shared
+ * between threads. After warming up, calls do not allocate any arrays.
+ *
+ * <p>
+ * Arrays must be released in the reverse order that they were acquired,
+ * which is guaranteed as long as {@link #release(Object[])} is called
+ * in a {@code finally} block.
+ */
+/* package */ final class ArgumentArena {
+    private static final Object[] EMPTY_ARGS = new Object[0];
+
+    // Arrays longer than this aren't worth keeping around, since
+    // methods with that many parameters are rarely called often
+    private static final int MAX_POOLED_LENGTH = 16;
+    private static final int INITIAL_DEPTH = 8;
+
+    private static final ThreadLocal<ArgumentArena> sArena = new ThreadLocal<ArgumentArena>() {
+        @Override
+        protected ArgumentArena initialValue() {
+            return new ArgumentArena();
+        }
+    };
+
+    // Indexed by [call depth][array length]
+    private Object[][][] mFrames = new Object[INITIAL_DEPTH][][];
+    private int mDepth;
+
+    private ArgumentArena() { }
+
+    /**
+     * Returns the arena for the current thread.
+     */
+    public static ArgumentArena get() {
+        return sArena.get();
+    }
+
+    /**
+     * Returns an array of the specified length that is not in use by
+     * any other call. All elements of the array are {@code null}.
+     *
+     * @param length The number of arguments.
+     */
+    public Object[] acquire(int length) {
+        if (length == 0) {
+            return EMPTY_ARGS;
+        }
+
+        int depth = mDepth++;
+        if (length > MAX_POOLED_LENGTH) {
+            return new Object[length];
+        }
+
+        if (depth >= mFrames.length) {
+            Object[][][] frames = new Object[mFrames.length * 2][][];
+            System.arraycopy(mFrames, 0, frames, 0, mFrames.length);
+            mFrames = frames;
+        }
+
+        Object[][] arraysByLength = mFrames[depth];
+        if (arraysByLength == null) {
+            arraysByLength = new Object[MAX_POOLED_LENGTH + 1][];
+            mFrames[depth] = arraysByLength;
+        }
+
+        Object[] args = arraysByLength[length];
+        if (args == null) {
+            args = new Object[length];
+            arraysByLength[length] = args;
+        }
+        return args;
+    }
+
+    /**
+     * Returns the number of arrays that are currently acquired
+     * and not yet released on this thread.
+     */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Releases an array returned by {@link #acquire(int)}, clearing it
+     * so that the arguments can be garbage collected.
+     *
+     * @param args The array to release.
+     */
+    public void release(Object[] args) {
+        if (args.length == 0) {
+            return;
+        }
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = null;
+        }
+        mDepth--;
+    }
+}
@@ -0,0 +1,27 @@
+package com.crossbowffs.luabridge;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks a JavaBean-style getter or setter to be exposed to Lua
+ * as a property, which can be accessed using {@code obj.name}
+ * and {@code obj.name = value} instead of calling the methods.
+ * Only public methods will be exposed.
+ *
+ * <p>
+ * Getters must take no parameters and return a value, while setters
+ * must take exactly one parameter of the same type. Properties with
+ * only a getter are read-only, and properties with only a setter are
+ * write-only.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ExposePropertyToLua {
+    /**
+     * The name of the property when imported into Lua.
+     * If this is not provided, the name is derived from the
+     * method name, e.g. {@code getFooBar()}, {@code isFooBar()}
+     * and {@code setFooBar()} become {@code fooBar}.
+     */
+    String value() default "";
+}
@@ -7,14 +7,21 @@ import java.lang.annotation.*;
  * marked with this annotation will be callable from
  * Lua code. Only public methods will be exposed - this
  * annotation has no effect on private methods.
+ *
+ * <p>
+ * This annotation may also be placed on public fields, which
+ * are then exposed as properties that can be accessed using
+ * {@code obj.field} and {@code obj.field = value}. Final
+ * fields are read-only. To expose a getter and setter pair
+ * as a property, use {@link ExposePropertyToLua} instead.
  */
-@Target(ElementType.METHOD)
+@Target({ElementType.METHOD, ElementType.FIELD})
 @Retention(RetentionPolicy.RUNTIME)
 public @interface ExposeToLua {
     /**
-     * The name of the method when imported into Lua.
+     * The name of the method or field when imported into Lua.
      * If this is not provided, the name of the Java method
-     * will be used.
+     * or field will be used.
      */
     String value() default "";
 }
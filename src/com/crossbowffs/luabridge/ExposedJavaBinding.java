@@ -0,0 +1,226 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Base class for bindings generated by the LuaBridge annotation
+ * processor. A binding adds the methods annotated with {@link ExposeToLua}
+ * to a metatable using direct, non-reflective call stubs, so that
+ * {@link ExposedJavaClass} does not have to scan the class at runtime.
+ *
+ * <p>
+ * The binding for a class {@code com.example.Foo} is named
+ * {@code com.example.Foo$$LuaBinding}. If no binding exists for
+ * a class, the methods are discovered using reflection instead.
+ * You should not need to extend this class yourself.
+ */
+public abstract class ExposedJavaBinding {
+    /**
+     * The suffix appended to the binary name of a class to
+     * obtain the name of its generated binding class.
+     */
+    public static final String BINDING_SUFFIX = "$$LuaBinding";
+
+    protected ExposedJavaBinding() { }
+
+    /**
+     * Adds all exposed methods of the bound class to the method table.
+     *
+     * @param methodTable The table to add the methods to.
+     */
+    public abstract void bind(LuaTable methodTable);
+
+    /**
+     * Adds a single exposed method to the method table.
+     *
+     * @param methodTable The table to add the method to.
+     * @param exposedName The name of the method in Lua.
+     * @param function The function that calls the Java method.
+     */
+    protected static void bindMethod(LuaTable methodTable, String exposedName, LuaFunction function) {
+        if (!methodTable.rawget(exposedName).isnil()) {
+            throw new IllegalArgumentException("Duplicate method name: " + exposedName);
+        }
+        methodTable.rawset(exposedName, function);
+    }
+
+    /**
+     * Adds an overload of an exposed method to the method table.
+     * All overloads of a method must be added using this method.
+     *
+     * @param methodTable The table to add the method to.
+     * @param exposedName The name of the method in Lua.
+     * @param function The function that calls the Java method.
+     * @param isStatic Whether the Java method is static.
+     * @param parameterTypes The parameter types of the Java method.
+     */
+    protected static void bindOverload(LuaTable methodTable, String exposedName, LuaFunction function,
+                                       boolean isStatic, Class<?>... parameterTypes) {
+        LuaValue existing = methodTable.rawget(exposedName);
+        OverloadedJavaMethod overloads;
+        if (existing.isnil()) {
+            overloads = new OverloadedJavaMethod(exposedName);
+            methodTable.rawset(exposedName, overloads);
+        } else if (existing instanceof OverloadedJavaMethod) {
+            overloads = (OverloadedJavaMethod)existing;
+        } else {
+            throw new IllegalArgumentException("Duplicate method name: " + exposedName);
+        }
+        overloads.addOverload(function, isStatic, parameterTypes);
+    }
+
+    /**
+     * Returns the converter to use for values returned from a method
+     * with the specified declared return type.
+     *
+     * @param returnType The declared return type of the method.
+     */
+    protected static LuaConverter<Object> returnConverter(Class<?> returnType) {
+        return LuaConverters.forReturnType(returnType);
+    }
+
+    /**
+     * Converts a number returned from an exposed method to Lua, using
+     * the number cache. See {@link LuaConverters#setIntegerCacheRange(int, int)}.
+     *
+     * @param value The value to convert.
+     */
+    protected static LuaValue luaNumber(int value) {
+        return LuaConverters.toLuaNumber(value);
+    }
+
+    /**
+     * Converts a number returned from an exposed method to Lua, using
+     * the number cache.
+     *
+     * @param value The value to convert.
+     */
+    protected static LuaValue luaNumber(long value) {
+        return LuaConverters.toLuaNumber(value);
+    }
+
+    /**
+     * Converts a number returned from an exposed method to Lua, using
+     * the number cache. See {@link LuaConverters#setDoubleCacheConstants(double...)}.
+     *
+     * @param value The value to convert.
+     */
+    protected static LuaValue luaNumber(double value) {
+        return LuaConverters.toLuaNumber(value);
+    }
+
+    /**
+     * Waits for a future returned from an exposed method to complete,
+     * and returns its result. See {@link LuaScheduler#await(CompletionStage)}.
+     *
+     * @param stage The future returned from the method, or {@code null}.
+     */
+    protected static Object await(CompletionStage<?> stage) {
+        return stage == null ? null : LuaScheduler.await(stage);
+    }
+
+    /**
+     * Returns the call metrics of the specified method.
+     *
+     * @param declaringClass The class that declares the method.
+     * @param exposedName The name of the method in Lua.
+     */
+    protected static MethodMetrics metrics(Class<?> declaringClass, String exposedName) {
+        return LuaMetrics.forMethod(declaringClass, exposedName);
+    }
+
+    /**
+     * Returns the start time of a call if metrics are enabled, or 0 otherwise.
+     *
+     * @param metrics The metrics of the called method.
+     */
+    protected static long startCall(MethodMetrics metrics) {
+        return metrics.start();
+    }
+
+    /**
+     * Returns the current time if metrics were enabled when
+     * the call started, or 0 otherwise. Called once after the
+     * arguments are converted, and again after the Java method
+     * returns.
+     *
+     * @param metrics The metrics of the called method.
+     * @param start The value returned by {@link #startCall(MethodMetrics)}.
+     */
+    protected static long timestamp(MethodMetrics metrics, long start) {
+        return metrics.timestamp(start);
+    }
+
+    /**
+     * Records a call that returned normally.
+     *
+     * @param metrics The metrics of the called method.
+     * @param start The time the call started.
+     * @param invokeStart The time the Java method was called.
+     * @param invokeEnd The time the Java method returned.
+     */
+    protected static void endCall(MethodMetrics metrics, long start, long invokeStart, long invokeEnd) {
+        metrics.record(start, invokeStart, invokeEnd);
+    }
+
+    /**
+     * Records a call where the Java method threw an exception.
+     *
+     * @param metrics The metrics of the called method.
+     * @param start The time the call started.
+     * @param invokeStart The time the Java method was called.
+     */
+    protected static void failCall(MethodMetrics metrics, long start, long invokeStart) {
+        metrics.recordError(start, invokeStart);
+    }
+
+    /**
+     * Converts the first argument of an instance method call to
+     * the object that the method should be called on.
+     *
+     * @param userdata The first argument passed to the function.
+     * @param cls The class that declares the method.
+     * @param exposedName The name of the method in Lua, used for error messages.
+     */
+    protected static <T> T checkInstance(LuaValue userdata, Class<T> cls, String exposedName) {
+        if (userdata instanceof ExposedJavaClass) {
+            return cls.cast(userdata.touserdata(cls));
+        }
+
+        String errMsg = String.format(
+            "First argument is not a Java object, " +
+            "did you mean :%1$s() instead of .%1$s()?", exposedName);
+        throw new LuaError(errMsg);
+    }
+
+    /**
+     * Finds and instantiates the generated binding for the specified
+     * class. Returns {@code null} if no binding was generated.
+     *
+     * @param cls The class to find the binding for.
+     */
+    /* package */ static ExposedJavaBinding find(Class<?> cls) {
+        ClassLoader classLoader = cls.getClassLoader();
+        if (classLoader == null) {
+            return null;
+        }
+
+        Class<?> bindingClass;
+        try {
+            bindingClass = Class.forName(cls.getName() + BINDING_SUFFIX, true, classLoader);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+
+        try {
+            return (ExposedJavaBinding)bindingClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -1,13 +1,20 @@
 package com.crossbowffs.luabridge;
 
 import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaUserdata;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.ThreeArgFunction;
 import org.luaj.vm2.lib.TwoArgFunction;
 
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -15,9 +22,51 @@ import java.util.Map;
  * methods annotated with {@link ExposeToLua} as functions
  * in Lua. Static methods should be called using {@code obj.method()},
  * while instance methods should be called using {@code obj:method()}.
+ * Fields annotated with {@link ExposeToLua} and getters and setters
+ * annotated with {@link ExposePropertyToLua} are exposed as properties,
+ * accessed using {@code obj.property}.
+ *
+ * <p>
+ * Methods exposed under the name of a metamethod, such as
+ * {@code @ExposeToLua("__add")}, implement that metamethod instead
+ * of being callable by name. The supported metamethods are
+ * {@code __add}, {@code __sub}, {@code __mul}, {@code __div},
+ * {@code __mod}, {@code __pow}, {@code __unm}, {@code __eq},
+ * {@code __lt}, {@code __le}, {@code __len}, {@code __call},
+ * {@code __concat} and {@code __tostring}. Like any other Lua
+ * metamethod, they receive the operands as arguments, so binary
+ * operators where the exposed object may be on either side should
+ * be implemented as static methods.
  */
 public class ExposedJavaClass extends LuaUserdata {
-    private static Map<Class<?>, LuaTable> sMetatableCache = new HashMap<Class<?>, LuaTable>();
+    private static final MetatableCache sMetatableCache = new MetatableCache();
+    private static final WrapperCache sWrapperCache = new WrapperCache();
+    private static volatile boolean sAutoWrapEnabled = false;
+    private static volatile boolean sStrictLookupEnabled = true;
+
+    // Names that methods can be exposed as to implement
+    // operators and other metamethods for their class
+    private static final LuaString[] METAMETHODS = {
+        LuaValue.ADD, LuaValue.SUB, LuaValue.MUL, LuaValue.DIV,
+        LuaValue.MOD, LuaValue.POW, LuaValue.UNM, LuaValue.EQ,
+        LuaValue.LT, LuaValue.LE, LuaValue.LEN, LuaValue.CALL,
+        LuaValue.CONCAT, LuaValue.TOSTRING,
+    };
+
+    // Shared metatable of all method tables, which is
+    // only consulted when a method is not found
+    private static final LuaTable MISSING_METHOD_METATABLE = new LuaTable();
+    static {
+        MISSING_METHOD_METATABLE.rawset(LuaValue.INDEX, new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue methodTable, LuaValue key) {
+                if (sStrictLookupEnabled) {
+                    throw new LuaError("Exposed method not found: " + key);
+                }
+                return LuaValue.NIL;
+            }
+        });
+    }
 
     /**
      * Creates a Java object wrapper class from {@code this}. This
@@ -39,22 +88,262 @@ public class ExposedJavaClass extends LuaUserdata {
      * @param obj The object to delegate method calls to.
      */
     public ExposedJavaClass(Object obj) {
-        super(obj, createMetatable(obj.getClass()));
+        super(obj, getMetatable(obj.getClass()));
+    }
+
+    /**
+     * Returns a wrapper for {@code obj}. Wrappers are cached by object
+     * identity, so calling this method repeatedly with the same object
+     * returns the same wrapper for as long as the wrapper is referenced,
+     * e.g. by a Lua variable. If {@code obj} is already an instance of
+     * this class, it is returned as-is.
+     *
+     * @param obj The object to wrap.
+     */
+    public static ExposedJavaClass wrap(Object obj) {
+        if (obj instanceof ExposedJavaClass) {
+            return (ExposedJavaClass)obj;
+        }
+        return sWrapperCache.get(obj);
+    }
+
+    /**
+     * Sets whether Java objects returned to Lua should automatically be
+     * wrapped using {@link #wrap(Object)}, so that their exposed methods
+     * can be called from Lua. If this is disabled (the default), objects
+     * that are not instances of this class are returned as plain
+     * {@link LuaUserdata} objects without a metatable.
+     *
+     * <p>
+     * This affects return values from exposed methods, as well as all
+     * other conversions performed by {@link LuaUtils#bridgeJavaToLuaIn(Object)}.
+     *
+     * @param enabled Whether to automatically wrap returned objects.
+     */
+    public static void setAutoWrapEnabled(boolean enabled) {
+        sAutoWrapEnabled = enabled;
+    }
+
+    /**
+     * Returns whether returned Java objects are automatically wrapped.
+     * See {@link #setAutoWrapEnabled(boolean)}.
+     */
+    public static boolean isAutoWrapEnabled() {
+        return sAutoWrapEnabled;
+    }
+
+    /**
+     * Sets whether accessing a method or property that was not exposed
+     * should raise an error (the default). If this is disabled, such
+     * accesses return {@code nil} instead, which allows scripts to
+     * check whether a method exists using {@code if obj.method then}.
+     * This only affects the slow path taken when no method is found,
+     * and applies to all exposed classes immediately.
+     *
+     * @param enabled Whether to raise an error for missing methods.
+     */
+    public static void setStrictLookupEnabled(boolean enabled) {
+        sStrictLookupEnabled = enabled;
+    }
+
+    /**
+     * Returns whether accessing missing methods raises an error.
+     * See {@link #setStrictLookupEnabled(boolean)}.
+     */
+    public static boolean isStrictLookupEnabled() {
+        return sStrictLookupEnabled;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the metatable cache,
+     * which is shared by all exposed objects of the same class.
+     */
+    public static MetatableCacheStats getMetatableCacheStats() {
+        return sMetatableCache.getStats();
     }
 
     private static LuaTable getMetatable(Class<?> cls) {
-        LuaTable metatable = sMetatableCache.get(cls);
-        if (metatable == null) {
-            metatable = createMetatable(cls);
-            sMetatableCache.put(cls, metatable);
+        return sMetatableCache.getMetatable(cls);
+    }
+
+    /* package */ static LuaTable createMetatable(Class<?> cls) {
+        // Contains all exposed methods, including inherited ones,
+        // since Class#getMethods() and generated bindings both
+        // include methods from superclasses
+        final LuaTable methodTable = new LuaTable();
+
+        // Prefer the binding generated at compile time if there is one,
+        // since it avoids scanning the class with reflection
+        ExposedJavaBinding binding = ExposedJavaBinding.find(cls);
+        if (binding != null) {
+            binding.bind(methodTable);
+        } else {
+            addExposedMethods(methodTable, cls);
+        }
+
+        // Methods exposed under the name of a metamethod are
+        // moved from the method table into the metatable
+        LuaTable metatable = new LuaTable();
+        for (LuaString name : METAMETHODS) {
+            LuaValue function = methodTable.rawget(name);
+            if (!function.isnil()) {
+                metatable.rawset(name, function);
+                methodTable.rawset(name, LuaValue.NIL);
+            }
+        }
+
+        // Properties are always discovered using reflection, but
+        // are accessed through method handles, not reflection
+        final Map<LuaValue, ExposedJavaProperty> properties = findExposedProperties(cls);
+        for (ExposedJavaProperty property : properties.values()) {
+            if (!methodTable.rawget(property.getName()).isnil()) {
+                throw new IllegalArgumentException("Duplicate property name: " + property.getName());
+            }
         }
+
+        if (properties.isEmpty()) {
+            // Pointing __index directly at the method table lets LuaJ
+            // look up methods itself, without calling into a function.
+            // Misses fall through to the metatable of the method table.
+            methodTable.setmetatable(MISSING_METHOD_METATABLE);
+            metatable.rawset(LuaValue.INDEX, methodTable);
+        } else {
+            metatable.rawset(LuaValue.INDEX, new PropertyIndexFunction(methodTable, properties));
+            metatable.rawset(LuaValue.NEWINDEX, new ThreeArgFunction() {
+                @Override
+                public LuaValue call(LuaValue object, LuaValue key, LuaValue value) {
+                    ExposedJavaProperty property = properties.get(key);
+                    if (property == null) {
+                        throw new LuaError("Exposed property not found: " + key);
+                    }
+                    property.set(object.touserdata(), value);
+                    return LuaValue.NONE;
+                }
+            });
+        }
+
         return metatable;
     }
 
-    private static LuaTable createMetatable(Class<?> cls) {
-        final LuaTable methodTable = new LuaTable();
+    /**
+     * Returns the table of exposed methods of the specified class,
+     * keyed by their exposed names. Metamethods are not included.
+     * The returned table is shared and must not be modified.
+     */
+    /* package */ static LuaTable getMethodTable(Class<?> cls) {
+        LuaValue index = getMetatable(cls).rawget(LuaValue.INDEX);
+        if (index instanceof PropertyIndexFunction) {
+            return ((PropertyIndexFunction)index).mMethodTable;
+        }
+        return (LuaTable)index;
+    }
+
+    private static Map<LuaValue, ExposedJavaProperty> findExposedProperties(Class<?> cls) {
+        // Keys are Lua strings, so that lookups from __index
+        // do not have to convert the key to a Java string
+        Map<LuaValue, ExposedJavaProperty> properties = new HashMap<LuaValue, ExposedJavaProperty>();
 
+        for (Field field : cls.getFields()) {
+            ExposeToLua annotation = field.getAnnotation(ExposeToLua.class);
+            if (annotation == null) {
+                continue;
+            }
+
+            String exposedName = annotation.value();
+            if (exposedName == null || exposedName.isEmpty()) {
+                exposedName = field.getName();
+            }
+
+            ExposedJavaProperty property = ExposedJavaProperty.fromField(exposedName, field);
+            if (properties.put(LuaValue.valueOf(exposedName), property) != null) {
+                throw new IllegalArgumentException("Duplicate property name: " + exposedName);
+            }
+        }
+
+        // Each entry holds the getter and setter of a property
+        Map<String, Method[]> accessorsByName = new LinkedHashMap<String, Method[]>();
         for (Method method : cls.getMethods()) {
+            if (method.isBridge()) {
+                continue;
+            }
+
+            ExposePropertyToLua annotation = method.getAnnotation(ExposePropertyToLua.class);
+            if (annotation == null) {
+                continue;
+            }
+
+            int index;
+            int parameterCount = method.getParameterTypes().length;
+            if (parameterCount == 0 && method.getReturnType() != void.class) {
+                index = 0;
+            } else if (parameterCount == 1) {
+                index = 1;
+            } else {
+                throw new IllegalArgumentException("Property accessor is neither a getter nor a setter: " + method);
+            }
+
+            String exposedName = annotation.value();
+            if (exposedName == null || exposedName.isEmpty()) {
+                exposedName = getPropertyName(method);
+            }
+
+            Method[] accessors = accessorsByName.get(exposedName);
+            if (accessors == null) {
+                accessors = new Method[2];
+                accessorsByName.put(exposedName, accessors);
+            }
+            if (accessors[index] != null) {
+                throw new IllegalArgumentException("Duplicate property accessor: " + method);
+            }
+            accessors[index] = method;
+        }
+
+        for (Map.Entry<String, Method[]> entry : accessorsByName.entrySet()) {
+            String exposedName = entry.getKey();
+            Method[] accessors = entry.getValue();
+            ExposedJavaProperty property = ExposedJavaProperty.fromAccessors(exposedName, accessors[0], accessors[1]);
+            if (properties.put(LuaValue.valueOf(exposedName), property) != null) {
+                throw new IllegalArgumentException("Duplicate property name: " + exposedName);
+            }
+        }
+
+        return properties;
+    }
+
+    private static String getPropertyName(Method method) {
+        // Follows the JavaBeans naming rules, e.g. getFooBar() -> fooBar,
+        // but getURL() -> URL (since URL is an acronym)
+        String methodName = method.getName();
+        String name;
+        if (methodName.startsWith("get") || methodName.startsWith("set")) {
+            name = methodName.substring(3);
+        } else if (methodName.startsWith("is") && method.getReturnType() == boolean.class) {
+            name = methodName.substring(2);
+        } else {
+            name = "";
+        }
+
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Cannot derive property name from method: " + method);
+        }
+
+        if (name.length() > 1 && Character.isUpperCase(name.charAt(0)) && Character.isUpperCase(name.charAt(1))) {
+            return name;
+        }
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static void addExposedMethods(LuaTable methodTable, Class<?> cls) {
+        // Group methods by name first, so that we know
+        // which ones need to be dispatched as overloads
+        Map<String, List<Method>> methodsByName = new LinkedHashMap<String, List<Method>>();
+        for (Method method : cls.getMethods()) {
+            // Bridge methods share the annotation of the method
+            // they bridge to, but shouldn't be exposed twice
+            if (method.isBridge()) {
+                continue;
+            }
+
             ExposeToLua annotation = method.getAnnotation(ExposeToLua.class);
             if (annotation == null) {
                 continue;
@@ -67,30 +356,77 @@ public class ExposedJavaClass extends LuaUserdata {
                 exposedName = method.getName();
             }
 
-            if (!methodTable.get(exposedName).isnil()) {
-                throw new IllegalArgumentException("Duplicate method name: " + exposedName);
+            List<Method> methods = methodsByName.get(exposedName);
+            if (methods == null) {
+                methods = new ArrayList<Method>(1);
+                methodsByName.put(exposedName, methods);
             }
+            methods.add(method);
+        }
+
+        for (Map.Entry<String, List<Method>> entry : methodsByName.entrySet()) {
+            String exposedName = entry.getKey();
+            List<Method> methods = entry.getValue();
+            if (methods.size() == 1) {
+                methodTable.set(exposedName, createExposedMethod(methods.get(0)));
+            } else {
+                OverloadedJavaMethod overloads = new OverloadedJavaMethod(exposedName);
+                for (Method method : methods) {
+                    boolean isStatic = Modifier.isStatic(method.getModifiers());
+                    overloads.addOverload(createExposedMethod(method), isStatic, method.getParameterTypes());
+                }
+                methodTable.set(exposedName, overloads);
+            }
+        }
+    }
+
+    private static ExposedJavaMethod createExposedMethod(Method method) {
+        // Make sure our method is callable via reflection
+        method.setAccessible(true);
 
-            // Make sure our method is callable via reflection
-            method.setAccessible(true);
+        // Wrap the method so that it can be added into the metatable
+        return ExposedJavaMethod.create(method, method.getAnnotation(ExposeToLua.class));
+    }
+
+    private static class PropertyIndexFunction extends TwoArgFunction {
+        private final LuaTable mMethodTable;
+        private final Map<LuaValue, ExposedJavaProperty> mProperties;
 
-            // Add our wrapped function into the metatable
-            ExposedJavaMethod luaFunction = new ExposedJavaMethod(method, annotation);
-            methodTable.set(exposedName, luaFunction);
+        public PropertyIndexFunction(LuaTable methodTable, Map<LuaValue, ExposedJavaProperty> properties) {
+            mMethodTable = methodTable;
+            mProperties = properties;
         }
 
-        methodTable.set(LuaValue.INDEX, new TwoArgFunction() {
-            @Override
-            public LuaValue call(LuaValue object, LuaValue key) {
-                LuaValue value = methodTable.rawget(key);
-                if (value.isnil()) {
-                    throw new LuaError("Exposed method not found: " + key);
-                }
-                return value;
+        @Override
+        public LuaValue call(LuaValue object, LuaValue key) {
+            ExposedJavaProperty property = mProperties.get(key);
+            if (property != null) {
+                return property.get(object.touserdata());
             }
-        });
+            LuaValue value = mMethodTable.rawget(key);
+            if (value.isnil() && sStrictLookupEnabled) {
+                throw new LuaError("Exposed method or property not found: " + key);
+            }
+            return value;
+        }
+    }
 
-        return methodTable;
+    @Override
+    public boolean equals(Object obj) {
+        // Subclasses are their own instance, so the implementation in
+        // LuaUserdata, which compares the instances, would recurse forever
+        if (m_instance == this) {
+            return obj == this;
+        }
+        return super.equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        if (m_instance == this) {
+            return System.identityHashCode(this);
+        }
+        return super.hashCode();
     }
 
     @Override
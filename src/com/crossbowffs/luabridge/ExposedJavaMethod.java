@@ -6,72 +6,171 @@ import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
 import org.luaj.vm2.lib.VarArgFunction;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Wraps a Java method as a {@link LuaFunction} object, so
- * that it can be called from a Lua script.
+ * that it can be called from a Lua script. This class handles
+ * calls with any number of arguments; use {@link #create(Method, ExposeToLua)}
+ * to get a specialized subclass for methods with few parameters.
  */
 /* package */ class ExposedJavaMethod extends VarArgFunction {
-    private static final Object[] EMPTY_PARAMS = new Object[0];
-
-    private final Method mJavaMethod;
+    protected final Method mJavaMethod;
     private final ExposeToLua mAnnotation;
+    protected JavaMethodInvoker mInvoker;
     private Class<?>[] mParameterTypes;
-    private Object[] mParameters;
+    protected LuaConverter<?>[] mParameterConverters;
+    private LuaConverter<Object> mReturnConverter;
+    private boolean mAwaitsResult;
+    protected MethodMetrics mMetrics;
+    private volatile boolean mInitialized;
 
     public ExposedJavaMethod(Method method, ExposeToLua annotation) {
         mJavaMethod = method;
         mAnnotation = annotation;
     }
 
-    private void ensureBuffers() {
+    /**
+     * Wraps the specified method, using a subclass that overrides the
+     * fixed-arity {@code call()} methods if possible. This avoids
+     * allocating {@link Varargs} for arguments and return values.
+     *
+     * @param method The method to wrap.
+     * @param annotation The annotation on the method.
+     */
+    public static ExposedJavaMethod create(Method method, ExposeToLua annotation) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (Class<?> type : parameterTypes) {
+            if (type.equals(Varargs.class)) {
+                return new ExposedJavaMethod(method, annotation);
+            }
+        }
+
+        boolean isStatic = Modifier.isStatic(method.getModifiers());
+        switch (parameterTypes.length) {
+        case 0:
+            return isStatic ?
+                new FixedArityJavaMethod.Static0(method, annotation) :
+                new FixedArityJavaMethod.Instance0(method, annotation);
+        case 1:
+            return isStatic ?
+                new FixedArityJavaMethod.Static1(method, annotation) :
+                new FixedArityJavaMethod.Instance1(method, annotation);
+        case 2:
+            return isStatic ?
+                new FixedArityJavaMethod.Static2(method, annotation) :
+                new FixedArityJavaMethod.Instance2(method, annotation);
+        case 3:
+            // Instance methods would need 4 arguments, which
+            // is more than LuaJ has fixed-arity calls for
+            return isStatic ?
+                new FixedArityJavaMethod.Static3(method, annotation) :
+                new ExposedJavaMethod(method, annotation);
+        default:
+            return new ExposedJavaMethod(method, annotation);
+        }
+    }
+
+    protected void ensureBuffers() {
         // These are lazily allocated since we don't expect every
         // method to be called, so we can reduce memory allocations
-        // on startup
-        if (mParameterTypes == null) {
-            mParameterTypes = mJavaMethod.getParameterTypes();
+        // on startup. Since the same method may be called from multiple
+        // threads, the fields are published using a volatile flag.
+        if (mInitialized) {
+            return;
         }
-        if (mParameters == null) {
-            if (mParameterTypes.length == 0) {
-                mParameters = EMPTY_PARAMS;
-            } else {
-                mParameters = new Object[mParameterTypes.length];
+        synchronized (this) {
+            if (!mInitialized) {
+                mInvoker = JavaMethodInvoker.create(mJavaMethod);
+                mParameterTypes = mJavaMethod.getParameterTypes();
+                mAwaitsResult = CompletionStage.class.isAssignableFrom(mJavaMethod.getReturnType());
+                // Invokers that convert the return value themselves
+                // return LuaValues, which bridgeJavaToLuaOut() passes through
+                mReturnConverter = mInvoker.convertsReturnValue() ?
+                    null : createReturnConverter(mJavaMethod.getReturnType());
+                mParameterConverters = createParameterConverters(mParameterTypes);
+                mMetrics = LuaMetrics.forMethod(mJavaMethod.getDeclaringClass(), getExposedName());
+                mInitialized = true;
             }
         }
     }
 
-    private Object toJavaClass(LuaValue userdata) {
-        if (userdata instanceof ExposedJavaClass) {
-            return userdata.touserdata(mJavaMethod.getDeclaringClass());
+    private static LuaConverter<?>[] createParameterConverters(Class<?>[] parameterTypes) {
+        LuaConverter<?>[] converters = new LuaConverter<?>[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; ++i) {
+            // Varargs are passed through as-is, so they don't get a converter
+            if (!parameterTypes[i].equals(Varargs.class)) {
+                converters[i] = LuaConverters.forType(parameterTypes[i]);
+            }
         }
+        return converters;
+    }
+
+    private static LuaConverter<Object> createReturnConverter(Class<?> returnType) {
+        // Void methods, methods returning Varargs, and the results of
+        // methods returning futures are handled by bridgeJavaToLuaOut()
+        if (returnType.equals(void.class) || Varargs.class.isAssignableFrom(returnType) ||
+            CompletionStage.class.isAssignableFrom(returnType)) {
+            return null;
+        }
+        return LuaConverters.forReturnType(returnType);
+    }
 
+    private String getExposedName() {
         String methodName = mAnnotation.value();
         if (methodName.isEmpty()) {
             methodName = mJavaMethod.getName();
         }
+        return methodName;
+    }
+
+    protected Object toJavaClass(LuaValue userdata) {
+        if (userdata instanceof ExposedJavaClass) {
+            return userdata.touserdata(mJavaMethod.getDeclaringClass());
+        }
 
+        String methodName = getExposedName();
         String errMsg = String.format(
             "First argument is not a Java object, " +
             "did you mean :%1$s() instead of .%1$s()?", methodName);
         throw new LuaError(errMsg);
     }
 
-    private Object invokeMethod(Object thisObject, Object[] parameters) {
-        try {
-            return mJavaMethod.invoke(thisObject, parameters);
-        } catch (IllegalAccessException e) {
-            throw new AssertionError(e);
-        } catch (InvocationTargetException e) {
-            throw new LuaError(e.getCause());
+    /**
+     * Converts the value returned from the Java method, and records
+     * the call if metrics are enabled. If the method returns a future,
+     * this first waits for its result, which is recorded as part of
+     * the time spent in the Java method.
+     */
+    protected Varargs finishCall(long start, long invokeStart, Object returnValue) {
+        if (mAwaitsResult && returnValue != null) {
+            try {
+                returnValue = LuaScheduler.await((CompletionStage<?>)returnValue);
+            } catch (LuaError e) {
+                mMetrics.recordError(start, invokeStart);
+                throw e;
+            }
         }
+        long invokeEnd = mMetrics.timestamp(start);
+        Varargs luaReturnValue = convertReturnValue(returnValue);
+        mMetrics.record(start, invokeStart, invokeEnd);
+        return luaReturnValue;
+    }
+
+    protected Varargs convertReturnValue(Object returnValue) {
+        // If the method returns void, the return value
+        // from invoke() will be null, which will be wrapped
+        // to nil by bridgeJavaToLuaOut() anyways.
+        if (mReturnConverter != null) {
+            return mReturnConverter.toLua(returnValue);
+        }
+        return LuaUtils.bridgeJavaToLuaOut(returnValue);
     }
 
     @Override
     public Varargs invoke(Varargs args) {
-        int argCount = args.narg();
         Object thisObject = null;
         int destIndex = 0, srcIndex = 1;
 
@@ -79,46 +178,46 @@ import java.lang.reflect.Modifier;
         if (!Modifier.isStatic(mJavaMethod.getModifiers())) {
             thisObject = toJavaClass(args.arg1());
             srcIndex++;
-            argCount--;
         }
 
         ensureBuffers();
-        Object[] parameters = mParameters;
-
-        // Convert arguments to native Java objects
-        while (destIndex < argCount && destIndex < parameters.length) {
-            Class<?> expectedType = mParameterTypes[destIndex];
-            // Allow the usage of varargs, if and only if the Java method
-            // has Varargs as its last argument
-            if (expectedType.equals(Varargs.class)) {
-                if (destIndex == parameters.length - 1) {
-                    parameters[destIndex++] = args.subargs(srcIndex++);
+        long start = mMetrics.start();
+
+        // The same method may be called from multiple threads, or re-entered
+        // from within the Java method, so each call gets its own array
+        ArgumentArena arena = ArgumentArena.get();
+        Object[] parameters = arena.acquire(mParameterTypes.length);
+        long invokeStart = 0;
+        Object returnValue;
+        try {
+            // Convert arguments to native Java objects. Missing arguments
+            // are converted from nil, like in the fixed-arity paths.
+            while (destIndex < parameters.length) {
+                LuaConverter<?> converter = mParameterConverters[destIndex];
+                // Allow the usage of varargs, if and only if the Java method
+                // has Varargs as its last argument
+                if (converter == null) {
+                    if (destIndex == parameters.length - 1) {
+                        parameters[destIndex++] = args.subargs(srcIndex++);
+                    } else {
+                        throw new LuaError("Varargs must be the last argument in target Java method");
+                    }
                 } else {
-                    throw new LuaError("Varargs must be the last argument in target Java method");
+                    parameters[destIndex++] = converter.toJava(args.arg(srcIndex++));
                 }
-            } else {
-                parameters[destIndex++] = LuaUtils.bridgeLuaToJava(
-                    args.arg(srcIndex++), expectedType);
             }
-        }
-
-        // This is necessary in case a call to this method is re-entrant -
-        // the previous call might not have reached the cleanup block yet
-        for (int i = destIndex; i < parameters.length; ++i) {
-            parameters[i] = null;
-        }
-
-        Object returnValue = invokeMethod(thisObject, parameters);
 
-        // Clear argument buffer for next use
-        while (--destIndex >= 0) {
-            parameters[destIndex] = null;
+            invokeStart = mMetrics.timestamp(start);
+            try {
+                returnValue = mInvoker.invoke(thisObject, parameters);
+            } catch (Throwable e) {
+                mMetrics.recordError(start, invokeStart);
+                throw new LuaError(e);
+            }
+        } finally {
+            arena.release(parameters);
         }
 
-        // If the method returns void, the return value
-        // from invoke() will be null, which will be wrapped
-        // to nil anyways, so we don't have to check the
-        // method return type.
-        return LuaUtils.bridgeJavaToLuaOut(returnValue);
+        return finishCall(start, invokeStart, returnValue);
     }
 }
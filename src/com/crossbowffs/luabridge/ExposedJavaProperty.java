@@ -0,0 +1,246 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaBoolean;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Reads and writes a property of an exposed Java object, backed
+ * either by a field or by a getter and setter pair. The accessors
+ * are resolved to {@link MethodHandle}s once, and adapted to take
+ * the receiver as an {@link Object}. Properties of type {@code int},
+ * {@code long}, {@code double} and {@code boolean} are accessed
+ * without boxing the value.
+ */
+/* package */ abstract class ExposedJavaProperty {
+    private final String mName;
+    protected final MethodHandle mGetter;
+    protected final MethodHandle mSetter;
+
+    private ExposedJavaProperty(String name, MethodHandle getter, MethodHandle setter) {
+        mName = name;
+        mGetter = getter;
+        mSetter = setter;
+    }
+
+    public static ExposedJavaProperty fromField(String name, Field field) {
+        field.setAccessible(true);
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        boolean isStatic = Modifier.isStatic(field.getModifiers());
+        MethodHandle getter;
+        MethodHandle setter = null;
+        try {
+            getter = adaptReceiver(lookup.unreflectGetter(field), isStatic);
+            if (!Modifier.isFinal(field.getModifiers())) {
+                setter = adaptReceiver(lookup.unreflectSetter(field), isStatic);
+            }
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+        return create(name, field.getType(), getter, setter);
+    }
+
+    public static ExposedJavaProperty fromAccessors(String name, Method getter, Method setter) {
+        Class<?> type;
+        if (getter != null) {
+            type = getter.getReturnType();
+            if (setter != null && setter.getParameterTypes()[0] != type) {
+                throw new IllegalArgumentException("Getter and setter of property " + name + " have different types");
+            }
+        } else {
+            type = setter.getParameterTypes()[0];
+        }
+
+        MethodHandle getterHandle = null;
+        MethodHandle setterHandle = null;
+        try {
+            if (getter != null) {
+                getterHandle = unreflect(getter);
+            }
+            if (setter != null) {
+                setterHandle = unreflect(setter);
+            }
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+        return create(name, type, getterHandle, setterHandle);
+    }
+
+    private static MethodHandle unreflect(Method method) throws IllegalAccessException {
+        method.setAccessible(true);
+        MethodHandle handle = MethodHandles.lookup().unreflect(method);
+        // Setters may return a value (e.g. for chaining), which we ignore
+        if (handle.type().returnType() != void.class && method.getParameterTypes().length == 1) {
+            handle = handle.asType(handle.type().changeReturnType(void.class));
+        }
+        return adaptReceiver(handle, Modifier.isStatic(method.getModifiers()));
+    }
+
+    private static MethodHandle adaptReceiver(MethodHandle handle, boolean isStatic) {
+        // Static members ignore the receiver, so give them a dummy
+        // leading parameter to get the same shape as instance members
+        if (isStatic) {
+            return MethodHandles.dropArguments(handle, 0, Object.class);
+        }
+        return handle.asType(handle.type().changeParameterType(0, Object.class));
+    }
+
+    private static ExposedJavaProperty create(String name, Class<?> type, MethodHandle getter, MethodHandle setter) {
+        if (type == int.class) {
+            return new IntProperty(name, getter, setter);
+        } else if (type == long.class) {
+            return new LongProperty(name, getter, setter);
+        } else if (type == double.class) {
+            return new DoubleProperty(name, getter, setter);
+        } else if (type == boolean.class) {
+            return new BooleanProperty(name, getter, setter);
+        } else {
+            return new ObjectProperty(name, type, getter, setter);
+        }
+    }
+
+    private static MethodHandle toGeneric(MethodHandle handle) {
+        if (handle == null) {
+            return null;
+        }
+        // Boxes/unboxes primitives, so that the handle
+        // can always be called with Object values
+        MethodType type = handle.type();
+        MethodType genericType = type.generic();
+        if (type.returnType() == void.class) {
+            genericType = genericType.changeReturnType(void.class);
+        }
+        return handle.asType(genericType);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public boolean isReadOnly() {
+        return mSetter == null;
+    }
+
+    public LuaValue get(Object instance) {
+        if (mGetter == null) {
+            throw new LuaError("Exposed property is write-only: " + mName);
+        }
+        try {
+            return getValue(instance);
+        } catch (LuaError e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new LuaError(e);
+        }
+    }
+
+    public void set(Object instance, LuaValue value) {
+        if (mSetter == null) {
+            throw new LuaError("Exposed property is read-only: " + mName);
+        }
+        try {
+            setValue(instance, value);
+        } catch (LuaError e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new LuaError(e);
+        }
+    }
+
+    protected abstract LuaValue getValue(Object instance) throws Throwable;
+
+    protected abstract void setValue(Object instance, LuaValue value) throws Throwable;
+
+    private static class IntProperty extends ExposedJavaProperty {
+        public IntProperty(String name, MethodHandle getter, MethodHandle setter) {
+            super(name, getter, setter);
+        }
+
+        @Override
+        protected LuaValue getValue(Object instance) throws Throwable {
+            return LuaConverters.toLuaNumber((int)mGetter.invokeExact(instance));
+        }
+
+        @Override
+        protected void setValue(Object instance, LuaValue value) throws Throwable {
+            mSetter.invokeExact(instance, value.checkint());
+        }
+    }
+
+    private static class LongProperty extends ExposedJavaProperty {
+        public LongProperty(String name, MethodHandle getter, MethodHandle setter) {
+            super(name, getter, setter);
+        }
+
+        @Override
+        protected LuaValue getValue(Object instance) throws Throwable {
+            return LuaConverters.toLuaNumber((long)mGetter.invokeExact(instance));
+        }
+
+        @Override
+        protected void setValue(Object instance, LuaValue value) throws Throwable {
+            mSetter.invokeExact(instance, value.checklong());
+        }
+    }
+
+    private static class DoubleProperty extends ExposedJavaProperty {
+        public DoubleProperty(String name, MethodHandle getter, MethodHandle setter) {
+            super(name, getter, setter);
+        }
+
+        @Override
+        protected LuaValue getValue(Object instance) throws Throwable {
+            return LuaConverters.toLuaNumber((double)mGetter.invokeExact(instance));
+        }
+
+        @Override
+        protected void setValue(Object instance, LuaValue value) throws Throwable {
+            mSetter.invokeExact(instance, value.checkdouble());
+        }
+    }
+
+    private static class BooleanProperty extends ExposedJavaProperty {
+        public BooleanProperty(String name, MethodHandle getter, MethodHandle setter) {
+            super(name, getter, setter);
+        }
+
+        @Override
+        protected LuaValue getValue(Object instance) throws Throwable {
+            return LuaBoolean.valueOf((boolean)mGetter.invokeExact(instance));
+        }
+
+        @Override
+        protected void setValue(Object instance, LuaValue value) throws Throwable {
+            mSetter.invokeExact(instance, value.checkboolean());
+        }
+    }
+
+    private static class ObjectProperty extends ExposedJavaProperty {
+        private final LuaConverter<Object> mReturnConverter;
+        private final LuaConverter<?> mParameterConverter;
+
+        public ObjectProperty(String name, Class<?> type, MethodHandle getter, MethodHandle setter) {
+            super(name, toGeneric(getter), toGeneric(setter));
+            mReturnConverter = LuaConverters.forReturnType(type);
+            mParameterConverter = LuaConverters.forType(type);
+        }
+
+        @Override
+        protected LuaValue getValue(Object instance) throws Throwable {
+            Object value = mGetter.invokeExact(instance);
+            return mReturnConverter.toLua(value);
+        }
+
+        @Override
+        protected void setValue(Object instance, LuaValue value) throws Throwable {
+            mSetter.invokeExact(instance, (Object)mParameterConverter.toJava(value));
+        }
+    }
+}
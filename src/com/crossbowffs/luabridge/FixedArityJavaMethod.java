@@ -0,0 +1,284 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+import java.lang.reflect.Method;
+
+/**
+ * Base class for exposed methods that take at most 3 arguments from
+ * Lua (including the object for instance methods). These override the
+ * fixed-arity {@code call()} methods that the LuaJ interpreter uses for
+ * calls with few arguments and at most one return value, so neither the
+ * arguments nor the return value have to be packed into {@link Varargs}.
+ *
+ * <p>
+ * Like in the generic implementation, missing arguments are converted
+ * from {@code nil} (so a missing argument for a primitive parameter
+ * raises a Lua error), and extra arguments are ignored.
+ */
+/* package */ abstract class FixedArityJavaMethod extends ExposedJavaMethod {
+    private FixedArityJavaMethod(Method method, ExposeToLua annotation) {
+        super(method, annotation);
+    }
+
+    /**
+     * Calls the method with the first 3 arguments passed from Lua.
+     */
+    protected abstract Varargs callFixed(LuaValue a, LuaValue b, LuaValue c);
+
+    protected Object convertArg(int index, LuaValue value) {
+        return mParameterConverters[index].toJava(value);
+    }
+
+    /**
+     * Returns whether the invoker should convert the arguments itself,
+     * which avoids boxing primitive arguments. This is only done for
+     * calls that are not timed, since converting the arguments would
+     * otherwise be counted as time spent in the Java method.
+     */
+    protected boolean convertsArgumentsDirectly(long start) {
+        return start == 0 && mInvoker.convertsArguments() && !LuaProfiler.isRunning();
+    }
+
+    /**
+     * Records a call through the invoker's argument-converting path
+     * that failed. Exceptions thrown by the Java method were already
+     * wrapped by the invoker, while errors from converting arguments
+     * are thrown as-is, like on the regular path.
+     */
+    protected LuaError directCallFailed(long start, Throwable e) {
+        mMetrics.recordError(start, 0);
+        return e instanceof LuaError ? (LuaError)e : new LuaError(e);
+    }
+
+    @Override
+    public LuaValue call() {
+        return callFixed(NIL, NIL, NIL).arg1();
+    }
+
+    @Override
+    public LuaValue call(LuaValue a) {
+        return callFixed(a, NIL, NIL).arg1();
+    }
+
+    @Override
+    public LuaValue call(LuaValue a, LuaValue b) {
+        return callFixed(a, b, NIL).arg1();
+    }
+
+    @Override
+    public LuaValue call(LuaValue a, LuaValue b, LuaValue c) {
+        return callFixed(a, b, c).arg1();
+    }
+
+    @Override
+    public Varargs invoke(Varargs args) {
+        return callFixed(args.arg1(), args.arg(2), args.arg(3));
+    }
+
+    /* package */ static class Static0 extends FixedArityJavaMethod {
+        public Static0(Method method, ExposeToLua annotation) {
+            super(method, annotation);
+        }
+
+        @Override
+        protected Varargs callFixed(LuaValue a, LuaValue b, LuaValue c) {
+            ensureBuffers();
+            long start = mMetrics.start();
+            long invokeStart = mMetrics.timestamp(start);
+            Object returnValue;
+            try {
+                returnValue = mInvoker.invoke0(null);
+            } catch (Throwable e) {
+                mMetrics.recordError(start, invokeStart);
+                throw new LuaError(e);
+            }
+            return finishCall(start, invokeStart, returnValue);
+        }
+    }
+
+    /* package */ static class Static1 extends FixedArityJavaMethod {
+        public Static1(Method method, ExposeToLua annotation) {
+            super(method, annotation);
+        }
+
+        @Override
+        protected Varargs callFixed(LuaValue a, LuaValue b, LuaValue c) {
+            ensureBuffers();
+            long start = mMetrics.start();
+            if (convertsArgumentsDirectly(start)) {
+                Object returnValue;
+                try {
+                    returnValue = mInvoker.invokeLua1(null, a);
+                } catch (Throwable e) {
+                    throw directCallFailed(start, e);
+                }
+                return finishCall(start, 0, returnValue);
+            }
+            Object p0 = convertArg(0, a);
+            long invokeStart = mMetrics.timestamp(start);
+            Object returnValue;
+            try {
+                returnValue = mInvoker.invoke1(null, p0);
+            } catch (Throwable e) {
+                mMetrics.recordError(start, invokeStart);
+                throw new LuaError(e);
+            }
+            return finishCall(start, invokeStart, returnValue);
+        }
+    }
+
+    /* package */ static class Static2 extends FixedArityJavaMethod {
+        public Static2(Method method, ExposeToLua annotation) {
+            super(method, annotation);
+        }
+
+        @Override
+        protected Varargs callFixed(LuaValue a, LuaValue b, LuaValue c) {
+            ensureBuffers();
+            long start = mMetrics.start();
+            if (convertsArgumentsDirectly(start)) {
+                Object returnValue;
+                try {
+                    returnValue = mInvoker.invokeLua2(null, a, b);
+                } catch (Throwable e) {
+                    throw directCallFailed(start, e);
+                }
+                return finishCall(start, 0, returnValue);
+            }
+            Object p0 = convertArg(0, a);
+            Object p1 = convertArg(1, b);
+            long invokeStart = mMetrics.timestamp(start);
+            Object returnValue;
+            try {
+                returnValue = mInvoker.invoke2(null, p0, p1);
+            } catch (Throwable e) {
+                mMetrics.recordError(start, invokeStart);
+                throw new LuaError(e);
+            }
+            return finishCall(start, invokeStart, returnValue);
+        }
+    }
+
+    /* package */ static class Static3 extends FixedArityJavaMethod {
+        public Static3(Method method, ExposeToLua annotation) {
+            super(method, annotation);
+        }
+
+        @Override
+        protected Varargs callFixed(LuaValue a, LuaValue b, LuaValue c) {
+            ensureBuffers();
+            long start = mMetrics.start();
+            if (convertsArgumentsDirectly(start)) {
+                Object returnValue;
+                try {
+                    returnValue = mInvoker.invokeLua3(null, a, b, c);
+                } catch (Throwable e) {
+                    throw directCallFailed(start, e);
+                }
+                return finishCall(start, 0, returnValue);
+            }
+            Object p0 = convertArg(0, a);
+            Object p1 = convertArg(1, b);
+            Object p2 = convertArg(2, c);
+            long invokeStart = mMetrics.timestamp(start);
+            Object returnValue;
+            try {
+                returnValue = mInvoker.invoke3(null, p0, p1, p2);
+            } catch (Throwable e) {
+                mMetrics.recordError(start, invokeStart);
+                throw new LuaError(e);
+            }
+            return finishCall(start, invokeStart, returnValue);
+        }
+    }
+
+    /* package */ static class Instance0 extends FixedArityJavaMethod {
+        public Instance0(Method method, ExposeToLua annotation) {
+            super(method, annotation);
+        }
+
+        @Override
+        protected Varargs callFixed(LuaValue a, LuaValue b, LuaValue c) {
+            Object thisObject = toJavaClass(a);
+            ensureBuffers();
+            long start = mMetrics.start();
+            long invokeStart = mMetrics.timestamp(start);
+            Object returnValue;
+            try {
+                returnValue = mInvoker.invoke0(thisObject);
+            } catch (Throwable e) {
+                mMetrics.recordError(start, invokeStart);
+                throw new LuaError(e);
+            }
+            return finishCall(start, invokeStart, returnValue);
+        }
+    }
+
+    /* package */ static class Instance1 extends FixedArityJavaMethod {
+        public Instance1(Method method, ExposeToLua annotation) {
+            super(method, annotation);
+        }
+
+        @Override
+        protected Varargs callFixed(LuaValue a, LuaValue b, LuaValue c) {
+            Object thisObject = toJavaClass(a);
+            ensureBuffers();
+            long start = mMetrics.start();
+            if (convertsArgumentsDirectly(start)) {
+                Object returnValue;
+                try {
+                    returnValue = mInvoker.invokeLua1(thisObject, b);
+                } catch (Throwable e) {
+                    throw directCallFailed(start, e);
+                }
+                return finishCall(start, 0, returnValue);
+            }
+            Object p0 = convertArg(0, b);
+            long invokeStart = mMetrics.timestamp(start);
+            Object returnValue;
+            try {
+                returnValue = mInvoker.invoke1(thisObject, p0);
+            } catch (Throwable e) {
+                mMetrics.recordError(start, invokeStart);
+                throw new LuaError(e);
+            }
+            return finishCall(start, invokeStart, returnValue);
+        }
+    }
+
+    /* package */ static class Instance2 extends FixedArityJavaMethod {
+        public Instance2(Method method, ExposeToLua annotation) {
+            super(method, annotation);
+        }
+
+        @Override
+        protected Varargs callFixed(LuaValue a, LuaValue b, LuaValue c) {
+            Object thisObject = toJavaClass(a);
+            ensureBuffers();
+            long start = mMetrics.start();
+            if (convertsArgumentsDirectly(start)) {
+                Object returnValue;
+                try {
+                    returnValue = mInvoker.invokeLua2(thisObject, b, c);
+                } catch (Throwable e) {
+                    throw directCallFailed(start, e);
+                }
+                return finishCall(start, 0, returnValue);
+            }
+            Object p0 = convertArg(0, b);
+            Object p1 = convertArg(1, c);
+            long invokeStart = mMetrics.timestamp(start);
+            Object returnValue;
+            try {
+                returnValue = mInvoker.invoke2(thisObject, p0, p1);
+            } catch (Throwable e) {
+                mMetrics.recordError(start, invokeStart);
+                throw new LuaError(e);
+            }
+            return finishCall(start, invokeStart, returnValue);
+        }
+    }
+}
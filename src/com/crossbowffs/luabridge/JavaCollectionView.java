@@ -0,0 +1,409 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.*;
+import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.ThreeArgFunction;
+import org.luaj.vm2.lib.TwoArgFunction;
+import org.luaj.vm2.lib.VarArgFunction;
+
+import java.lang.reflect.Array;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes a Java {@link List}, {@link Map}, or array to Lua without
+ * copying it. Elements are converted only when they are accessed from
+ * Lua, and changes are written straight through to the Java object.
+ *
+ * <p>
+ * Lists and arrays are indexed from 1 like Lua arrays, and can only be
+ * indexed by integers. Assigning to index {@code #list + 1} appends to
+ * a list, and assigning {@code nil} to the last index removes the last
+ * element.
+ *
+ * <p>
+ * Values assigned from Lua are converted to the element type passed to
+ * {@link #of(List, Class)}, {@link #of(Map, Class, Class)}, or the component
+ * type of the array, using {@link LuaUtils#bridgeLuaToJava(LuaValue, Class)}.
+ * Map keys are converted the same way. Where the type is {@link Object}
+ * (including views created without a type), values are converted using
+ * {@link LuaUtils#bridgeLuaToJava(LuaValue)}, except that integral numbers
+ * become {@link Integer}, e.g. {@code map[1] = 5} maps {@code 1} to {@code 5}
+ * as integers.
+ *
+ * <p>
+ * All views support {@code #view}, and can be iterated using
+ * {@code for k, v in view() do}. Views also implement the {@code __pairs}
+ * metamethod, but note that {@code pairs()} and {@code ipairs()} in
+ * LuaJ 3.0 only accept tables, so they cannot be used with views.
+ */
+public abstract class JavaCollectionView extends LuaUserdata {
+    private JavaCollectionView(Object obj, LuaTable metatable) {
+        super(obj, metatable);
+    }
+
+    /**
+     * Creates a view of the specified list, whose elements
+     * may be of any type.
+     *
+     * @param list The list to expose to Lua.
+     */
+    public static JavaCollectionView of(List<?> list) {
+        return new ListView(list, Object.class);
+    }
+
+    /**
+     * Creates a view of the specified list. Values assigned
+     * from Lua are converted to the element type.
+     *
+     * @param list The list to expose to Lua.
+     * @param elementType The type of the elements within the list.
+     */
+    public static <E> JavaCollectionView of(List<E> list, Class<E> elementType) {
+        return new ListView(list, elementType);
+    }
+
+    /**
+     * Creates a view of the specified map, whose keys and
+     * values may be of any type.
+     *
+     * @param map The map to expose to Lua.
+     */
+    public static JavaCollectionView of(Map<?, ?> map) {
+        return new MapView(map, Object.class, Object.class);
+    }
+
+    /**
+     * Creates a view of the specified map. Keys and values
+     * from Lua are converted to the key and value types.
+     *
+     * @param map The map to expose to Lua.
+     * @param keyType The type of the keys within the map.
+     * @param valueType The type of the values within the map.
+     */
+    public static <K, V> JavaCollectionView of(Map<K, V> map, Class<K> keyType, Class<V> valueType) {
+        return new MapView(map, keyType, valueType);
+    }
+
+    /**
+     * Creates a view of the specified array. Elements of primitive
+     * arrays are read and written without boxing.
+     *
+     * @param array The array to expose to Lua.
+     */
+    public static JavaCollectionView ofArray(Object array) {
+        if (!array.getClass().isArray()) {
+            throw new IllegalArgumentException("Not an array: " + array.getClass().getName());
+        }
+        return new ArrayView(array);
+    }
+
+    /**
+     * Converts a key of a list or array to an index, without
+     * checking its bounds. Unlike {@link LuaValue#checkint()}, this
+     * rejects strings and non-integral numbers.
+     */
+    protected static int toIndex(LuaValue key) {
+        if (!key.isinttype()) {
+            throw new LuaError("Java lists and arrays can only be indexed by integers, got " +
+                key.typename() + " '" + key.tojstring() + "'");
+        }
+        return key.toint();
+    }
+
+    /**
+     * Returns the converter for Lua values assigned to elements
+     * of the specified type. See the class documentation.
+     */
+    private static LuaConverter<Object> javaConverterFor(Class<?> type) {
+        if (type == Object.class) {
+            return UNTYPED_CONVERTER;
+        }
+        return LuaConverters.forElementType(type);
+    }
+
+    private static final LuaConverter<Object> UNTYPED_CONVERTER = new LuaConverter<Object>() {
+        @Override
+        public Object toJava(LuaValue luaValue) {
+            // Lua has no separate integer type, so integral numbers are
+            // assumed to be integers rather than doubles, e.g. map[1]
+            // looks up the Integer key 1
+            if (luaValue.isinttype()) {
+                return luaValue.toint();
+            }
+            return LuaUtils.bridgeLuaToJava(luaValue);
+        }
+
+        @Override
+        public LuaValue toLua(Object javaValue) {
+            return LuaUtils.bridgeJavaToLuaIn(javaValue);
+        }
+    };
+
+    /**
+     * Returns the value at the specified key, or {@code nil} if none.
+     */
+    protected abstract LuaValue getValue(LuaValue key);
+
+    /**
+     * Sets the value at the specified key.
+     */
+    protected abstract void setValue(LuaValue key, LuaValue value);
+
+    /**
+     * Returns the number of elements in the viewed object.
+     */
+    protected abstract int size();
+
+    /**
+     * Returns an iterator function as returned by {@code pairs()}.
+     */
+    protected Varargs pairs() {
+        // Index-based iteration, used by lists and arrays
+        return LuaValue.varargsOf(INDEXED_NEXT, this, LuaValue.ZERO);
+    }
+
+    private static final LuaFunction INDEXED_NEXT = new VarArgFunction() {
+        @Override
+        public Varargs invoke(Varargs args) {
+            JavaCollectionView view = (JavaCollectionView)args.arg1();
+            int index = args.checkint(2) + 1;
+            if (index > view.size()) {
+                return LuaValue.NIL;
+            }
+            return LuaValue.varargsOf(LuaConverters.toLuaNumber(index), view.getValue(LuaConverters.toLuaNumber(index)));
+        }
+    };
+
+    private static final LuaTable METATABLE = new LuaTable();
+
+    static {
+        METATABLE.rawset(LuaValue.INDEX, new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue view, LuaValue key) {
+                return ((JavaCollectionView)view).getValue(key);
+            }
+        });
+        METATABLE.rawset(LuaValue.NEWINDEX, new ThreeArgFunction() {
+            @Override
+            public LuaValue call(LuaValue view, LuaValue key, LuaValue value) {
+                ((JavaCollectionView)view).setValue(key, value);
+                return LuaValue.NONE;
+            }
+        });
+        METATABLE.rawset(LuaValue.LEN, new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue view) {
+                return LuaConverters.toLuaNumber(((JavaCollectionView)view).size());
+            }
+        });
+        VarArgFunction pairs = new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return ((JavaCollectionView)args.arg1()).pairs();
+            }
+        };
+        METATABLE.rawset("__pairs", pairs);
+        METATABLE.rawset(LuaValue.CALL, pairs);
+        METATABLE.rawset(LuaValue.TOSTRING, new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue view) {
+                return LuaValue.valueOf(view.touserdata().toString());
+            }
+        });
+    }
+
+    private static class ListView extends JavaCollectionView {
+        private final List<Object> mList;
+        private final LuaConverter<Object> mLuaConverter;
+        private final LuaConverter<Object> mJavaConverter;
+
+        @SuppressWarnings("unchecked")
+        public ListView(List<?> list, Class<?> elementType) {
+            super(list, METATABLE);
+            mList = (List<Object>)list;
+            mLuaConverter = LuaConverters.forReturnType(elementType);
+            mJavaConverter = javaConverterFor(elementType);
+        }
+
+        @Override
+        protected LuaValue getValue(LuaValue key) {
+            int index = toIndex(key);
+            if (index < 1 || index > mList.size()) {
+                return LuaValue.NIL;
+            }
+            return mLuaConverter.toLua(mList.get(index - 1));
+        }
+
+        @Override
+        protected void setValue(LuaValue key, LuaValue value) {
+            int index = toIndex(key);
+            int size = mList.size();
+            if (value.isnil()) {
+                if (size == 0 || index != size) {
+                    throw new LuaError("Can only remove the last element of a Java list");
+                }
+                mList.remove(size - 1);
+            } else if (index == size + 1) {
+                mList.add(mJavaConverter.toJava(value));
+            } else if (index >= 1 && index <= size) {
+                mList.set(index - 1, mJavaConverter.toJava(value));
+            } else {
+                throw new LuaError("Index out of bounds: " + index);
+            }
+        }
+
+        @Override
+        protected int size() {
+            return mList.size();
+        }
+    }
+
+    private static class MapView extends JavaCollectionView {
+        private final Map<Object, Object> mMap;
+        private final LuaConverter<Object> mKeyLuaConverter;
+        private final LuaConverter<Object> mKeyJavaConverter;
+        private final LuaConverter<Object> mValueLuaConverter;
+        private final LuaConverter<Object> mValueJavaConverter;
+
+        @SuppressWarnings("unchecked")
+        public MapView(Map<?, ?> map, Class<?> keyType, Class<?> valueType) {
+            super(map, METATABLE);
+            mMap = (Map<Object, Object>)map;
+            mKeyLuaConverter = LuaConverters.forReturnType(keyType);
+            mKeyJavaConverter = javaConverterFor(keyType);
+            mValueLuaConverter = LuaConverters.forReturnType(valueType);
+            mValueJavaConverter = javaConverterFor(valueType);
+        }
+
+        @Override
+        protected LuaValue getValue(LuaValue key) {
+            return mValueLuaConverter.toLua(mMap.get(mKeyJavaConverter.toJava(key)));
+        }
+
+        @Override
+        protected void setValue(LuaValue key, LuaValue value) {
+            Object javaKey = mKeyJavaConverter.toJava(key);
+            if (value.isnil()) {
+                mMap.remove(javaKey);
+            } else {
+                mMap.put(javaKey, mValueJavaConverter.toJava(value));
+            }
+        }
+
+        @Override
+        protected int size() {
+            return mMap.size();
+        }
+
+        @Override
+        protected Varargs pairs() {
+            // Maps can't look up the key following a given key, so
+            // we have to keep the iterator state in the function itself
+            final Iterator<Map.Entry<Object, Object>> iterator = mMap.entrySet().iterator();
+            LuaFunction next = new VarArgFunction() {
+                @Override
+                public Varargs invoke(Varargs args) {
+                    try {
+                        if (!iterator.hasNext()) {
+                            return LuaValue.NIL;
+                        }
+                        Map.Entry<Object, Object> entry = iterator.next();
+                        return LuaValue.varargsOf(
+                            mKeyLuaConverter.toLua(entry.getKey()),
+                            mValueLuaConverter.toLua(entry.getValue()));
+                    } catch (ConcurrentModificationException e) {
+                        throw new LuaError("Java map was modified during iteration");
+                    }
+                }
+            };
+            return LuaValue.varargsOf(next, this, LuaValue.NIL);
+        }
+    }
+
+    private static class ArrayView extends JavaCollectionView {
+        private final Object mArray;
+        private final LuaConverter<Object> mLuaConverter;
+        private final LuaConverter<Object> mJavaConverter;
+        private final int mLength;
+
+        public ArrayView(Object array) {
+            super(array, METATABLE);
+            Class<?> componentType = array.getClass().getComponentType();
+            mArray = array;
+            mLuaConverter = LuaConverters.forReturnType(componentType);
+            mJavaConverter = javaConverterFor(componentType);
+            mLength = Array.getLength(array);
+        }
+
+        private int checkIndex(LuaValue key) {
+            int index = toIndex(key);
+            if (index < 1 || index > mLength) {
+                throw new LuaError("Index out of bounds: " + index);
+            }
+            return index - 1;
+        }
+
+        @Override
+        protected LuaValue getValue(LuaValue key) {
+            int index = toIndex(key);
+            if (index < 1 || index > mLength) {
+                return LuaValue.NIL;
+            }
+            index--;
+
+            Object array = mArray;
+            if (array instanceof int[]) {
+                return LuaConverters.toLuaNumber(((int[])array)[index]);
+            } else if (array instanceof double[]) {
+                return LuaConverters.toLuaNumber(((double[])array)[index]);
+            } else if (array instanceof long[]) {
+                return LuaConverters.toLuaNumber(((long[])array)[index]);
+            } else if (array instanceof float[]) {
+                return LuaConverters.toLuaNumber(((float[])array)[index]);
+            } else if (array instanceof boolean[]) {
+                return LuaBoolean.valueOf(((boolean[])array)[index]);
+            } else if (array instanceof byte[]) {
+                return LuaConverters.toLuaNumber(((byte[])array)[index]);
+            } else if (array instanceof short[]) {
+                return LuaConverters.toLuaNumber(((short[])array)[index]);
+            } else if (array instanceof char[]) {
+                return LuaConverters.toLuaNumber(((char[])array)[index]);
+            } else {
+                return mLuaConverter.toLua(((Object[])array)[index]);
+            }
+        }
+
+        @Override
+        protected void setValue(LuaValue key, LuaValue value) {
+            int index = checkIndex(key);
+            Object array = mArray;
+            if (array instanceof int[]) {
+                ((int[])array)[index] = value.checkint();
+            } else if (array instanceof double[]) {
+                ((double[])array)[index] = value.checkdouble();
+            } else if (array instanceof long[]) {
+                ((long[])array)[index] = value.checklong();
+            } else if (array instanceof float[]) {
+                ((float[])array)[index] = (float)value.checkdouble();
+            } else if (array instanceof boolean[]) {
+                ((boolean[])array)[index] = value.checkboolean();
+            } else if (array instanceof byte[]) {
+                ((byte[])array)[index] = (byte)value.checkint();
+            } else if (array instanceof short[]) {
+                ((short[])array)[index] = (short)value.checkint();
+            } else if (array instanceof char[]) {
+                ((char[])array)[index] = (char)value.checkint();
+            } else {
+                ((Object[])array)[index] = mJavaConverter.toJava(value);
+            }
+        }
+
+        @Override
+        protected int size() {
+            return mLength;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaValue;
+
+import java.lang.reflect.Method;
+
+/**
+ * Strategy used by {@link ExposedJavaMethod} to call the underlying
+ * Java method. The invoker is created once per method, so any
+ * expensive setup work (e.g. creating method handles) is only
+ * paid for the first time the method is called.
+ */
+/* package */ abstract class JavaMethodInvoker {
+    private static final Object[] EMPTY_PARAMS = new Object[0];
+
+    /**
+     * Calls the method with the specified arguments. Exceptions thrown
+     * by the target method are propagated directly, without being
+     * wrapped in an {@link java.lang.reflect.InvocationTargetException}.
+     *
+     * @param thisObject The object to call the method on, or {@code null}
+     *                   if the method is static.
+     * @param parameters The arguments to pass to the method. The length of
+     *                   this array must match the number of parameters.
+     */
+    public abstract Object invoke(Object thisObject, Object[] parameters) throws Throwable;
+
+    /**
+     * Returns whether {@link #invoke(Object, Object[])} and its variants
+     * return values that were already converted to {@link org.luaj.vm2.LuaValue},
+     * instead of the values returned by the method.
+     */
+    public boolean convertsReturnValue() {
+        return false;
+    }
+
+    /**
+     * Calls a method that takes no parameters. Invokers that can
+     * call methods without allocating an argument array should
+     * override this and the other fixed-arity variants.
+     */
+    public Object invoke0(Object thisObject) throws Throwable {
+        return invoke(thisObject, EMPTY_PARAMS);
+    }
+
+    /**
+     * Calls a method that takes 1 parameter.
+     */
+    public Object invoke1(Object thisObject, Object p0) throws Throwable {
+        return invoke(thisObject, new Object[] {p0});
+    }
+
+    /**
+     * Calls a method that takes 2 parameters.
+     */
+    public Object invoke2(Object thisObject, Object p0, Object p1) throws Throwable {
+        return invoke(thisObject, new Object[] {p0, p1});
+    }
+
+    /**
+     * Calls a method that takes 3 parameters.
+     */
+    public Object invoke3(Object thisObject, Object p0, Object p1, Object p2) throws Throwable {
+        return invoke(thisObject, new Object[] {p0, p1, p2});
+    }
+
+    /**
+     * Returns whether {@link #invokeLua1(Object, LuaValue)} and its
+     * variants can be used. These convert the arguments from Lua
+     * themselves, so that primitive arguments are never boxed, and
+     * wrap exceptions thrown by the method in a {@link org.luaj.vm2.LuaError}.
+     */
+    public boolean convertsArguments() {
+        return false;
+    }
+
+    /**
+     * Converts the argument and calls a method that takes 1 parameter.
+     * Only supported if {@link #convertsArguments()} returns true.
+     */
+    public Object invokeLua1(Object thisObject, LuaValue a) throws Throwable {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Converts the arguments and calls a method that takes 2 parameters.
+     * Only supported if {@link #convertsArguments()} returns true.
+     */
+    public Object invokeLua2(Object thisObject, LuaValue a, LuaValue b) throws Throwable {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Converts the arguments and calls a method that takes 3 parameters.
+     * Only supported if {@link #convertsArguments()} returns true.
+     */
+    public Object invokeLua3(Object thisObject, LuaValue a, LuaValue b, LuaValue c) throws Throwable {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Creates the fastest available invoker for the specified method.
+     * If method handles are not supported on the current platform,
+     * this falls back to plain reflection.
+     *
+     * @param method The method to create an invoker for. This must
+     *               already have been made accessible.
+     */
+    public static JavaMethodInvoker create(Method method) {
+        try {
+            return MethodHandleInvoker.fromMethod(method);
+        } catch (LinkageError e) {
+            // java.lang.invoke is not available (e.g. older Android versions)
+            return new ReflectiveMethodInvoker(method);
+        } catch (IllegalAccessException e) {
+            return new ReflectiveMethodInvoker(method);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.crossbowffs.luabridge;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A snapshot of a latency histogram. Latencies are counted in
+ * buckets whose bounds are powers of two nanoseconds, so percentiles
+ * are accurate to within a factor of two. This keeps recording a
+ * latency down to a single atomic increment.
+ */
+public final class LatencyHistogram {
+    /**
+     * The number of buckets. Bucket {@code i} counts latencies
+     * of less than {@code 2^i} nanoseconds, but at least
+     * {@code 2^(i-1)} nanoseconds.
+     */
+    public static final int BUCKET_COUNT = 64;
+
+    private final long[] mBuckets;
+    private final long mCount;
+    private final long mTotalNanos;
+
+    /* package */ LatencyHistogram(long[] buckets, long totalNanos) {
+        mBuckets = buckets;
+        mTotalNanos = totalNanos;
+        long count = 0;
+        for (long bucket : buckets) {
+            count += bucket;
+        }
+        mCount = count;
+    }
+
+    /* package */ static int bucketOf(long nanos) {
+        return nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /* package */ static LatencyHistogram snapshot(AtomicLongArray buckets, long totalNanos) {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts[i] = buckets.get(i);
+        }
+        return new LatencyHistogram(counts, totalNanos);
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the sum of all recorded latencies, in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return mTotalNanos;
+    }
+
+    /**
+     * Returns the mean latency, in nanoseconds.
+     */
+    public double getMeanNanos() {
+        return mCount == 0 ? 0 : (double)mTotalNanos / mCount;
+    }
+
+    /**
+     * Returns the median latency, in nanoseconds.
+     */
+    public long getMedianNanos() {
+        return getPercentileNanos(50);
+    }
+
+    /**
+     * Returns the 99th percentile latency, in nanoseconds.
+     */
+    public long getP99Nanos() {
+        return getPercentileNanos(99);
+    }
+
+    /**
+     * Returns an upper bound of the specified percentile of the
+     * recorded latencies, in nanoseconds.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     */
+    public long getPercentileNanos(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(mCount * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += mBuckets[i];
+            if (seen >= rank && seen > 0) {
+                return i == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the number of latencies in each bucket.
+     * See {@link #BUCKET_COUNT} for the bounds of each bucket.
+     */
+    public long[] getBuckets() {
+        return mBuckets.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + mCount + ", mean=" + (long)getMeanNanos() +
+            "ns, p50<" + getMedianNanos() + "ns, p99<" + getP99Nanos() + "ns}";
+    }
+}
@@ -0,0 +1,308 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.*;
+
+/**
+ * Fast, non-boxing conversions between Lua tables and Java arrays of
+ * primitive types and {@link String}. Unlike {@link LuaUtils#toArray(LuaTable, Class)}
+ * and {@link LuaUtils#toTable(Object)}, the {@code copyTo*} methods fill
+ * an existing array or table, so no new one has to be allocated.
+ *
+ * <p>
+ * Elements are converted using the same rules as
+ * {@link LuaUtils#bridgeLuaToJava(LuaValue, Class)} and
+ * {@link LuaUtils#bridgeJavaToLuaIn(Object)}.
+ */
+public final class LuaArrays {
+    private LuaArrays() { }
+
+    /**
+     * Copies the array part of {@code src} to {@code dest}. At most
+     * {@code dest.length} elements are copied.
+     *
+     * @param src The table to copy from.
+     * @param dest The array to copy to.
+     * @return The number of elements copied.
+     */
+    public static int copyToArray(LuaTable src, int[] dest) {
+        int length = Math.min(src.length(), dest.length);
+        for (int i = 0; i < length; ++i) {
+            dest[i] = src.get(i + 1).checkint();
+        }
+        return length;
+    }
+
+    /**
+     * Copies the elements of {@code src} to the array part of {@code dest},
+     * starting at index 1. Existing elements after the end of {@code src}
+     * are left untouched.
+     *
+     * @param src The array to copy from.
+     * @param dest The table to copy to.
+     * @return The table that was copied to.
+     */
+    public static LuaTable copyToTable(int[] src, LuaTable dest) {
+        for (int i = 0; i < src.length; ++i) {
+            dest.rawset(i + 1, LuaConverters.toLuaNumber(src[i]));
+        }
+        return dest;
+    }
+
+    /**
+     * Copies the array part of {@code src} to {@code dest}. At most
+     * {@code dest.length} elements are copied.
+     *
+     * @param src The table to copy from.
+     * @param dest The array to copy to.
+     * @return The number of elements copied.
+     */
+    public static int copyToArray(LuaTable src, long[] dest) {
+        int length = Math.min(src.length(), dest.length);
+        for (int i = 0; i < length; ++i) {
+            dest[i] = src.get(i + 1).checklong();
+        }
+        return length;
+    }
+
+    /**
+     * Copies the elements of {@code src} to the array part of {@code dest},
+     * starting at index 1. Existing elements after the end of {@code src}
+     * are left untouched.
+     *
+     * @param src The array to copy from.
+     * @param dest The table to copy to.
+     * @return The table that was copied to.
+     */
+    public static LuaTable copyToTable(long[] src, LuaTable dest) {
+        for (int i = 0; i < src.length; ++i) {
+            dest.rawset(i + 1, LuaConverters.toLuaNumber(src[i]));
+        }
+        return dest;
+    }
+
+    /**
+     * Copies the array part of {@code src} to {@code dest}. At most
+     * {@code dest.length} elements are copied.
+     *
+     * @param src The table to copy from.
+     * @param dest The array to copy to.
+     * @return The number of elements copied.
+     */
+    public static int copyToArray(LuaTable src, double[] dest) {
+        int length = Math.min(src.length(), dest.length);
+        for (int i = 0; i < length; ++i) {
+            dest[i] = src.get(i + 1).checkdouble();
+        }
+        return length;
+    }
+
+    /**
+     * Copies the elements of {@code src} to the array part of {@code dest},
+     * starting at index 1. Existing elements after the end of {@code src}
+     * are left untouched.
+     *
+     * @param src The array to copy from.
+     * @param dest The table to copy to.
+     * @return The table that was copied to.
+     */
+    public static LuaTable copyToTable(double[] src, LuaTable dest) {
+        for (int i = 0; i < src.length; ++i) {
+            dest.rawset(i + 1, LuaConverters.toLuaNumber(src[i]));
+        }
+        return dest;
+    }
+
+    /**
+     * Copies the array part of {@code src} to {@code dest}. At most
+     * {@code dest.length} elements are copied.
+     *
+     * @param src The table to copy from.
+     * @param dest The array to copy to.
+     * @return The number of elements copied.
+     */
+    public static int copyToArray(LuaTable src, float[] dest) {
+        int length = Math.min(src.length(), dest.length);
+        for (int i = 0; i < length; ++i) {
+            dest[i] = (float)src.get(i + 1).checkdouble();
+        }
+        return length;
+    }
+
+    /**
+     * Copies the elements of {@code src} to the array part of {@code dest},
+     * starting at index 1. Existing elements after the end of {@code src}
+     * are left untouched.
+     *
+     * @param src The array to copy from.
+     * @param dest The table to copy to.
+     * @return The table that was copied to.
+     */
+    public static LuaTable copyToTable(float[] src, LuaTable dest) {
+        for (int i = 0; i < src.length; ++i) {
+            dest.rawset(i + 1, LuaConverters.toLuaNumber(src[i]));
+        }
+        return dest;
+    }
+
+    /**
+     * Copies the array part of {@code src} to {@code dest}. At most
+     * {@code dest.length} elements are copied.
+     *
+     * @param src The table to copy from.
+     * @param dest The array to copy to.
+     * @return The number of elements copied.
+     */
+    public static int copyToArray(LuaTable src, short[] dest) {
+        int length = Math.min(src.length(), dest.length);
+        for (int i = 0; i < length; ++i) {
+            dest[i] = (short)src.get(i + 1).checkint();
+        }
+        return length;
+    }
+
+    /**
+     * Copies the elements of {@code src} to the array part of {@code dest},
+     * starting at index 1. Existing elements after the end of {@code src}
+     * are left untouched.
+     *
+     * @param src The array to copy from.
+     * @param dest The table to copy to.
+     * @return The table that was copied to.
+     */
+    public static LuaTable copyToTable(short[] src, LuaTable dest) {
+        for (int i = 0; i < src.length; ++i) {
+            dest.rawset(i + 1, LuaConverters.toLuaNumber(src[i]));
+        }
+        return dest;
+    }
+
+    /**
+     * Copies the array part of {@code src} to {@code dest}. At most
+     * {@code dest.length} elements are copied.
+     *
+     * @param src The table to copy from.
+     * @param dest The array to copy to.
+     * @return The number of elements copied.
+     */
+    public static int copyToArray(LuaTable src, byte[] dest) {
+        int length = Math.min(src.length(), dest.length);
+        for (int i = 0; i < length; ++i) {
+            dest[i] = (byte)src.get(i + 1).checkint();
+        }
+        return length;
+    }
+
+    /**
+     * Copies the elements of {@code src} to the array part of {@code dest},
+     * starting at index 1. Existing elements after the end of {@code src}
+     * are left untouched.
+     *
+     * @param src The array to copy from.
+     * @param dest The table to copy to.
+     * @return The table that was copied to.
+     */
+    public static LuaTable copyToTable(byte[] src, LuaTable dest) {
+        for (int i = 0; i < src.length; ++i) {
+            dest.rawset(i + 1, LuaConverters.toLuaNumber(src[i]));
+        }
+        return dest;
+    }
+
+    /**
+     * Copies the array part of {@code src} to {@code dest}. At most
+     * {@code dest.length} elements are copied.
+     *
+     * @param src The table to copy from.
+     * @param dest The array to copy to.
+     * @return The number of elements copied.
+     */
+    public static int copyToArray(LuaTable src, char[] dest) {
+        int length = Math.min(src.length(), dest.length);
+        for (int i = 0; i < length; ++i) {
+            dest[i] = (char)src.get(i + 1).checkint();
+        }
+        return length;
+    }
+
+    /**
+     * Copies the elements of {@code src} to the array part of {@code dest},
+     * starting at index 1. Existing elements after the end of {@code src}
+     * are left untouched.
+     *
+     * @param src The array to copy from.
+     * @param dest The table to copy to.
+     * @return The table that was copied to.
+     */
+    public static LuaTable copyToTable(char[] src, LuaTable dest) {
+        for (int i = 0; i < src.length; ++i) {
+            dest.rawset(i + 1, LuaConverters.toLuaNumber(src[i]));
+        }
+        return dest;
+    }
+
+    /**
+     * Copies the array part of {@code src} to {@code dest}. At most
+     * {@code dest.length} elements are copied.
+     *
+     * @param src The table to copy from.
+     * @param dest The array to copy to.
+     * @return The number of elements copied.
+     */
+    public static int copyToArray(LuaTable src, boolean[] dest) {
+        int length = Math.min(src.length(), dest.length);
+        for (int i = 0; i < length; ++i) {
+            dest[i] = src.get(i + 1).checkboolean();
+        }
+        return length;
+    }
+
+    /**
+     * Copies the elements of {@code src} to the array part of {@code dest},
+     * starting at index 1. Existing elements after the end of {@code src}
+     * are left untouched.
+     *
+     * @param src The array to copy from.
+     * @param dest The table to copy to.
+     * @return The table that was copied to.
+     */
+    public static LuaTable copyToTable(boolean[] src, LuaTable dest) {
+        for (int i = 0; i < src.length; ++i) {
+            dest.rawset(i + 1, LuaBoolean.valueOf(src[i]));
+        }
+        return dest;
+    }
+
+    /**
+     * Copies the array part of {@code src} to {@code dest}. At most
+     * {@code dest.length} elements are copied.
+     *
+     * @param src The table to copy from.
+     * @param dest The array to copy to.
+     * @return The number of elements copied.
+     */
+    public static int copyToArray(LuaTable src, String[] dest) {
+        int length = Math.min(src.length(), dest.length);
+        for (int i = 0; i < length; ++i) {
+            LuaValue v = src.get(i + 1);
+            dest[i] = v.isnil() ? null : LuaConverters.toJavaString(v);
+        }
+        return length;
+    }
+
+    /**
+     * Copies the elements of {@code src} to the array part of {@code dest},
+     * starting at index 1. Existing elements after the end of {@code src}
+     * are left untouched.
+     *
+     * @param src The array to copy from.
+     * @param dest The table to copy to.
+     * @return The table that was copied to.
+     */
+    public static LuaTable copyToTable(String[] src, LuaTable dest) {
+        for (int i = 0; i < src.length; ++i) {
+            String x = src[i];
+            dest.rawset(i + 1, x == null ? LuaValue.NIL : LuaConverters.toLuaString(x));
+        }
+        return dest;
+    }
+}
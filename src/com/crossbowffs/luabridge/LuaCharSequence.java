@@ -0,0 +1,86 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaString;
+
+/**
+ * A {@link CharSequence} view of a {@link LuaString}, passed to exposed
+ * methods that take a {@link CharSequence}. ASCII strings are read
+ * directly from the underlying bytes; other strings are decoded from
+ * UTF-8 the first time their characters are accessed. Passing the
+ * sequence back to Lua returns the original string without encoding
+ * it again.
+ */
+/* package */ final class LuaCharSequence implements CharSequence {
+    private static final int UNKNOWN = 0;
+    private static final int ASCII = 1;
+    private static final int NON_ASCII = 2;
+
+    private final LuaString mLuaString;
+    private int mEncoding = UNKNOWN;
+    private String mJavaString;
+
+    public LuaCharSequence(LuaString luaString) {
+        mLuaString = luaString;
+    }
+
+    public LuaString getLuaString() {
+        return mLuaString;
+    }
+
+    private boolean isAscii() {
+        int encoding = mEncoding;
+        if (encoding == UNKNOWN) {
+            encoding = ASCII;
+            byte[] bytes = mLuaString.m_bytes;
+            int end = mLuaString.m_offset + mLuaString.m_length;
+            for (int i = mLuaString.m_offset; i < end; ++i) {
+                if (bytes[i] < 0) {
+                    encoding = NON_ASCII;
+                    break;
+                }
+            }
+            mEncoding = encoding;
+        }
+        return encoding == ASCII;
+    }
+
+    @Override
+    public int length() {
+        if (isAscii()) {
+            return mLuaString.m_length;
+        }
+        return toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (isAscii()) {
+            if (index < 0 || index >= mLuaString.m_length) {
+                throw new IndexOutOfBoundsException("index: " + index + ", length: " + mLuaString.m_length);
+            }
+            return (char)mLuaString.m_bytes[mLuaString.m_offset + index];
+        }
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (isAscii()) {
+            if (start < 0 || end > mLuaString.m_length || start > end) {
+                throw new IndexOutOfBoundsException("start: " + start + ", end: " + end + ", length: " + mLuaString.m_length);
+            }
+            return new LuaCharSequence(mLuaString.substring(start, end));
+        }
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        String javaString = mJavaString;
+        if (javaString == null) {
+            javaString = LuaConverters.toJavaString(mLuaString);
+            mJavaString = javaString;
+        }
+        return javaString;
+    }
+}
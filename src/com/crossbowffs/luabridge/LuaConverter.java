@@ -0,0 +1,35 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaValue;
+
+/**
+ * Converts values of a single Java type to and from Lua. Converters
+ * are resolved once per parameter and return type when a method is
+ * exposed, so that calls do not have to look up the conversion logic
+ * every time.
+ *
+ * <p>
+ * Register custom converters using {@link LuaConverters#register(Class, LuaConverter)}.
+ * Converters registered for non-primitive types never see {@code nil}
+ * or {@code null} values - those are always converted to {@code null}
+ * and {@code nil} respectively.
+ *
+ * @param <T> The Java type handled by this converter.
+ */
+public abstract class LuaConverter<T> {
+    /**
+     * Converts a Lua value to the Java type handled by this converter.
+     * If the value cannot be converted, a {@link org.luaj.vm2.LuaError}
+     * should be thrown.
+     *
+     * @param luaValue The value to convert.
+     */
+    public abstract T toJava(LuaValue luaValue);
+
+    /**
+     * Converts a Java value to its Lua equivalent.
+     *
+     * @param javaValue The value to convert.
+     */
+    public abstract LuaValue toLua(T javaValue);
+}
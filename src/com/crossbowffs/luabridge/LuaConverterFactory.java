@@ -0,0 +1,15 @@
+package com.crossbowffs.luabridge;
+
+/**
+ * Creates converters for a family of Java types, for example all enum
+ * types. Register factories using {@link LuaConverters#registerFactory(LuaConverterFactory)}.
+ */
+public interface LuaConverterFactory {
+    /**
+     * Returns a converter for the specified type, or {@code null}
+     * if this factory does not handle the type.
+     *
+     * @param type The Java type to create a converter for.
+     */
+    <T> LuaConverter<T> create(Class<T> type);
+}
@@ -0,0 +1,712 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of {@link LuaConverter} instances. Each Java type is resolved
+ * to a converter once and then cached. Converters are looked up in
+ * the following order:
+ * <p>
+ * <ol>
+ *     <li>Converters registered for exactly that type</li>
+ *     <li>Converters created by registered factories</li>
+ *     <li>Built-in converters for strings and primitive types. Besides
+ *     {@link String}, strings may be passed as {@link LuaString},
+ *     {@link CharSequence}, {@code byte[]} and {@link ByteBuffer},
+ *     which are not decoded from UTF-8</li>
+ *     <li>{@link LuaValue} subclasses, which are passed through</li>
+ *     <li>Arrays, which are converted to and from tables</li>
+ *     <li>{@link CompletionStage} and its subtypes, which are passed
+ *     to Lua as userdata. Parameters of these types also accept any
+ *     other value, wrapped in a completed future. Exposed methods with
+ *     these return types instead wait for the result using
+ *     {@link LuaScheduler#await(CompletionStage)}</li>
+ *     <li>Interfaces marked with {@link LuaInterface}, which are
+ *     implemented by Lua functions and tables using {@link LuaProxy}</li>
+ *     <li>Any other type, which is wrapped as a {@link LuaUserdata}, or
+ *     as an {@link ExposedJavaClass} if auto-wrapping is enabled</li>
+ * </ol>
+ *
+ * <p>
+ * Converters should be registered before any classes using the
+ * affected types are exposed, since exposed methods resolve
+ * their converters only once.
+ *
+ * <p>
+ * Conversions of short strings are cached, so that strings passed
+ * between Lua and Java repeatedly are not encoded or decoded to and
+ * from UTF-8 every time. See {@link #setStringCacheSize(int)}.
+ * Likewise, numbers converted to Lua reuse cached {@link LuaInteger}
+ * and {@link LuaDouble} objects where possible. See
+ * {@link #setIntegerCacheRange(int, int)} and
+ * {@link #setDoubleCacheConstants(double...)}.
+ */
+public final class LuaConverters {
+    private static final Map<Class<?>, LuaConverter<?>> sBuiltinConverters = new HashMap<Class<?>, LuaConverter<?>>();
+    private static final Map<Class<?>, LuaConverter<?>> sConverters = new ConcurrentHashMap<Class<?>, LuaConverter<?>>();
+    private static final List<LuaConverterFactory> sFactories = new CopyOnWriteArrayList<LuaConverterFactory>();
+    private static volatile ConverterCache sCache = new ConverterCache();
+
+    /**
+     * The default number of strings cached by the string cache.
+     */
+    public static final int DEFAULT_STRING_CACHE_SIZE = 1024;
+    private static volatile StringCache sStringCache = new StringCache(DEFAULT_STRING_CACHE_SIZE);
+
+    /**
+     * The smallest integer cached by default.
+     */
+    public static final int DEFAULT_INTEGER_CACHE_MIN = -1024;
+
+    /**
+     * The largest integer cached by default.
+     */
+    public static final int DEFAULT_INTEGER_CACHE_MAX = 4095;
+
+    // Common fractions and the special values, which LuaJ
+    // allocates a new object for every time
+    private static final double[] DEFAULT_DOUBLE_CACHE_CONSTANTS = {
+        0.5, -0.5, 0.25, -0.25, 0.75, -0.75, 1.5, -1.5, 0.1,
+        Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+    };
+
+    // Integer ranges are limited so that a careless range
+    // cannot allocate an array of gigabytes
+    private static final int MAX_INTEGER_CACHE_SIZE = 1 << 20;
+
+    private static volatile NumberCache sNumberCache = new NumberCache(
+        DEFAULT_INTEGER_CACHE_MIN, DEFAULT_INTEGER_CACHE_MAX, DEFAULT_DOUBLE_CACHE_CONSTANTS);
+
+    private LuaConverters() { }
+
+    private static class ConverterCache extends ClassValue<LuaConverter<?>> {
+        @Override
+        protected LuaConverter<?> computeValue(Class<?> type) {
+            LuaConverter<?> converter = resolve(type);
+            if (converter == null) {
+                converter = new UserdataConverter<Object>(type);
+            }
+            return type.isPrimitive() ? converter : new NullableConverter<Object>(converter);
+        }
+    }
+
+    /**
+     * Registers a converter for the specified type. This overrides
+     * the built-in conversion logic for that type, if any. Primitive
+     * types cannot be overridden.
+     *
+     * @param type The Java type to register the converter for.
+     * @param converter The converter to use for that type.
+     */
+    public static <T> void register(Class<T> type, LuaConverter<T> converter) {
+        if (type.isPrimitive()) {
+            throw new IllegalArgumentException("Cannot override converter for primitive type: " + type);
+        }
+        sConverters.put(type, converter);
+        sCache = new ConverterCache();
+    }
+
+    /**
+     * Registers a factory that creates converters for a family of types.
+     * Factories are consulted in the order they were registered, after
+     * converters registered for an exact type.
+     *
+     * @param factory The factory to register.
+     */
+    public static void registerFactory(LuaConverterFactory factory) {
+        sFactories.add(factory);
+        sCache = new ConverterCache();
+    }
+
+    /**
+     * Sets the number of strings cached by the string cache, which is
+     * rounded up to a power of two. Only strings of up to 64 characters
+     * are cached. Pass 0 to disable the cache. This discards all
+     * currently cached strings and statistics.
+     *
+     * @param size The number of strings to cache.
+     */
+    public static void setStringCacheSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid string cache size: " + size);
+        }
+        sStringCache = size == 0 ? null : new StringCache(size);
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the string cache. Hits
+     * and misses are only counted while {@link LuaMetrics} are enabled.
+     */
+    public static StringCacheStats getStringCacheStats() {
+        StringCache cache = sStringCache;
+        if (cache == null) {
+            return new StringCacheStats(0, 0, 0, 0);
+        }
+        return cache.getStats();
+    }
+
+    /* package */ static void resetStringCacheStats() {
+        StringCache cache = sStringCache;
+        if (cache != null) {
+            cache.resetStats();
+        }
+    }
+
+    /**
+     * Sets the range of integers for which {@link LuaInteger} objects
+     * are cached when converting numbers to Lua. Values are cached the
+     * first time they are converted. The range may include at most
+     * 2<sup>20</sup> values. This discards all currently cached numbers
+     * and statistics. The default range is from
+     * {@link #DEFAULT_INTEGER_CACHE_MIN} to {@link #DEFAULT_INTEGER_CACHE_MAX}.
+     *
+     * @param min The smallest integer to cache.
+     * @param max The largest integer to cache.
+     */
+    public static void setIntegerCacheRange(int min, int max) {
+        if (min > max || (long)max - min + 1 > MAX_INTEGER_CACHE_SIZE) {
+            throw new IllegalArgumentException("Invalid integer cache range: " + min + " to " + max);
+        }
+        NumberCache cache = sNumberCache;
+        sNumberCache = new NumberCache(min, max, cache.getDoubleConstants());
+    }
+
+    /**
+     * Sets the non-integral numbers for which {@link LuaDouble} objects
+     * are cached when converting numbers to Lua. By default, a few
+     * common fractions, {@code NaN} and the infinities are cached.
+     * Integral values are ignored, since they are converted to integers.
+     * This discards all currently cached numbers and statistics.
+     *
+     * @param constants The numbers to cache.
+     */
+    public static void setDoubleCacheConstants(double... constants) {
+        NumberCache cache = sNumberCache;
+        sNumberCache = new NumberCache(cache.getIntegerMin(), cache.getIntegerMax(), constants.clone());
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the number cache. Hits
+     * and misses are only counted while {@link LuaMetrics} are enabled.
+     */
+    public static NumberCacheStats getNumberCacheStats() {
+        return sNumberCache.getStats();
+    }
+
+    /* package */ static void resetNumberCacheStats() {
+        sNumberCache.resetStats();
+    }
+
+    /**
+     * Converts an integer to a Lua number, using the number cache.
+     */
+    /* package */ static LuaValue toLuaNumber(int javaValue) {
+        return sNumberCache.toLua(javaValue);
+    }
+
+    /**
+     * Converts a long to a Lua number, using the number cache.
+     */
+    /* package */ static LuaValue toLuaNumber(long javaValue) {
+        return sNumberCache.toLua(javaValue);
+    }
+
+    /**
+     * Converts a double to a Lua number, using the number cache.
+     */
+    /* package */ static LuaValue toLuaNumber(double javaValue) {
+        return sNumberCache.toLua(javaValue);
+    }
+
+    /**
+     * Converts a Lua string to a Java string, using the string cache.
+     */
+    /* package */ static String toJavaString(LuaString luaString) {
+        StringCache cache = sStringCache;
+        if (cache == null) {
+            return luaString.tojstring();
+        }
+        return cache.toJava(luaString);
+    }
+
+    /**
+     * Converts a Lua string or number to a Java string, using
+     * the string cache. Throws if the value is of any other type.
+     */
+    /* package */ static String toJavaString(LuaValue luaValue) {
+        if (luaValue.type() == LuaValue.TSTRING) {
+            return toJavaString((LuaString)luaValue);
+        }
+        return luaValue.checkjstring();
+    }
+
+    /**
+     * Converts a Java string to a Lua string, using the string cache.
+     */
+    /* package */ static LuaString toLuaString(String javaString) {
+        StringCache cache = sStringCache;
+        if (cache == null) {
+            return LuaString.valueOf(javaString);
+        }
+        return cache.toLua(javaString);
+    }
+
+    /**
+     * Returns the converter for the specified type. For non-primitive
+     * types, the returned converter maps {@code nil} to {@code null}
+     * and vice versa.
+     *
+     * @param type The Java type to get the converter for.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> LuaConverter<T> forType(Class<T> type) {
+        return (LuaConverter<T>)sCache.get(type);
+    }
+
+    /**
+     * Returns the converter to use for values returned from a method
+     * with the specified declared return type. Unlike {@link #forType(Class)},
+     * if there is no specific converter for the type, the conversion
+     * is chosen based on the runtime type of each returned value,
+     * using {@link LuaUtils#bridgeJavaToLuaIn(Object)}.
+     *
+     * @param type The declared return type of the method.
+     */
+    @SuppressWarnings("unchecked")
+    /* package */ static LuaConverter<Object> forReturnType(Class<?> type) {
+        LuaConverter<?> converter = resolve(type);
+        if (converter == null) {
+            return DynamicConverter.INSTANCE;
+        }
+        return (LuaConverter<Object>)(type.isPrimitive() ? converter : forType(type));
+    }
+
+    /**
+     * Returns the converter to use for Lua values stored in a collection
+     * with the specified element type. This is the same as
+     * {@link #forType(Class)}, and so checks the type of each value,
+     * except that any value is accepted for {@link Object} and converted
+     * using {@link LuaUtils#bridgeLuaToJava(LuaValue)}.
+     *
+     * @param type The declared element type of the collection.
+     */
+    @SuppressWarnings("unchecked")
+    /* package */ static LuaConverter<Object> forElementType(Class<?> type) {
+        if (type == Object.class) {
+            return DynamicConverter.INSTANCE;
+        }
+        return (LuaConverter<Object>)forType(type);
+    }
+
+    /**
+     * Converts a Java value using the converter for its runtime type.
+     */
+    @SuppressWarnings("unchecked")
+    /* package */ static LuaValue toLua(Object javaValue) {
+        LuaConverter<Object> converter = (LuaConverter<Object>)forType(javaValue.getClass());
+        return converter.toLua(javaValue);
+    }
+
+    /**
+     * Returns whether the conversion for the specified type was
+     * customized using {@link #register(Class, LuaConverter)} or
+     * {@link #registerFactory(LuaConverterFactory)}. The Lua types
+     * accepted by such converters cannot be known in advance.
+     */
+    /* package */ static boolean isCustomType(Class<?> type) {
+        if (sConverters.containsKey(type)) {
+            return true;
+        }
+        for (LuaConverterFactory factory : sFactories) {
+            if (factory.create(type) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static LuaConverter<?> resolve(Class<?> type) {
+        LuaConverter<?> converter = sConverters.get(type);
+        if (converter != null) {
+            return converter;
+        }
+
+        for (LuaConverterFactory factory : sFactories) {
+            converter = factory.create(type);
+            if (converter != null) {
+                return converter;
+            }
+        }
+
+        converter = sBuiltinConverters.get(type);
+        if (converter != null) {
+            return converter;
+        } else if (LuaValue.class.isAssignableFrom(type)) {
+            return new LuaValueConverter<LuaValue>(type);
+        } else if (type.isArray()) {
+            return new ArrayConverter(type.getComponentType());
+        } else if (CompletionStage.class.isAssignableFrom(type)) {
+            return new FutureConverter(type);
+        } else if (type.isInterface() && type.isAnnotationPresent(LuaInterface.class)) {
+            return new InterfaceConverter<Object>(type);
+        } else {
+            return null;
+        }
+    }
+
+    private static void registerBuiltin(Class<?> primitiveType, Class<?> boxedType, LuaConverter<?> converter) {
+        sBuiltinConverters.put(primitiveType, converter);
+        sBuiltinConverters.put(boxedType, converter);
+    }
+
+    static {
+        sBuiltinConverters.put(String.class, new LuaConverter<String>() {
+            @Override
+            public String toJava(LuaValue luaValue) {
+                return toJavaString(luaValue);
+            }
+
+            @Override
+            public LuaValue toLua(String javaValue) {
+                return toLuaString(javaValue);
+            }
+        });
+
+        sBuiltinConverters.put(LuaString.class, new LuaConverter<LuaString>() {
+            @Override
+            public LuaString toJava(LuaValue luaValue) {
+                return luaValue.checkstring();
+            }
+
+            @Override
+            public LuaValue toLua(LuaString javaValue) {
+                return javaValue;
+            }
+        });
+
+        LuaConverter<CharSequence> charSequenceConverter = new LuaConverter<CharSequence>() {
+            @Override
+            public CharSequence toJava(LuaValue luaValue) {
+                if (luaValue.type() == LuaValue.TSTRING) {
+                    return new LuaCharSequence((LuaString)luaValue);
+                } else if (luaValue.isuserdata(CharSequence.class)) {
+                    return (CharSequence)luaValue.touserdata();
+                }
+                return luaValue.checkjstring();
+            }
+
+            @Override
+            public LuaValue toLua(CharSequence javaValue) {
+                if (javaValue instanceof LuaCharSequence) {
+                    return ((LuaCharSequence)javaValue).getLuaString();
+                }
+                return toLuaString(javaValue.toString());
+            }
+        };
+        sBuiltinConverters.put(CharSequence.class, charSequenceConverter);
+        sBuiltinConverters.put(LuaCharSequence.class, charSequenceConverter);
+
+        sBuiltinConverters.put(byte[].class, new LuaConverter<byte[]>() {
+            @Override
+            public byte[] toJava(LuaValue luaValue) {
+                if (luaValue.istable()) {
+                    // Tables of numbers are still accepted, as they
+                    // were before byte arrays were passed as strings
+                    return (byte[])LuaUtils.toArray((LuaTable)luaValue, byte.class);
+                }
+                // Copy, since Lua strings are immutable but arrays are not
+                LuaString luaString = luaValue.checkstring();
+                byte[] bytes = new byte[luaString.m_length];
+                luaString.copyInto(0, bytes, 0, bytes.length);
+                return bytes;
+            }
+
+            @Override
+            public LuaValue toLua(byte[] javaValue) {
+                return LuaString.valueOf(javaValue, 0, javaValue.length);
+            }
+        });
+
+        sBuiltinConverters.put(ByteBuffer.class, new LuaConverter<ByteBuffer>() {
+            @Override
+            public ByteBuffer toJava(LuaValue luaValue) {
+                if (luaValue.isuserdata(ByteBuffer.class)) {
+                    return (ByteBuffer)luaValue.touserdata();
+                }
+                // Read-only view of the string's bytes, without copying
+                LuaString luaString = luaValue.checkstring();
+                return ByteBuffer.wrap(luaString.m_bytes, luaString.m_offset, luaString.m_length)
+                    .slice().asReadOnlyBuffer();
+            }
+
+            @Override
+            public LuaValue toLua(ByteBuffer javaValue) {
+                // Copies the remaining bytes, without changing the position
+                int length = javaValue.remaining();
+                if (javaValue.hasArray()) {
+                    return LuaString.valueOf(javaValue.array(), javaValue.arrayOffset() + javaValue.position(), length);
+                }
+                byte[] bytes = new byte[length];
+                javaValue.duplicate().get(bytes);
+                return LuaString.valueUsing(bytes);
+            }
+        });
+
+        registerBuiltin(int.class, Integer.class, new LuaConverter<Integer>() {
+            @Override
+            public Integer toJava(LuaValue luaValue) {
+                return luaValue.checkint();
+            }
+
+            @Override
+            public LuaValue toLua(Integer javaValue) {
+                return toLuaNumber(javaValue);
+            }
+        });
+
+        registerBuiltin(float.class, Float.class, new LuaConverter<Float>() {
+            @Override
+            public Float toJava(LuaValue luaValue) {
+                return (float)luaValue.checkdouble();
+            }
+
+            @Override
+            public LuaValue toLua(Float javaValue) {
+                return toLuaNumber(javaValue);
+            }
+        });
+
+        registerBuiltin(boolean.class, Boolean.class, new LuaConverter<Boolean>() {
+            @Override
+            public Boolean toJava(LuaValue luaValue) {
+                return luaValue.checkboolean();
+            }
+
+            @Override
+            public LuaValue toLua(Boolean javaValue) {
+                return LuaBoolean.valueOf(javaValue);
+            }
+        });
+
+        registerBuiltin(double.class, Double.class, new LuaConverter<Double>() {
+            @Override
+            public Double toJava(LuaValue luaValue) {
+                return luaValue.checkdouble();
+            }
+
+            @Override
+            public LuaValue toLua(Double javaValue) {
+                return toLuaNumber(javaValue);
+            }
+        });
+
+        registerBuiltin(long.class, Long.class, new LuaConverter<Long>() {
+            @Override
+            public Long toJava(LuaValue luaValue) {
+                return luaValue.checklong();
+            }
+
+            @Override
+            public LuaValue toLua(Long javaValue) {
+                return toLuaNumber(javaValue);
+            }
+        });
+
+        registerBuiltin(short.class, Short.class, new LuaConverter<Short>() {
+            @Override
+            public Short toJava(LuaValue luaValue) {
+                return (short)luaValue.checkint();
+            }
+
+            @Override
+            public LuaValue toLua(Short javaValue) {
+                return toLuaNumber(javaValue);
+            }
+        });
+
+        registerBuiltin(byte.class, Byte.class, new LuaConverter<Byte>() {
+            @Override
+            public Byte toJava(LuaValue luaValue) {
+                return (byte)luaValue.checkint();
+            }
+
+            @Override
+            public LuaValue toLua(Byte javaValue) {
+                return toLuaNumber(javaValue);
+            }
+        });
+
+        registerBuiltin(char.class, Character.class, new LuaConverter<Character>() {
+            @Override
+            public Character toJava(LuaValue luaValue) {
+                return (char)luaValue.checkint();
+            }
+
+            @Override
+            public LuaValue toLua(Character javaValue) {
+                return toLuaNumber(javaValue);
+            }
+        });
+    }
+
+    private static class NullableConverter<T> extends LuaConverter<T> {
+        private final LuaConverter<T> mConverter;
+
+        @SuppressWarnings("unchecked")
+        public NullableConverter(LuaConverter<?> converter) {
+            mConverter = (LuaConverter<T>)converter;
+        }
+
+        @Override
+        public T toJava(LuaValue luaValue) {
+            if (luaValue.isnil()) {
+                return null;
+            }
+            return mConverter.toJava(luaValue);
+        }
+
+        @Override
+        public LuaValue toLua(T javaValue) {
+            if (javaValue == null) {
+                return LuaValue.NIL;
+            }
+            return mConverter.toLua(javaValue);
+        }
+    }
+
+    private static class LuaValueConverter<T extends LuaValue> extends LuaConverter<T> {
+        private final Class<?> mType;
+
+        public LuaValueConverter(Class<?> type) {
+            mType = type;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T toJava(LuaValue luaValue) {
+            if (!mType.isInstance(luaValue)) {
+                throw new LuaError("Cannot convert " + luaValue.typename() +
+                    " to " + mType.getName());
+            }
+            return (T)luaValue;
+        }
+
+        @Override
+        public LuaValue toLua(T javaValue) {
+            return javaValue;
+        }
+    }
+
+    private static class ArrayConverter extends LuaConverter<Object> {
+        private final Class<?> mComponentType;
+
+        public ArrayConverter(Class<?> componentType) {
+            mComponentType = componentType;
+        }
+
+        @Override
+        public Object toJava(LuaValue luaValue) {
+            return LuaUtils.toArray(luaValue.checktable(), mComponentType);
+        }
+
+        @Override
+        public LuaValue toLua(Object javaValue) {
+            return LuaUtils.toTable(javaValue);
+        }
+    }
+
+    private static class FutureConverter extends UserdataConverter<Object> {
+        private final Class<?> mType;
+
+        public FutureConverter(Class<?> type) {
+            super(type);
+            mType = type;
+        }
+
+        @Override
+        public Object toJava(LuaValue luaValue) {
+            // Futures passed back from Java are passed through,
+            // other values are wrapped in a completed future
+            if (luaValue.isuserdata(mType)) {
+                return luaValue.touserdata();
+            } else if (mType.isAssignableFrom(CompletableFuture.class)) {
+                return CompletableFuture.completedFuture(LuaUtils.bridgeLuaToJava(luaValue));
+            }
+            throw new LuaError("Cannot convert " + luaValue.typename() + " to " + mType.getName());
+        }
+    }
+
+    private static class UserdataConverter<T> extends LuaConverter<T> {
+        private final Class<?> mType;
+
+        public UserdataConverter(Class<?> type) {
+            mType = type;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T toJava(LuaValue luaValue) {
+            return (T)luaValue.checkuserdata(mType);
+        }
+
+        @Override
+        public LuaValue toLua(T javaValue) {
+            if (ExposedJavaClass.isAutoWrapEnabled()) {
+                return ExposedJavaClass.wrap(javaValue);
+            }
+            return new LuaUserdata(javaValue);
+        }
+    }
+
+    private static class InterfaceConverter<T> extends UserdataConverter<T> {
+        private final Class<?> mType;
+
+        public InterfaceConverter(Class<?> type) {
+            super(type);
+            mType = type;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T toJava(LuaValue luaValue) {
+            // Java objects that already implement the interface are
+            // passed through, functions and tables are wrapped in a proxy
+            if (luaValue.isuserdata() && mType.isInstance(luaValue.touserdata())) {
+                return (T)luaValue.touserdata();
+            }
+            return (T)LuaProxy.create(mType, luaValue);
+        }
+
+        @Override
+        public LuaValue toLua(T javaValue) {
+            LuaValue target = LuaProxy.getTarget(javaValue);
+            if (target != null) {
+                return target;
+            }
+            return super.toLua(javaValue);
+        }
+    }
+
+    private static class DynamicConverter extends LuaConverter<Object> {
+        public static final DynamicConverter INSTANCE = new DynamicConverter();
+
+        @Override
+        public Object toJava(LuaValue luaValue) {
+            return LuaUtils.bridgeLuaToJava(luaValue);
+        }
+
+        @Override
+        public LuaValue toLua(Object javaValue) {
+            return LuaUtils.bridgeJavaToLuaIn(javaValue);
+        }
+    }
+}
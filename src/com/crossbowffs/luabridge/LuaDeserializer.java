@@ -0,0 +1,309 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaDouble;
+import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaUserdata;
+import org.luaj.vm2.LuaValue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads Lua values written by {@link LuaSerializer}, from a
+ * {@link ByteBuffer} or a {@link ReadableByteChannel}. Every call to
+ * {@link #read()} creates new tables, so the values can be used in any
+ * {@link org.luaj.vm2.Globals}, regardless of where they were written.
+ *
+ * <p>
+ * In zero-copy mode, strings are not copied out of the buffer, but refer
+ * to the bytes in its backing array directly. They are only decoded to Java
+ * strings if and when they are used as such. This makes reading large values,
+ * e.g. from a file read into memory, cheap, but the buffer must not be modified
+ * while the values read from it are in use. Buffers without an accessible
+ * backing array, such as direct and memory-mapped buffers, do not support
+ * zero-copy mode, since LuaJ strings must be backed by a byte array.
+ *
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class LuaDeserializer {
+    private final ReadableByteChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final boolean mZeroCopy;
+
+    // Tables that have been read as part of the current
+    // value, indexed by the IDs used to refer back to them
+    private final List<LuaTable> mTables = new ArrayList<LuaTable>();
+
+    /**
+     * Creates a deserializer that reads from the specified buffer,
+     * starting at its current position, and copies all strings.
+     *
+     * @param buffer The buffer to read from.
+     */
+    public LuaDeserializer(ByteBuffer buffer) {
+        this(buffer, false);
+    }
+
+    /**
+     * Creates a deserializer that reads from the specified buffer,
+     * starting at its current position.
+     *
+     * @param buffer The buffer to read from.
+     * @param zeroCopy Whether strings should refer to the backing array
+     *                 of the buffer, instead of being copied. The buffer
+     *                 must have an accessible backing array.
+     */
+    public LuaDeserializer(ByteBuffer buffer, boolean zeroCopy) {
+        if (zeroCopy && !buffer.hasArray()) {
+            throw new IllegalArgumentException("Zero-copy mode requires a buffer with an accessible array");
+        }
+        mChannel = null;
+        mBuffer = buffer;
+        mZeroCopy = zeroCopy;
+    }
+
+    /**
+     * Creates a deserializer that reads from the specified channel.
+     * Data is buffered, so the channel may be read past the end
+     * of the last value returned by {@link #read()}.
+     *
+     * @param channel The channel to read from.
+     */
+    public LuaDeserializer(ReadableByteChannel channel) {
+        this(channel, LuaSerializer.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a deserializer that reads from the specified channel.
+     * Data is buffered, so the channel may be read past the end
+     * of the last value returned by {@link #read()}.
+     *
+     * @param channel The channel to read from.
+     * @param bufferSize The size of the buffer, in bytes.
+     */
+    public LuaDeserializer(ReadableByteChannel channel, int bufferSize) {
+        mChannel = channel;
+        mBuffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 16));
+        mBuffer.limit(0);
+        mZeroCopy = false;
+    }
+
+    /**
+     * Deserializes a single value from the specified buffer,
+     * copying all strings.
+     *
+     * @param buffer The buffer to read from.
+     */
+    public static LuaValue deserialize(ByteBuffer buffer) {
+        try {
+            return new LuaDeserializer(buffer).read();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns whether there is more data to read. For channels,
+     * this blocks until data is available or the end of the channel
+     * is reached.
+     *
+     * @throws IOException If reading from the channel failed.
+     */
+    public boolean hasNext() throws IOException {
+        if (mBuffer.hasRemaining()) {
+            return true;
+        }
+        return mChannel != null && fill(1);
+    }
+
+    /**
+     * Reads the next value.
+     *
+     * @throws IllegalArgumentException If the data is malformed, or
+     *         contains userdata of a type that is not registered.
+     * @throws java.nio.BufferUnderflowException If the end of the
+     *         buffer is reached before the value is complete.
+     * @throws EOFException If the end of the channel is reached
+     *         before the value is complete.
+     * @throws IOException If reading from the channel failed.
+     */
+    public LuaValue read() throws IOException {
+        int version = readByte();
+        if (version != LuaSerializer.VERSION) {
+            throw new IllegalArgumentException("Unsupported serialization format version: " + version);
+        }
+        try {
+            return readValue(readByte());
+        } finally {
+            mTables.clear();
+        }
+    }
+
+    private boolean fill(int length) throws IOException {
+        // Move the unread bytes to the start of the buffer,
+        // and read from the channel until we have enough
+        mBuffer.compact();
+        try {
+            while (mBuffer.position() < length) {
+                if (mChannel.read(mBuffer) < 0) {
+                    return false;
+                }
+            }
+        } finally {
+            mBuffer.flip();
+        }
+        return true;
+    }
+
+    private void require(int length) throws IOException {
+        if (mChannel != null && mBuffer.remaining() < length && !fill(length)) {
+            throw new EOFException();
+        }
+        // Otherwise, the buffer will throw BufferUnderflowException
+    }
+
+    private int readByte() throws IOException {
+        require(1);
+        return mBuffer.get() & 0xff;
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private int readLength() throws IOException {
+        int length = readVarint();
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid length: " + (length & 0xffffffffL));
+        }
+        return length;
+    }
+
+    private LuaString readString() throws IOException {
+        int length = readLength();
+        if (mZeroCopy) {
+            if (mBuffer.remaining() < length) {
+                throw new BufferUnderflowException();
+            }
+            int offset = mBuffer.arrayOffset() + mBuffer.position();
+            mBuffer.position(mBuffer.position() + length);
+            return LuaString.valueUsing(mBuffer.array(), offset, length);
+        }
+
+        if (mChannel != null && length > mBuffer.capacity()) {
+            // Too large to buffer, read it into its own array
+            byte[] bytes = new byte[length];
+            int buffered = mBuffer.remaining();
+            mBuffer.get(bytes, 0, buffered);
+            ByteBuffer dest = ByteBuffer.wrap(bytes, buffered, length - buffered);
+            while (dest.hasRemaining()) {
+                if (mChannel.read(dest) < 0) {
+                    throw new EOFException();
+                }
+            }
+            return LuaString.valueUsing(bytes);
+        }
+
+        require(length);
+        if (mBuffer.hasArray()) {
+            // Avoids a temporary array, and lets LuaJ reuse
+            // its cached instances of short strings
+            int offset = mBuffer.arrayOffset() + mBuffer.position();
+            mBuffer.position(mBuffer.position() + length);
+            return LuaString.valueOf(mBuffer.array(), offset, length);
+        }
+        byte[] bytes = new byte[length];
+        mBuffer.get(bytes);
+        return LuaString.valueUsing(bytes);
+    }
+
+    private LuaValue readValue(int tag) throws IOException {
+        switch (tag) {
+        case LuaSerializer.TAG_NIL:
+            return LuaValue.NIL;
+        case LuaSerializer.TAG_FALSE:
+            return LuaValue.FALSE;
+        case LuaSerializer.TAG_TRUE:
+            return LuaValue.TRUE;
+        case LuaSerializer.TAG_INT:
+            int zigzag = readVarint();
+            return LuaInteger.valueOf((zigzag >>> 1) ^ -(zigzag & 1));
+        case LuaSerializer.TAG_DOUBLE:
+            require(8);
+            return LuaDouble.valueOf(mBuffer.getDouble());
+        case LuaSerializer.TAG_STRING:
+            return readString();
+        case LuaSerializer.TAG_TABLE:
+            return readTable();
+        case LuaSerializer.TAG_REF:
+            int id = readVarint();
+            if (id < 0 || id >= mTables.size()) {
+                throw new IllegalArgumentException("Invalid table reference: " + id);
+            }
+            return mTables.get(id);
+        case LuaSerializer.TAG_USERDATA:
+            return readUserdata();
+        default:
+            throw new IllegalArgumentException("Invalid value tag: " + tag);
+        }
+    }
+
+    private LuaTable readTable() throws IOException {
+        int length = readLength();
+
+        // Register the table before reading its contents,
+        // so that cyclic references can be resolved
+        LuaTable table = new LuaTable(Math.min(length, 1 << 16), 0);
+        mTables.add(table);
+
+        for (int i = 1; i <= length; ++i) {
+            LuaValue value = readValue(readByte());
+            if (!value.isnil()) {
+                table.rawset(i, value);
+            }
+        }
+
+        while (true) {
+            int tag = readByte();
+            if (tag == LuaSerializer.TAG_NIL) {
+                break;
+            }
+            LuaValue key = readValue(tag);
+            table.rawset(key, readValue(readByte()));
+        }
+        return table;
+    }
+
+    private LuaValue readUserdata() throws IOException {
+        String name = readString().tojstring();
+        LuaSerializer.UserdataType userdataType = LuaSerializer.findUserdataType(name);
+        if (userdataType == null) {
+            throw new IllegalArgumentException("Cannot deserialize userdata of unregistered type: " + name);
+        }
+
+        Object instance = userdataType.toJava(readValue(readByte()));
+        if (instance instanceof LuaValue) {
+            return (LuaValue)instance;
+        } else if (ExposedJavaClass.isAutoWrapEnabled()) {
+            return ExposedJavaClass.wrap(instance);
+        } else {
+            return new LuaUserdata(instance);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.crossbowffs.luabridge;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks a Java interface that can be implemented in Lua, using
+ * {@link LuaProxy#create(Class, org.luaj.vm2.LuaValue)}. If the
+ * LuaBridge annotation processor is used, an implementation class
+ * that calls into Lua directly is generated for each interface
+ * marked with this annotation.
+ *
+ * <p>
+ * Exposed methods with parameters of such an interface type
+ * also accept Lua functions and tables, which are converted
+ * to proxies automatically.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface LuaInterface {
+}
@@ -0,0 +1,218 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.LibFunction;
+import org.luaj.vm2.lib.VarArgFunction;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Links calls to exposed methods ahead of time, so that scripts
+ * can call them without looking them up on every call.
+ *
+ * <p>
+ * Normally, each {@code obj:method(...)} looks up {@code method} through
+ * the metatable of {@code obj} before calling it, which also involves a
+ * function call for classes with exposed properties. A linked method is
+ * a function that has already been resolved for a specific class, so
+ * {@code getX(obj)} calls the exposed method directly. Each call to a
+ * linked instance method checks that the class of its first argument is
+ * the linked class; if it is an exposed object of another class, the
+ * method is looked up dynamically instead, so a linked call always
+ * behaves like {@code obj:method(...)}, only faster. Linked static
+ * methods are always called directly, whatever their arguments.
+ *
+ * <p>
+ * Linked methods can be bound from Java, e.g.
+ * {@code globals.set("Point", LuaLinker.link(Point.class))}, or from
+ * scripts after calling {@link #install(LuaTable)}:
+ * <pre>
+ * local Point = link(point)            -- all methods of point's class
+ * local getX = link(point, "getX")     -- a single method
+ * for i = 1, n do sum = sum + getX(point) end
+ * </pre>
+ * This works the same in interpreted scripts and scripts compiled
+ * with LuaJC, where a linked method held in a local variable skips
+ * the lookup entirely.
+ */
+public final class LuaLinker {
+    private static final LuaValue LINK = new LinkFunction();
+
+    private LuaLinker() { }
+
+    /**
+     * Adds the {@code link} function to the specified environment,
+     * which scripts can use to link methods of exposed objects.
+     * {@code link(obj)} returns a table of all linked methods of
+     * the class of {@code obj}, and {@code link(obj, name)} returns
+     * a single linked method.
+     *
+     * @param env The environment to add the function to,
+     *            usually a {@link org.luaj.vm2.Globals}.
+     */
+    public static void install(LuaTable env) {
+        env.set("link", LINK);
+    }
+
+    /**
+     * Returns a new table containing a linked function for each exposed
+     * method of the specified class, keyed by its exposed name.
+     * Metamethods and properties are not included.
+     *
+     * @param cls The class to link. For wrappers created using
+     *            {@link ExposedJavaClass#ExposedJavaClass(Object)},
+     *            this is the class of the wrapped object.
+     */
+    public static LuaTable link(Class<?> cls) {
+        LuaTable methodTable = ExposedJavaClass.getMethodTable(cls);
+        Set<String> instanceMethods = findInstanceMethodNames(cls);
+        LuaTable linked = new LuaTable();
+        LuaValue key = LuaValue.NIL;
+        while (true) {
+            Varargs entry = methodTable.next(key);
+            key = entry.arg1();
+            if (key.isnil()) {
+                break;
+            }
+            boolean isStatic = !instanceMethods.contains(key.tojstring());
+            linked.rawset(key, new LinkedMethod(cls, key, entry.arg(2), isStatic));
+        }
+        return linked;
+    }
+
+    /**
+     * Returns a linked function for an exposed method of the specified
+     * class.
+     *
+     * @param cls The class to link. For wrappers created using
+     *            {@link ExposedJavaClass#ExposedJavaClass(Object)},
+     *            this is the class of the wrapped object.
+     * @param name The exposed name of the method.
+     * @throws IllegalArgumentException If the class has no exposed
+     *         method with the specified name.
+     */
+    public static LuaValue link(Class<?> cls, String name) {
+        LuaValue key = LuaValue.valueOf(name);
+        LuaValue target = ExposedJavaClass.getMethodTable(cls).rawget(key);
+        if (target.isnil()) {
+            throw new IllegalArgumentException("Exposed method not found: " + cls.getName() + "." + name);
+        }
+        boolean isStatic = !findInstanceMethodNames(cls).contains(name);
+        return new LinkedMethod(cls, key, target, isStatic);
+    }
+
+    private static Set<String> findInstanceMethodNames(Class<?> cls) {
+        // Generated bindings don't record whether their methods are
+        // static, so this is always determined from the class itself.
+        // Overloads count as instance methods if any of them is one.
+        Set<String> names = new HashSet<String>();
+        for (Method method : cls.getMethods()) {
+            if (method.isBridge() || Modifier.isStatic(method.getModifiers())) {
+                continue;
+            }
+
+            ExposeToLua annotation = method.getAnnotation(ExposeToLua.class);
+            if (annotation == null) {
+                continue;
+            }
+
+            String exposedName = annotation.value();
+            if (exposedName == null || exposedName.isEmpty()) {
+                exposedName = method.getName();
+            }
+            names.add(exposedName);
+        }
+        return names;
+    }
+
+    private static class LinkFunction extends VarArgFunction {
+        public LinkFunction() {
+            name = "link";
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            LuaValue object = args.arg1();
+            if (!(object instanceof ExposedJavaClass)) {
+                throw new LuaError("bad argument #1 to 'link' (Java object expected, got " + object.typename() + ")");
+            }
+            Class<?> cls = ((ExposedJavaClass)object).m_instance.getClass();
+            if (args.isnoneornil(2)) {
+                return link(cls);
+            }
+            String methodName = args.checkjstring(2);
+            try {
+                return link(cls, methodName);
+            } catch (IllegalArgumentException e) {
+                throw new LuaError(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * An exposed method resolved for a specific receiver class.
+     */
+    private static class LinkedMethod extends LibFunction {
+        private final Class<?> mClass;
+        private final LuaValue mName;
+        private final LuaValue mTarget;
+        private final boolean mIsStatic;
+
+        public LinkedMethod(Class<?> cls, LuaValue methodName, LuaValue target, boolean isStatic) {
+            mClass = cls;
+            mName = methodName;
+            mTarget = target;
+            mIsStatic = isStatic;
+            name = methodName.tojstring();
+        }
+
+        private LuaValue resolve(LuaValue receiver) {
+            // The first argument of a static method is not a receiver,
+            // so it may be an exposed object of any class
+            if (mIsStatic) {
+                return mTarget;
+            }
+
+            // Receivers that are not exposed objects are passed through,
+            // so that invalid receivers fail the same way as unlinked calls
+            if (receiver instanceof ExposedJavaClass) {
+                Object instance = ((ExposedJavaClass)receiver).m_instance;
+                if (instance.getClass() != mClass) {
+                    return receiver.get(mName);
+                }
+            }
+            return mTarget;
+        }
+
+        @Override
+        public LuaValue call() {
+            return mTarget.call();
+        }
+
+        @Override
+        public LuaValue call(LuaValue a) {
+            return resolve(a).call(a);
+        }
+
+        @Override
+        public LuaValue call(LuaValue a, LuaValue b) {
+            return resolve(a).call(a, b);
+        }
+
+        @Override
+        public LuaValue call(LuaValue a, LuaValue b, LuaValue c) {
+            return resolve(a).call(a, b, c);
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            return resolve(args.arg1()).invoke(args);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.crossbowffs.luabridge;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records call counts, error counts, and latencies of exposed methods.
+ * The time spent converting values between Lua and Java is recorded
+ * separately from the time spent in the Java method itself.
+ *
+ * <p>
+ * Metrics are disabled by default. While disabled, the only overhead
+ * of each call is reading a volatile flag, so they can be turned on
+ * and off at any time, e.g. through JMX once {@link #registerMBean()}
+ * has been called.
+ */
+public final class LuaMetrics {
+    /**
+     * The name under which {@link #registerMBean()} registers the MBean.
+     */
+    public static final String MBEAN_NAME = "com.crossbowffs.luabridge:type=LuaMetrics";
+
+    private static final MethodMetricsCache sMethods = new MethodMetricsCache();
+    // Weak so that metrics don't keep unloaded classes alive
+    private static final Set<MethodMetrics> sAllMethods =
+        Collections.newSetFromMap(new WeakHashMap<MethodMetrics, Boolean>());
+    private static volatile boolean sEnabled = false;
+    private static volatile LuaMetricsListener sListener;
+
+    private LuaMetrics() { }
+
+    /**
+     * Sets whether metrics should be recorded.
+     *
+     * @param enabled Whether to record metrics.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Returns whether metrics are being recorded.
+     */
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Sets a listener that is notified of every call to an exposed
+     * method while metrics are enabled, e.g. to forward them to an
+     * external metrics library. Pass {@code null} to remove the listener.
+     *
+     * @param listener The listener to notify.
+     */
+    public static void setListener(LuaMetricsListener listener) {
+        sListener = listener;
+    }
+
+    /* package */ static LuaMetricsListener getListener() {
+        return sListener;
+    }
+
+    /**
+     * Returns a snapshot of the metrics of every exposed method that
+     * has been called while metrics were enabled.
+     */
+    public static List<MethodStats> getMethodStats() {
+        List<MethodStats> stats = new ArrayList<MethodStats>();
+        synchronized (sAllMethods) {
+            for (MethodMetrics metrics : sAllMethods) {
+                MethodStats snapshot = metrics.snapshot();
+                if (snapshot.getCallCount() > 0) {
+                    stats.add(snapshot);
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the string cache.
+     * See {@link LuaConverters#getStringCacheStats()}.
+     */
+    public static StringCacheStats getStringCacheStats() {
+        return LuaConverters.getStringCacheStats();
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the number cache,
+     * including the number of allocations it avoided.
+     * See {@link LuaConverters#getNumberCacheStats()}.
+     */
+    public static NumberCacheStats getNumberCacheStats() {
+        return LuaConverters.getNumberCacheStats();
+    }
+
+    /**
+     * Resets the metrics of all exposed methods, and the
+     * hit and miss counts of the string and number caches.
+     */
+    public static void reset() {
+        synchronized (sAllMethods) {
+            for (MethodMetrics metrics : sAllMethods) {
+                metrics.reset();
+            }
+        }
+        LuaConverters.resetStringCacheStats();
+        LuaConverters.resetNumberCacheStats();
+    }
+
+    /**
+     * Registers an MBean named {@link #MBEAN_NAME} with the platform
+     * MBean server, which exposes the metrics through JMX.
+     */
+    public static void registerMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MXBeanImpl(), name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register metrics MBean", e);
+        }
+    }
+
+    /**
+     * Returns the metrics of the specified method, creating them
+     * if necessary. Overloads of a method share the same metrics.
+     */
+    /* package */ static MethodMetrics forMethod(Class<?> declaringClass, String methodName) {
+        ConcurrentMap<String, MethodMetrics> methods = sMethods.get(declaringClass);
+        MethodMetrics metrics = methods.get(methodName);
+        if (metrics == null) {
+            MethodMetrics newMetrics = new MethodMetrics(declaringClass, methodName);
+            metrics = methods.putIfAbsent(methodName, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+                synchronized (sAllMethods) {
+                    sAllMethods.add(metrics);
+                }
+            }
+        }
+        return metrics;
+    }
+
+    private static class MethodMetricsCache extends ClassValue<ConcurrentMap<String, MethodMetrics>> {
+        @Override
+        protected ConcurrentMap<String, MethodMetrics> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<String, MethodMetrics>();
+        }
+    }
+
+    private static class MXBeanImpl implements LuaMetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return LuaMetrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            LuaMetrics.setEnabled(enabled);
+        }
+
+        @Override
+        public List<MethodStats> getMethodStats() {
+            return LuaMetrics.getMethodStats();
+        }
+
+        @Override
+        public StringCacheStats getStringCacheStats() {
+            return LuaMetrics.getStringCacheStats();
+        }
+
+        @Override
+        public NumberCacheStats getNumberCacheStats() {
+            return LuaMetrics.getNumberCacheStats();
+        }
+
+        @Override
+        public void reset() {
+            LuaMetrics.reset();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.crossbowffs.luabridge;
+
+/**
+ * Receives a callback for every call to an exposed Java method while
+ * metrics are enabled. Register a listener using
+ * {@link LuaMetrics#setListener(LuaMetricsListener)}.
+ *
+ * <p>
+ * Listeners are called on the thread that called the method, so
+ * implementations should be thread-safe and return quickly.
+ */
+public interface LuaMetricsListener {
+    /**
+     * Called after an exposed method returns or throws.
+     *
+     * @param declaringClass The class that declares the method.
+     * @param methodName The name of the method in Lua.
+     * @param conversionNanos The time spent converting the arguments
+     *                        and return value, in nanoseconds.
+     * @param javaNanos The time spent in the Java method, in nanoseconds.
+     * @param failed Whether the Java method threw an exception.
+     */
+    void onMethodCall(Class<?> declaringClass, String methodName,
+                      long conversionNanos, long javaNanos, boolean failed);
+}
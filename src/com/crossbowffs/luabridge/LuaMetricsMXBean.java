@@ -0,0 +1,39 @@
+package com.crossbowffs.luabridge;
+
+import java.util.List;
+
+/**
+ * JMX interface for the call metrics of exposed methods. Register it
+ * using {@link LuaMetrics#registerMBean()}.
+ */
+public interface LuaMetricsMXBean {
+    /**
+     * Returns whether metrics are being recorded.
+     */
+    boolean isEnabled();
+
+    /**
+     * Sets whether metrics should be recorded.
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Returns the metrics of all exposed methods.
+     */
+    List<MethodStats> getMethodStats();
+
+    /**
+     * Returns the statistics of the string cache.
+     */
+    StringCacheStats getStringCacheStats();
+
+    /**
+     * Returns the statistics of the number cache.
+     */
+    NumberCacheStats getNumberCacheStats();
+
+    /**
+     * Resets the metrics of all exposed methods.
+     */
+    void reset();
+}
@@ -0,0 +1,484 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.DebugLib;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sampling profiler for Lua scripts, which also attributes time to the
+ * exposed Java methods called by scripts. Stacks are sampled periodically
+ * by a background thread, and can be written in the collapsed stack format
+ * used by flame graph tools (e.g. {@code flamegraph.pl}), one stack per
+ * line with frames separated by semicolons, followed by the sample count.
+ *
+ * <p>
+ * Lua frames are named after the source and first line of each function,
+ * e.g. {@code script.lua:12}, or the current line if line numbers are
+ * enabled. Exposed Java methods appear as frames named after the method
+ * with a {@code _[j]} suffix. Time spent converting their arguments and
+ * return values appears as a {@code [convert]} frame on top of them.
+ *
+ * <p>
+ * Lua frames are only recorded in {@link Globals} that the profiler has
+ * been installed in using {@link #install(Globals)}, which uses LuaJ's
+ * debug hooks. Installed hooks add a small cost to every Lua function
+ * call, even while the profiler is not sampling; install them in
+ * the environments you intend to profile only. Sampling itself is
+ * started and stopped using {@link #start(long, TimeUnit)} and
+ * {@link #stop()}, and its overhead is bounded by the sampling interval.
+ *
+ * <p>
+ * At most {@link #MAX_STACKS} distinct stacks are recorded, so that
+ * long profiling sessions use a bounded amount of memory. Once that
+ * many stacks were recorded, samples of any new stack are counted
+ * under a single {@code [other]} stack instead.
+ */
+public final class LuaProfiler {
+    private static final int PHASE_ARGUMENTS = 0;
+    private static final int PHASE_JAVA = 1;
+    private static final int PHASE_RETURN = 2;
+
+    /**
+     * The maximum number of distinct stacks recorded until the samples
+     * are reset, not counting the {@code [other]} stack.
+     */
+    public static final int MAX_STACKS = 10000;
+
+    private static final String OTHER_STACK = "[other]";
+    private static final String CONVERT_FRAME = "[convert]";
+    private static final String JAVA_SUFFIX = "_[j]";
+
+    private static final ThreadLocal<ThreadStack> sStack = new ThreadLocal<ThreadStack>() {
+        @Override
+        protected ThreadStack initialValue() {
+            ThreadStack stack = new ThreadStack(Thread.currentThread());
+            synchronized (sStacks) {
+                sStacks.add(stack);
+            }
+            return stack;
+        }
+    };
+
+    // Weak so that stacks of threads that have exited can be collected
+    private static final Set<ThreadStack> sStacks =
+        Collections.newSetFromMap(new WeakHashMap<ThreadStack, Boolean>());
+    private static final Map<String, long[]> sSamples = new HashMap<String, long[]>();
+    private static volatile boolean sRunning = false;
+    private static volatile boolean sLineNumbersEnabled = false;
+    private static Thread sSampler;
+
+    private LuaProfiler() { }
+
+    /**
+     * Installs the profiler's debug hooks in the specified {@link Globals},
+     * so that calls to Lua functions loaded by it are recorded. If the
+     * debug library is already installed, it keeps working as before.
+     * Does nothing if the profiler is already installed.
+     *
+     * @param globals The globals to install the profiler in.
+     */
+    public static void install(Globals globals) {
+        if (!(globals.debuglib instanceof Hooks)) {
+            globals.debuglib = new Hooks(globals.debuglib);
+        }
+    }
+
+    /**
+     * Removes the profiler's debug hooks from the specified {@link Globals},
+     * restoring the previously installed debug library, if any. This must
+     * not be called while a script is running in the {@link Globals}.
+     *
+     * @param globals The globals to remove the profiler from.
+     */
+    public static void uninstall(Globals globals) {
+        if (globals.debuglib instanceof Hooks) {
+            globals.debuglib = ((Hooks)globals.debuglib).mDelegate;
+        }
+    }
+
+    /**
+     * Sets whether Lua frames should be named after the line currently
+     * being executed, instead of the line the function was defined on.
+     * This gives more detailed profiles, at the cost of extra work for
+     * every Lua instruction.
+     *
+     * @param enabled Whether to record line numbers.
+     */
+    public static void setLineNumbersEnabled(boolean enabled) {
+        sLineNumbersEnabled = enabled;
+    }
+
+    /**
+     * Starts sampling the stacks of all threads running Lua code every
+     * 10 milliseconds. Does nothing if the profiler is already running.
+     */
+    public static void start() {
+        start(10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts sampling the stacks of all threads running Lua code at the
+     * specified interval. Samples are added to those collected previously;
+     * call {@link #reset()} to discard them. Does nothing if the profiler
+     * is already running.
+     *
+     * @param interval The time between samples.
+     * @param unit The unit of {@code interval}.
+     */
+    public static synchronized void start(long interval, TimeUnit unit) {
+        if (sSampler != null) {
+            return;
+        }
+        final long intervalNanos = Math.max(unit.toNanos(interval), TimeUnit.MILLISECONDS.toNanos(1));
+        sRunning = true;
+        sSampler = new Thread("LuaProfiler") {
+            @Override
+            public void run() {
+                while (sRunning) {
+                    sampleAll();
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(intervalNanos);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        };
+        sSampler.setDaemon(true);
+        sSampler.start();
+    }
+
+    /**
+     * Stops sampling. The samples collected so far are kept.
+     */
+    public static synchronized void stop() {
+        if (sSampler == null) {
+            return;
+        }
+        sRunning = false;
+        sSampler.interrupt();
+        try {
+            sSampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sSampler = null;
+    }
+
+    /**
+     * Returns whether the profiler is currently sampling.
+     */
+    public static boolean isRunning() {
+        return sRunning;
+    }
+
+    /**
+     * Discards all samples collected so far.
+     */
+    public static void reset() {
+        synchronized (sSamples) {
+            sSamples.clear();
+        }
+    }
+
+    /**
+     * Returns the number of samples of each stack collected so far.
+     * The keys are stacks in collapsed format, from the outermost
+     * to the innermost frame, separated by semicolons.
+     */
+    public static Map<String, Long> getCollapsedStacks() {
+        Map<String, Long> stacks = new TreeMap<String, Long>();
+        synchronized (sSamples) {
+            for (Map.Entry<String, long[]> entry : sSamples.entrySet()) {
+                stacks.put(entry.getKey(), entry.getValue()[0]);
+            }
+        }
+        return stacks;
+    }
+
+    /**
+     * Writes the samples collected so far in collapsed stack format,
+     * which can be turned into a flame graph.
+     *
+     * @param writer The writer to write to.
+     * @throws IOException If writing failed.
+     */
+    public static void writeCollapsedStacks(Writer writer) throws IOException {
+        for (Map.Entry<String, Long> entry : getCollapsedStacks().entrySet()) {
+            writer.write(entry.getKey());
+            writer.write(' ');
+            writer.write(Long.toString(entry.getValue()));
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Called when an exposed method is called, before
+     * its arguments are converted.
+     */
+    /* package */ static void enterMethod(MethodMetrics method) {
+        sStack.get().pushMethod(method);
+    }
+
+    /**
+     * Called when an exposed method has finished converting its
+     * arguments, and again when the Java method has returned.
+     */
+    /* package */ static void nextPhase(MethodMetrics method) {
+        sStack.get().nextPhase(method);
+    }
+
+    /**
+     * Called when an exposed method returns or throws.
+     */
+    /* package */ static void exitMethod(MethodMetrics method) {
+        sStack.get().popMethod(method);
+    }
+
+    private static void sampleAll() {
+        ThreadStack[] stacks;
+        synchronized (sStacks) {
+            stacks = sStacks.toArray(new ThreadStack[sStacks.size()]);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (ThreadStack stack : stacks) {
+            sb.setLength(0);
+            if (stack.sample(sb)) {
+                String key = sb.toString();
+                synchronized (sSamples) {
+                    long[] count = sSamples.get(key);
+                    if (count == null && sSamples.size() >= MAX_STACKS) {
+                        // Full, count the sample towards [other]
+                        key = OTHER_STACK;
+                        count = sSamples.get(key);
+                    }
+                    if (count == null) {
+                        sSamples.put(key, new long[] {1});
+                    } else {
+                        count[0]++;
+                    }
+                }
+            }
+        }
+    }
+
+    private static String getFrameName(Object frame, int info) {
+        if (frame instanceof MethodMetrics) {
+            return ((MethodMetrics)frame).getProfilerName() + JAVA_SUFFIX;
+        } else if (frame instanceof LuaClosure) {
+            Prototype p = ((LuaClosure)frame).p;
+            int line = p.linedefined;
+            if (sLineNumbersEnabled && p.lineinfo != null && info >= 0 && info < p.lineinfo.length) {
+                line = p.lineinfo[info];
+            }
+            return p.shortsource() + ":" + (line == 0 ? "main" : String.valueOf(line));
+        } else {
+            return ((LuaFunction)frame).name();
+        }
+    }
+
+    /**
+     * The frames currently executing on a single thread. Only the owning
+     * thread modifies the stack. The sampler reads it without locking,
+     * so samples may occasionally be slightly out of date, but are never
+     * inconsistent enough to fail.
+     */
+    private static class ThreadStack {
+        private final Thread mThread;
+
+        // Either LuaFunction (Lua frames) or MethodMetrics (Java frames)
+        private volatile Object[] mFrames = new Object[32];
+
+        // The current pc of Lua frames, or the phase of Java frames
+        private volatile int[] mInfo = new int[32];
+        private volatile int mDepth;
+
+        public ThreadStack(Thread thread) {
+            mThread = thread;
+        }
+
+        private void push(Object frame, int info) {
+            // Converting arguments and return values cannot call into
+            // Lua or other methods, so such frames have been left
+            // behind by a conversion that threw
+            int depth = mDepth;
+            Object[] frames = mFrames;
+            int[] infos = mInfo;
+            while (depth > 0 && frames[depth - 1] instanceof MethodMetrics && infos[depth - 1] != PHASE_JAVA) {
+                frames[--depth] = null;
+            }
+
+            if (depth == frames.length) {
+                frames = Arrays.copyOf(frames, depth * 2);
+                infos = Arrays.copyOf(infos, depth * 2);
+                mFrames = frames;
+                mInfo = infos;
+            }
+            frames[depth] = frame;
+            infos[depth] = info;
+            mDepth = depth + 1;
+        }
+
+        public void pushFunction(LuaFunction function) {
+            push(function, 0);
+        }
+
+        public void setPc(int pc) {
+            int depth = mDepth;
+            if (depth > 0) {
+                mInfo[depth - 1] = pc;
+            }
+        }
+
+        public void popFunction() {
+            // Also pop any Java frames above the function, left
+            // behind by calls that threw before they finished
+            int depth = mDepth;
+            Object[] frames = mFrames;
+            while (depth > 0 && frames[depth - 1] instanceof MethodMetrics) {
+                frames[--depth] = null;
+            }
+            if (depth > 0) {
+                frames[--depth] = null;
+            }
+            mDepth = depth;
+        }
+
+        public void pushMethod(MethodMetrics method) {
+            push(method, PHASE_ARGUMENTS);
+        }
+
+        public void nextPhase(MethodMetrics method) {
+            // Calls that started before the profiler did have no frame
+            int depth = mDepth;
+            if (depth > 0 && mFrames[depth - 1] == method) {
+                mInfo[depth - 1]++;
+            }
+        }
+
+        public void popMethod(MethodMetrics method) {
+            int depth = mDepth;
+            if (depth > 0 && mFrames[depth - 1] == method) {
+                mFrames[--depth] = null;
+                mDepth = depth;
+            }
+        }
+
+        public boolean sample(StringBuilder sb) {
+            if (!mThread.isAlive()) {
+                return false;
+            }
+
+            // Read the arrays before the depth, since they are replaced
+            // before the depth is increased past their old length
+            Object[] frames = mFrames;
+            int[] infos = mInfo;
+            int depth = Math.min(mDepth, frames.length);
+            boolean hasLuaFrame = false;
+            for (int i = 0; i < depth; ++i) {
+                Object frame = frames[i];
+                if (frame == null) {
+                    // Popped while we were reading it
+                    break;
+                }
+                int info = infos[i];
+                if (sb.length() > 0) {
+                    sb.append(';');
+                }
+                sb.append(getFrameName(frame, info));
+                if (frame instanceof MethodMetrics) {
+                    if (info != PHASE_JAVA) {
+                        sb.append(';').append(CONVERT_FRAME);
+                    }
+                } else {
+                    hasLuaFrame = true;
+                }
+            }
+
+            // Ignore threads that are not running any Lua code
+            return hasLuaFrame;
+        }
+    }
+
+    /**
+     * Debug hooks that record the Lua functions called on each thread,
+     * and forward all calls to the previously installed debug library.
+     */
+    private static class Hooks extends DebugLib {
+        private final DebugLib mDelegate;
+
+        // Last stack used by these hooks, to avoid a thread-local
+        // lookup for every call, since a Globals is usually only
+        // used by one thread at a time
+        private ThreadStack mLastStack;
+
+        public Hooks(DebugLib delegate) {
+            mDelegate = delegate;
+        }
+
+        private ThreadStack stack() {
+            ThreadStack stack = mLastStack;
+            if (stack == null || stack.mThread != Thread.currentThread()) {
+                stack = sStack.get();
+                mLastStack = stack;
+            }
+            return stack;
+        }
+
+        @Override
+        public void onCall(LuaFunction f) {
+            stack().pushFunction(f);
+            if (mDelegate != null) {
+                mDelegate.onCall(f);
+            }
+        }
+
+        @Override
+        public void onCall(LuaClosure c, Varargs varargs, LuaValue[] stack) {
+            stack().pushFunction(c);
+            if (mDelegate != null) {
+                mDelegate.onCall(c, varargs, stack);
+            }
+        }
+
+        @Override
+        public void onInstruction(int pc, Varargs v, int top) {
+            if (sLineNumbersEnabled) {
+                stack().setPc(pc);
+            }
+            if (mDelegate != null) {
+                mDelegate.onInstruction(pc, v, top);
+            }
+        }
+
+        @Override
+        public void onReturn() {
+            stack().popFunction();
+            if (mDelegate != null) {
+                mDelegate.onReturn();
+            }
+        }
+
+        @Override
+        public String traceback(int level) {
+            // LuaJ calls this to build the traceback of every error raised
+            // in Lua code. These hooks are never loaded as a library, so the
+            // inherited implementation has no globals and would throw.
+            if (mDelegate != null) {
+                return mDelegate.traceback(level);
+            }
+            return "";
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Proxy;
+
+/**
+ * Implements a Java interface using a Lua function or table, so that
+ * Java code can call into Lua through a typed interface instead of
+ * converting each argument by hand. Create proxies using
+ * {@link #create(Class, LuaValue)}.
+ *
+ * <p>
+ * If the target is a table, each interface method calls the function
+ * with the same name in the table, passing the table itself as the first
+ * argument, like a Lua method call using {@code table:method(...)}. The
+ * functions are looked up once when the proxy is created, so replacing
+ * them in the table afterwards has no effect on the proxy. If the target
+ * is a function, it is called for every method of the interface, which
+ * is mostly useful for interfaces with a single method.
+ *
+ * <p>
+ * For interfaces marked with {@link LuaInterface}, the LuaBridge annotation
+ * processor generates a subclass of this class named {@code Foo$$LuaProxy},
+ * which converts arguments and return values using converters resolved
+ * once per method, and calls the Lua functions through LuaJ's fixed-arity
+ * entry points. Interfaces without a generated implementation fall back
+ * to a {@link java.lang.reflect.Proxy}, which is slower.
+ * You should not need to extend this class yourself.
+ */
+public abstract class LuaProxy {
+    /**
+     * The suffix appended to the binary name of an interface to
+     * obtain the name of its generated implementation class.
+     */
+    public static final String PROXY_SUFFIX = "$$LuaProxy";
+
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(void.class, LuaValue.class);
+
+    private static final ClassValue<ProxyFactory> sFactories = new ClassValue<ProxyFactory>() {
+        @Override
+        protected ProxyFactory computeValue(Class<?> iface) {
+            ProxyFactory factory = GeneratedProxyFactory.find(iface);
+            if (factory == null) {
+                factory = new ReflectiveLuaProxy.Factory(iface);
+            }
+            return factory;
+        }
+    };
+
+    private final LuaValue mTarget;
+    private final LuaValue mSelf;
+
+    protected LuaProxy(LuaValue target) {
+        mTarget = target;
+        mSelf = getSelf(target);
+    }
+
+    /**
+     * Creates an implementation of {@code iface} that calls
+     * into {@code target}, which must be a function or a table.
+     *
+     * @param iface The interface to implement.
+     * @param target The Lua function or table implementing the interface.
+     */
+    public static <T> T create(Class<T> iface, LuaValue target) {
+        if (!iface.isInterface()) {
+            throw new IllegalArgumentException("Not an interface: " + iface.getName());
+        }
+        return iface.cast(sFactories.get(iface).create(target));
+    }
+
+    /**
+     * Returns the Lua function or table that implements the specified
+     * proxy, or {@code null} if the object is not a proxy created using
+     * {@link #create(Class, LuaValue)}.
+     *
+     * @param obj The object to get the target of.
+     */
+    public static LuaValue getTarget(Object obj) {
+        if (obj instanceof LuaProxy) {
+            return ((LuaProxy)obj).mTarget;
+        }
+        if (obj != null && Proxy.isProxyClass(obj.getClass())) {
+            Object handler = Proxy.getInvocationHandler(obj);
+            if (handler instanceof ReflectiveLuaProxy) {
+                return ((ReflectiveLuaProxy)handler).getTarget();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value to pass as the first argument to the functions
+     * implementing the interface, or {@code null} if no such argument
+     * should be passed.
+     */
+    /* package */ static LuaValue getSelf(LuaValue target) {
+        if (target.isfunction()) {
+            return null;
+        } else if (target.istable() || target.isuserdata()) {
+            return target;
+        } else {
+            throw new LuaError("Cannot implement a Java interface using a " + target.typename());
+        }
+    }
+
+    /**
+     * Returns the function that implements the specified method.
+     */
+    /* package */ static LuaValue getFunction(LuaValue target, LuaValue self, String name) {
+        if (self == null) {
+            return target;
+        }
+        LuaValue function = target.get(name);
+        if (function.isnil()) {
+            throw new LuaError("Lua object does not implement method: " + name);
+        }
+        return function;
+    }
+
+    /**
+     * Returns the function that implements the specified method.
+     *
+     * @param name The name of the interface method.
+     */
+    protected final LuaValue function(String name) {
+        return getFunction(mTarget, mSelf, name);
+    }
+
+    /**
+     * Calls a function that implements an interface method,
+     * returning its first return value.
+     *
+     * @param function The function returned by {@link #function(String)}.
+     */
+    protected final LuaValue call(LuaValue function) {
+        LuaValue self = mSelf;
+        if (self == null) {
+            return function.call();
+        }
+        return function.call(self);
+    }
+
+    /**
+     * Calls a function that implements an interface method,
+     * returning its first return value.
+     *
+     * @param function The function returned by {@link #function(String)}.
+     * @param arg1 The first argument.
+     */
+    protected final LuaValue call(LuaValue function, LuaValue arg1) {
+        LuaValue self = mSelf;
+        if (self == null) {
+            return function.call(arg1);
+        }
+        return function.call(self, arg1);
+    }
+
+    /**
+     * Calls a function that implements an interface method,
+     * returning its first return value.
+     *
+     * @param function The function returned by {@link #function(String)}.
+     * @param arg1 The first argument.
+     * @param arg2 The second argument.
+     */
+    protected final LuaValue call(LuaValue function, LuaValue arg1, LuaValue arg2) {
+        LuaValue self = mSelf;
+        if (self == null) {
+            return function.call(arg1, arg2);
+        }
+        return function.call(self, arg1, arg2);
+    }
+
+    /**
+     * Calls a function that implements an interface method,
+     * returning its first return value.
+     *
+     * @param function The function returned by {@link #function(String)}.
+     * @param arg1 The first argument.
+     * @param arg2 The second argument.
+     * @param arg3 The third argument.
+     */
+    protected final LuaValue call(LuaValue function, LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+        LuaValue self = mSelf;
+        if (self == null) {
+            return function.call(arg1, arg2, arg3);
+        }
+        return function.invoke(LuaValue.varargsOf(new LuaValue[] {self, arg1, arg2, arg3})).arg1();
+    }
+
+    /**
+     * Calls a function that implements an interface method,
+     * returning all of its return values.
+     *
+     * @param function The function returned by {@link #function(String)}.
+     * @param args The arguments.
+     */
+    protected final Varargs invoke(LuaValue function, LuaValue[] args) {
+        LuaValue self = mSelf;
+        if (self == null) {
+            return function.invoke(args);
+        }
+        LuaValue[] argsWithSelf = new LuaValue[args.length + 1];
+        argsWithSelf[0] = self;
+        System.arraycopy(args, 0, argsWithSelf, 1, args.length);
+        return function.invoke(argsWithSelf);
+    }
+
+    /**
+     * Returns the converter to use for arguments passed
+     * to Lua, based on the declared parameter type.
+     *
+     * @param parameterType The declared type of the parameter.
+     */
+    protected static LuaConverter<Object> argumentConverter(Class<?> parameterType) {
+        return LuaConverters.forReturnType(parameterType);
+    }
+
+    /**
+     * Converts a numeric argument passed to Lua, using the number cache.
+     *
+     * @param value The value to convert.
+     */
+    protected static LuaValue luaNumber(int value) {
+        return LuaConverters.toLuaNumber(value);
+    }
+
+    /**
+     * Converts a numeric argument passed to Lua, using the number cache.
+     *
+     * @param value The value to convert.
+     */
+    protected static LuaValue luaNumber(long value) {
+        return LuaConverters.toLuaNumber(value);
+    }
+
+    /**
+     * Converts a numeric argument passed to Lua, using the number cache.
+     *
+     * @param value The value to convert.
+     */
+    protected static LuaValue luaNumber(double value) {
+        return LuaConverters.toLuaNumber(value);
+    }
+
+    /**
+     * Returns the converter to use for values returned from
+     * Lua, based on the declared return type. Values returned
+     * as {@link Object} (e.g. from generic methods) are converted
+     * based on their Lua type instead.
+     *
+     * @param returnType The declared return type of the method.
+     */
+    @SuppressWarnings("unchecked")
+    protected static <T> LuaConverter<T> returnConverter(Class<T> returnType) {
+        if (returnType == Object.class) {
+            return (LuaConverter<T>)LuaConverters.forReturnType(returnType);
+        }
+        return LuaConverters.forType(returnType);
+    }
+
+    @Override
+    public String toString() {
+        return "LuaProxy{" + mTarget + "}";
+    }
+
+    /* package */ interface ProxyFactory {
+        Object create(LuaValue target);
+    }
+
+    private static class GeneratedProxyFactory implements ProxyFactory {
+        private final MethodHandle mConstructor;
+
+        private GeneratedProxyFactory(MethodHandle constructor) {
+            mConstructor = constructor;
+        }
+
+        public static GeneratedProxyFactory find(Class<?> iface) {
+            ClassLoader classLoader = iface.getClassLoader();
+            if (classLoader == null) {
+                return null;
+            }
+
+            Class<?> proxyClass;
+            try {
+                proxyClass = Class.forName(iface.getName() + PROXY_SUFFIX, true, classLoader);
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+
+            try {
+                MethodHandle constructor = MethodHandles.lookup().findConstructor(proxyClass, CONSTRUCTOR_TYPE);
+                return new GeneratedProxyFactory(constructor.asType(MethodType.methodType(Object.class, LuaValue.class)));
+            } catch (NoSuchMethodException e) {
+                throw new AssertionError(e);
+            } catch (IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public Object create(LuaValue target) {
+            try {
+                return mConstructor.invokeExact(target);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.*;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of {@link Globals} for running scripts on multiple
+ * threads in parallel. Every {@link Globals} in the pool is set up once
+ * with the same global bindings (e.g. {@link ExposedJavaClass} objects),
+ * and scripts are compiled once and shared between all of them.
+ *
+ * <p>
+ * A {@link Globals} may only be used by one thread at a time, so each
+ * thread must {@link #borrow()} one and {@link #release(Globals)} it once
+ * it is done. When a {@link Globals} is released, its global variables
+ * and loaded modules are restored to the state they were in right after
+ * it was set up, so scripts cannot see each other's globals. Changes made
+ * to the contents of shared tables, such as the {@code string} library,
+ * are not undone; use {@link #invalidate(Globals)} to discard a
+ * {@link Globals} that may have been modified in such a way.
+ *
+ * <p>
+ * For the common case of running a single script, use
+ * {@link #execute(String, String, Varargs)}, which handles all of the above.
+ */
+public final class LuaRuntimePool {
+    /**
+     * Creates the {@link Globals} used by a {@link LuaRuntimePool}.
+     */
+    public interface GlobalsFactory {
+        /**
+         * Creates a new {@link Globals} with all required
+         * libraries installed.
+         */
+        Globals create();
+    }
+
+    private static final GlobalsFactory STANDARD_GLOBALS = new GlobalsFactory() {
+        @Override
+        public Globals create() {
+            return JsePlatform.standardGlobals();
+        }
+    };
+
+    private static final int DEFAULT_MAX_CACHED_SCRIPTS = 256;
+
+    private final int mMaxSize;
+    private final GlobalsFactory mFactory;
+    private final Map<String, LuaValue> mBindings = new LinkedHashMap<String, LuaValue>();
+    private final LinkedBlockingQueue<PooledGlobals> mIdle = new LinkedBlockingQueue<PooledGlobals>();
+    private final Map<Globals, PooledGlobals> mAll = new IdentityHashMap<Globals, PooledGlobals>();
+    private final AtomicInteger mSize = new AtomicInteger();
+    private final PrototypeCache mPrototypeCache;
+
+    /**
+     * Creates a pool of at most {@code maxSize} {@link Globals}
+     * with the standard JSE libraries installed.
+     *
+     * @param maxSize The maximum number of {@link Globals} in the pool,
+     *                usually the number of threads running scripts.
+     */
+    public LuaRuntimePool(int maxSize) {
+        this(maxSize, STANDARD_GLOBALS);
+    }
+
+    /**
+     * Creates a pool of at most {@code maxSize} {@link Globals}
+     * created by the specified factory.
+     *
+     * @param maxSize The maximum number of {@link Globals} in the pool,
+     *                usually the number of threads running scripts.
+     * @param factory The factory used to create each {@link Globals}.
+     */
+    public LuaRuntimePool(int maxSize, GlobalsFactory factory) {
+        this(maxSize, factory, DEFAULT_MAX_CACHED_SCRIPTS);
+    }
+
+    /**
+     * Creates a pool of at most {@code maxSize} {@link Globals}
+     * created by the specified factory.
+     *
+     * @param maxSize The maximum number of {@link Globals} in the pool,
+     *                usually the number of threads running scripts.
+     * @param factory The factory used to create each {@link Globals}.
+     * @param maxCachedScripts The maximum number of compiled scripts
+     *                         to keep; the least recently used ones
+     *                         are discarded first.
+     */
+    public LuaRuntimePool(int maxSize, GlobalsFactory factory, int maxCachedScripts) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive: " + maxSize);
+        }
+        mMaxSize = maxSize;
+        mFactory = factory;
+        mPrototypeCache = new PrototypeCache(maxCachedScripts);
+    }
+
+    /**
+     * Sets a global variable in every {@link Globals} of this pool.
+     * The value is converted using {@link LuaUtils#bridgeJavaToLuaIn(Object)},
+     * and the same Lua value is shared by all {@link Globals}. All bindings
+     * must be set before any {@link Globals} is created.
+     *
+     * @param name The name of the global variable.
+     * @param value The value of the global variable.
+     * @throws IllegalStateException If a {@link Globals} was already created.
+     */
+    public void bind(String name, Object value) {
+        synchronized (mAll) {
+            if (!mAll.isEmpty()) {
+                throw new IllegalStateException("Bindings must be set before any Globals are created");
+            }
+            mBindings.put(name, LuaUtils.bridgeJavaToLuaIn(value));
+        }
+    }
+
+    /**
+     * Creates all {@link Globals} in the pool up front, so that
+     * the setup cost is not paid by the first callers.
+     */
+    public void warmUp() {
+        PooledGlobals pooled;
+        while ((pooled = tryCreate()) != null) {
+            mIdle.add(pooled);
+        }
+    }
+
+    /**
+     * Returns an idle {@link Globals}, creating a new one if the pool has
+     * not reached its maximum size yet, or waiting for one to be released
+     * otherwise.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public Globals borrow() throws InterruptedException {
+        PooledGlobals pooled = mIdle.poll();
+        if (pooled == null) {
+            pooled = tryCreate();
+            if (pooled == null) {
+                pooled = mIdle.take();
+            }
+        }
+        return markBorrowed(pooled);
+    }
+
+    /**
+     * Like {@link #borrow()}, but gives up after the specified time.
+     * Returns {@code null} if no {@link Globals} became available.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of {@code timeout}.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public Globals borrow(long timeout, TimeUnit unit) throws InterruptedException {
+        PooledGlobals pooled = mIdle.poll();
+        if (pooled == null) {
+            pooled = tryCreate();
+            if (pooled == null) {
+                pooled = mIdle.poll(timeout, unit);
+                if (pooled == null) {
+                    return null;
+                }
+            }
+        }
+        return markBorrowed(pooled);
+    }
+
+    /**
+     * Resets the {@link Globals} and returns it to the pool.
+     *
+     * @param globals A {@link Globals} returned by {@link #borrow()}.
+     * @throws IllegalArgumentException If the {@link Globals} does not
+     *                                  belong to this pool.
+     * @throws IllegalStateException If the {@link Globals} is not
+     *                               currently borrowed.
+     */
+    public void release(Globals globals) {
+        // Clear the flag before resetting, so a second release() of the
+        // same Globals fails instead of adding it to the idle queue twice,
+        // where two threads could borrow it at once. Nobody can borrow it
+        // until it is added to the queue, after it has been reset.
+        PooledGlobals pooled;
+        synchronized (mAll) {
+            pooled = getBorrowed(globals);
+            pooled.mBorrowed = false;
+        }
+        pooled.reset();
+        mIdle.add(pooled);
+    }
+
+    /**
+     * Discards the {@link Globals} instead of returning it to the
+     * pool, and creates a new one in its place.
+     *
+     * @param globals A {@link Globals} returned by {@link #borrow()}.
+     * @throws IllegalArgumentException If the {@link Globals} does not
+     *                                  belong to this pool.
+     * @throws IllegalStateException If the {@link Globals} is not
+     *                               currently borrowed.
+     */
+    public void invalidate(Globals globals) {
+        synchronized (mAll) {
+            getBorrowed(globals);
+            mAll.remove(globals);
+        }
+        mSize.decrementAndGet();
+
+        // Replace it right away, since other threads
+        // may already be waiting for an idle Globals
+        PooledGlobals pooled = tryCreate();
+        if (pooled != null) {
+            mIdle.add(pooled);
+        }
+    }
+
+    /**
+     * Returns the compiled prototype of the specified script. Scripts are
+     * compiled once and cached by the hash of their contents and their chunk
+     * name, so the same prototype can be loaded into each {@link Globals}
+     * without compiling it again.
+     *
+     * @param script The source code of the script.
+     * @param chunkName The name of the chunk, used in error messages.
+     * @throws LuaError If the script could not be compiled.
+     */
+    public Prototype compile(String script, String chunkName) {
+        return mPrototypeCache.get(script, chunkName);
+    }
+
+    /**
+     * Loads a compiled prototype as a function in the specified
+     * {@link Globals}, using its loader.
+     *
+     * @param globals The {@link Globals} to use as the environment.
+     * @param prototype The prototype returned by {@link #compile(String, String)}.
+     */
+    public LuaFunction load(Globals globals, Prototype prototype) {
+        try {
+            return globals.loader.load(prototype, prototype.source.tojstring(), globals);
+        } catch (IOException e) {
+            throw new LuaError(e);
+        }
+    }
+
+    /**
+     * Runs a script using an idle {@link Globals} from the pool,
+     * and returns the values returned by the script.
+     *
+     * @param script The source code of the script.
+     * @param chunkName The name of the chunk, used in error messages.
+     * @param args The arguments to pass to the script.
+     * @throws InterruptedException If interrupted while waiting for
+     *                              a {@link Globals} to become idle.
+     */
+    public Varargs execute(String script, String chunkName, Varargs args) throws InterruptedException {
+        Prototype prototype = compile(script, chunkName);
+        Globals globals = borrow();
+        try {
+            return load(globals, prototype).invoke(args);
+        } finally {
+            release(globals);
+        }
+    }
+
+    /**
+     * Returns the number of {@link Globals} that have been
+     * created and not invalidated.
+     */
+    public int size() {
+        return mSize.get();
+    }
+
+    /**
+     * Returns the number of {@link Globals} that are currently idle.
+     */
+    public int idleCount() {
+        return mIdle.size();
+    }
+
+    private Globals markBorrowed(PooledGlobals pooled) {
+        synchronized (mAll) {
+            pooled.mBorrowed = true;
+        }
+        return pooled.mGlobals;
+    }
+
+    // Must be called while holding the lock on mAll
+    private PooledGlobals getBorrowed(Globals globals) {
+        PooledGlobals pooled = mAll.get(globals);
+        if (pooled == null) {
+            throw new IllegalArgumentException("Globals does not belong to this pool");
+        }
+        if (!pooled.mBorrowed) {
+            throw new IllegalStateException("Globals is not borrowed");
+        }
+        return pooled;
+    }
+
+    private PooledGlobals tryCreate() {
+        int size;
+        do {
+            size = mSize.get();
+            if (size >= mMaxSize) {
+                return null;
+            }
+        } while (!mSize.compareAndSet(size, size + 1));
+
+        PooledGlobals pooled;
+        try {
+            Globals globals = mFactory.create();
+            synchronized (mAll) {
+                for (Map.Entry<String, LuaValue> entry : mBindings.entrySet()) {
+                    globals.rawset(entry.getKey(), entry.getValue());
+                }
+                pooled = new PooledGlobals(globals);
+                mAll.put(globals, pooled);
+            }
+        } catch (RuntimeException e) {
+            mSize.decrementAndGet();
+            throw e;
+        }
+        return pooled;
+    }
+
+    private static class PooledGlobals {
+        private final Globals mGlobals;
+        private final TableSnapshot mGlobalsSnapshot;
+        private final TableSnapshot mLoadedSnapshot;
+        private boolean mBorrowed; // Guarded by mAll
+
+        public PooledGlobals(Globals globals) {
+            mGlobals = globals;
+            mGlobalsSnapshot = new TableSnapshot(globals);
+
+            // Also forget about modules loaded using require()
+            LuaValue loaded = globals.get("package").get("loaded");
+            mLoadedSnapshot = loaded.istable() ? new TableSnapshot((LuaTable)loaded) : null;
+        }
+
+        public void reset() {
+            mGlobalsSnapshot.restore();
+            if (mLoadedSnapshot != null) {
+                mLoadedSnapshot.restore();
+            }
+        }
+    }
+
+    /**
+     * Records the keys, values, and metatable of a table, so that
+     * they can be restored after the table has been modified.
+     */
+    private static class TableSnapshot {
+        private final LuaTable mTable;
+        private final LuaValue mMetatable;
+        private final LuaValue[] mKeys;
+        private final LuaValue[] mValues;
+
+        public TableSnapshot(LuaTable table) {
+            mTable = table;
+            mMetatable = table.getmetatable();
+            List<LuaValue> keys = new ArrayList<LuaValue>();
+            List<LuaValue> values = new ArrayList<LuaValue>();
+            LuaValue k = LuaValue.NIL;
+            while (true) {
+                Varargs n = table.next(k);
+                if ((k = n.arg1()).isnil()) {
+                    break;
+                }
+                keys.add(k);
+                values.add(n.arg(2));
+            }
+            mKeys = keys.toArray(new LuaValue[keys.size()]);
+            mValues = values.toArray(new LuaValue[values.size()]);
+        }
+
+        public void restore() {
+            // Collect new keys first, since LuaTable#next()
+            // fails if the current key is removed
+            List<LuaValue> addedKeys = null;
+            LuaValue k = LuaValue.NIL;
+            while (true) {
+                Varargs n = mTable.next(k);
+                if ((k = n.arg1()).isnil()) {
+                    break;
+                }
+                if (!contains(k)) {
+                    if (addedKeys == null) {
+                        addedKeys = new ArrayList<LuaValue>();
+                    }
+                    addedKeys.add(k);
+                }
+            }
+
+            if (addedKeys != null) {
+                for (LuaValue key : addedKeys) {
+                    mTable.rawset(key, LuaValue.NIL);
+                }
+            }
+            for (int i = 0; i < mKeys.length; ++i) {
+                mTable.rawset(mKeys[i], mValues[i]);
+            }
+            mTable.setmetatable(mMetatable);
+        }
+
+        private boolean contains(LuaValue key) {
+            // Tables in a fresh Globals are small, a linear
+            // scan is cheaper than maintaining a hash set
+            for (LuaValue k : mKeys) {
+                if (k.raweq(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Identifies a compiled script by the SHA-256 hash of its source
+     * and its chunk name, so the cache does not have to keep the source
+     * itself, and callers using different chunk names for the same
+     * script get error messages with their own chunk name.
+     */
+    private static final class ScriptKey {
+        private final byte[] mHash;
+        private final String mChunkName;
+        private final int mHashCode;
+
+        public ScriptKey(byte[] source, String chunkName) {
+            try {
+                mHash = MessageDigest.getInstance("SHA-256").digest(source);
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+            mChunkName = chunkName;
+            mHashCode = 31 * Arrays.hashCode(mHash) + chunkName.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ScriptKey)) {
+                return false;
+            }
+            ScriptKey other = (ScriptKey)obj;
+            return Arrays.equals(mHash, other.mHash) && mChunkName.equals(other.mChunkName);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private static class PrototypeCache {
+        private final Map<ScriptKey, Prototype> mPrototypes;
+
+        public PrototypeCache(final int maxSize) {
+            mPrototypes = new LinkedHashMap<ScriptKey, Prototype>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ScriptKey, Prototype> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        public Prototype get(String script, String chunkName) {
+            byte[] source;
+            try {
+                source = script.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+
+            ScriptKey key = new ScriptKey(source, chunkName);
+            synchronized (mPrototypes) {
+                Prototype prototype = mPrototypes.get(key);
+                if (prototype != null) {
+                    return prototype;
+                }
+            }
+
+            // Compile outside the lock, other threads may compile the same
+            // script concurrently but will end up using the same prototype
+            Prototype prototype = compile(source, chunkName);
+            synchronized (mPrototypes) {
+                Prototype existing = mPrototypes.get(key);
+                if (existing != null) {
+                    return existing;
+                }
+                mPrototypes.put(key, prototype);
+                return prototype;
+            }
+        }
+
+        private static Prototype compile(byte[] source, String chunkName) {
+            try {
+                return LuaC.instance.compile(new ByteArrayInputStream(source), chunkName);
+            } catch (IOException e) {
+                throw new LuaError(e);
+            }
+        }
+    }
+}
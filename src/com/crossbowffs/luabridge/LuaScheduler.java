@@ -0,0 +1,172 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs Lua scripts asynchronously on an {@link Executor}, for scripts
+ * that call exposed methods returning a {@link CompletionStage} (e.g.
+ * a {@link CompletableFuture}).
+ *
+ * <p>
+ * When an exposed method returns a {@link CompletionStage}, the calling
+ * script is suspended until it completes, and then continues with the
+ * result of the stage converted to a Lua value, or with a
+ * {@link LuaError} if the stage completed exceptionally. Since LuaJ runs
+ * each script (and each coroutine) on a Java thread of its own, a script
+ * is suspended by parking the thread that runs it. On platform threads,
+ * this is no different from calling a blocking method; on virtual
+ * threads, a suspended script only costs memory. Use
+ * {@link #newVirtualThreadScheduler()} on Java 21 and above, or pass any
+ * other {@link Executor} to the constructor.
+ *
+ * <p>
+ * Each script still needs a {@link Globals} of its own while it is
+ * suspended, so when running scripts from a {@link LuaRuntimePool},
+ * size the pool for the number of concurrently suspended scripts
+ * rather than the number of CPUs.
+ */
+public final class LuaScheduler {
+    private final Executor mExecutor;
+
+    /**
+     * Creates a scheduler that runs scripts on the specified executor.
+     *
+     * @param executor The executor to run scripts on.
+     */
+    public LuaScheduler(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        mExecutor = executor;
+    }
+
+    /**
+     * Creates a scheduler that runs every script on a new virtual thread.
+     *
+     * @throws UnsupportedOperationException If the JVM does not
+     *         support virtual threads.
+     */
+    public static LuaScheduler newVirtualThreadScheduler() {
+        // Looked up reflectively, so that we can still run on older JVMs
+        ExecutorService executor;
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            executor = (ExecutorService)factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM", e);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Failed to create virtual thread executor", e);
+        }
+        return new LuaScheduler(executor);
+    }
+
+    /**
+     * Returns the executor that scripts are run on.
+     */
+    public Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Calls a Lua function on the executor. The function must not be
+     * called by any other thread while it is running, which includes
+     * any other function loaded by the same {@link Globals}.
+     *
+     * @param function The function to call.
+     * @param args The arguments to pass to the function.
+     * @return A future that completes with the values returned by
+     *         the function.
+     */
+    public CompletableFuture<Varargs> submit(final LuaValue function, final Varargs args) {
+        final CompletableFuture<Varargs> future = new CompletableFuture<Varargs>();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(function.invoke(args));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Runs a script on the executor, using an idle {@link Globals}
+     * from the specified pool. See
+     * {@link LuaRuntimePool#execute(String, String, Varargs)}.
+     *
+     * @param pool The pool to borrow a {@link Globals} from.
+     * @param script The source code of the script.
+     * @param chunkName The name of the chunk, used in error messages.
+     * @param args The arguments to pass to the script.
+     * @return A future that completes with the values returned by
+     *         the script.
+     */
+    public CompletableFuture<Varargs> submit(final LuaRuntimePool pool, final String script,
+                                             final String chunkName, final Varargs args) {
+        final CompletableFuture<Varargs> future = new CompletableFuture<Varargs>();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(pool.execute(script, chunkName, args));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Waits for a {@link CompletionStage} to complete, and returns its
+     * result. This is what exposed methods returning a
+     * {@link CompletionStage} do before returning to Lua. Futures
+     * converted to Lua in any other way, e.g. as elements of a list,
+     * are passed as userdata and not waited for.
+     *
+     * @param stage The stage to wait for.
+     * @throws LuaError If the stage completed exceptionally, was
+     *         cancelled, or the thread was interrupted while waiting.
+     *         If the stage failed with a {@link LuaError}, that error
+     *         is thrown as-is.
+     */
+    public static Object await(CompletionStage<?> stage) {
+        CompletableFuture<?> future = stage.toCompletableFuture();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LuaError("Interrupted while waiting for a future to complete");
+        } catch (CancellationException e) {
+            throw new LuaError("Future was cancelled");
+        } catch (ExecutionException e) {
+            throw toLuaError(e.getCause());
+        }
+    }
+
+    private static LuaError toLuaError(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof LuaError) {
+            return (LuaError)e;
+        }
+        return new LuaError(e);
+    }
+}
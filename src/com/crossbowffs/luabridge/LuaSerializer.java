@@ -0,0 +1,363 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes Lua values in a compact binary format, which can be read back
+ * using {@link LuaDeserializer}, e.g. in a different {@link org.luaj.vm2.Globals},
+ * thread or process. Values are written directly to a {@link ByteBuffer}
+ * or a {@link WritableByteChannel}, without converting them to Java objects.
+ *
+ * <p>
+ * Supported values are {@code nil}, booleans, numbers, strings, tables
+ * (including nested tables, and tables referenced multiple times or
+ * cyclically, which are written once), and userdata of types registered
+ * using {@link #registerUserdataType(String, Class, LuaConverter)}.
+ * Metatables are not written. Functions, threads, and other userdata
+ * cannot be serialized.
+ *
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class LuaSerializer {
+    /* package */ static final int VERSION = 1;
+
+    /* package */ static final int TAG_NIL = 0;
+    /* package */ static final int TAG_FALSE = 1;
+    /* package */ static final int TAG_TRUE = 2;
+    /* package */ static final int TAG_INT = 3;
+    /* package */ static final int TAG_DOUBLE = 4;
+    /* package */ static final int TAG_STRING = 5;
+    /* package */ static final int TAG_TABLE = 6;
+    /* package */ static final int TAG_REF = 7;
+    /* package */ static final int TAG_USERDATA = 8;
+
+    /* package */ static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final Map<Class<?>, UserdataType> sUserdataTypesByClass = new ConcurrentHashMap<Class<?>, UserdataType>();
+    private static final Map<String, UserdataType> sUserdataTypesByName = new ConcurrentHashMap<String, UserdataType>();
+
+    private final WritableByteChannel mChannel;
+    private final boolean mGrowable;
+    private ByteBuffer mBuffer;
+
+    // Tables that have already been written as part of the current
+    // value, mapped to the IDs used to refer back to them
+    private final Map<LuaTable, Integer> mTableIds = new IdentityHashMap<LuaTable, Integer>();
+
+    /**
+     * Creates a serializer that writes to an in-memory buffer, which
+     * grows as needed. Get the written data using {@link #toByteBuffer()}.
+     */
+    public LuaSerializer() {
+        mChannel = null;
+        mGrowable = true;
+        mBuffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a serializer that writes to the specified buffer, starting
+     * at its current position. A {@link java.nio.BufferOverflowException}
+     * is thrown if the buffer is too small.
+     *
+     * @param buffer The buffer to write to.
+     */
+    public LuaSerializer(ByteBuffer buffer) {
+        mChannel = null;
+        mGrowable = false;
+        mBuffer = buffer;
+    }
+
+    /**
+     * Creates a serializer that writes to the specified channel. Data is
+     * buffered, so {@link #flush()} must be called after writing.
+     *
+     * @param channel The channel to write to.
+     */
+    public LuaSerializer(WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a serializer that writes to the specified channel. Data is
+     * buffered, so {@link #flush()} must be called after writing.
+     *
+     * @param channel The channel to write to.
+     * @param bufferSize The size of the buffer, in bytes.
+     */
+    public LuaSerializer(WritableByteChannel channel, int bufferSize) {
+        mChannel = channel;
+        mGrowable = false;
+        mBuffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 16));
+    }
+
+    /**
+     * Registers a userdata type that can be serialized. Userdata whose
+     * value is an instance of {@code type} is written as the Lua value
+     * returned by {@link LuaConverter#toLua(Object)}, and read back using
+     * {@link LuaConverter#toJava(LuaValue)}. The name identifies the type
+     * in the serialized data, and must be the same when reading it back.
+     *
+     * @param name The name of the type in serialized data.
+     * @param type The Java type of the userdata values.
+     * @param converter Converts the userdata values to and from
+     *                  serializable Lua values.
+     */
+    public static <T> void registerUserdataType(String name, Class<T> type, LuaConverter<T> converter) {
+        UserdataType userdataType = new UserdataType(name, type, converter);
+        sUserdataTypesByClass.put(type, userdataType);
+        sUserdataTypesByName.put(name, userdataType);
+    }
+
+    /* package */ static UserdataType findUserdataType(String name) {
+        return sUserdataTypesByName.get(name);
+    }
+
+    private static UserdataType findUserdataType(Class<?> cls) {
+        UserdataType userdataType = sUserdataTypesByClass.get(cls);
+        if (userdataType != null) {
+            return userdataType;
+        }
+
+        // Slow path for subclasses of registered types
+        for (UserdataType candidate : sUserdataTypesByClass.values()) {
+            if (candidate.mType.isAssignableFrom(cls)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Serializes a single value into a new buffer. The returned buffer
+     * is ready to be read, i.e. its position is 0 and its limit is the
+     * size of the serialized data.
+     *
+     * @param value The value to serialize.
+     */
+    public static ByteBuffer serialize(LuaValue value) {
+        LuaSerializer serializer = new LuaSerializer();
+        try {
+            serializer.write(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return serializer.toByteBuffer();
+    }
+
+    /**
+     * Writes a value. Tables referenced more than once within the value
+     * are only written once, but tables shared between separate calls
+     * to this method are written again.
+     *
+     * @param value The value to write.
+     * @throws IllegalArgumentException If the value contains values
+     *         that cannot be serialized.
+     * @throws IOException If writing to the channel failed.
+     */
+    public void write(LuaValue value) throws IOException {
+        require(1);
+        mBuffer.put((byte)VERSION);
+        try {
+            writeValue(value);
+        } finally {
+            mTableIds.clear();
+        }
+    }
+
+    /**
+     * Writes any buffered data to the channel. Does nothing if
+     * this serializer does not write to a channel.
+     *
+     * @throws IOException If writing to the channel failed.
+     */
+    public void flush() throws IOException {
+        if (mChannel == null) {
+            return;
+        }
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * Returns a read-only view of the data written so far, from the
+     * start of the buffer. Only supported by serializers created
+     * using {@link #LuaSerializer()}.
+     */
+    public ByteBuffer toByteBuffer() {
+        if (!mGrowable) {
+            throw new IllegalStateException("Serializer does not write to an in-memory buffer");
+        }
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private void require(int length) throws IOException {
+        if (mBuffer.remaining() >= length) {
+            return;
+        }
+
+        if (mChannel != null) {
+            flush();
+        } else if (mGrowable) {
+            int capacity = Math.max(mBuffer.capacity() * 2, mBuffer.position() + length);
+            ByteBuffer buffer = ByteBuffer.allocate(capacity);
+            mBuffer.flip();
+            buffer.put(mBuffer);
+            mBuffer = buffer;
+        }
+        // Otherwise, the buffer will throw BufferOverflowException
+    }
+
+    private void writeTag(int tag) throws IOException {
+        require(1);
+        mBuffer.put((byte)tag);
+    }
+
+    private void writeVarint(int value) throws IOException {
+        require(5);
+        while ((value & ~0x7f) != 0) {
+            mBuffer.put((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        mBuffer.put((byte)value);
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+        writeVarint(length);
+        if (mChannel != null && length > mBuffer.capacity()) {
+            // Too large to buffer, write it to the channel directly
+            flush();
+            ByteBuffer src = ByteBuffer.wrap(bytes, offset, length);
+            while (src.hasRemaining()) {
+                mChannel.write(src);
+            }
+            return;
+        }
+        require(length);
+        mBuffer.put(bytes, offset, length);
+    }
+
+    private void writeValue(LuaValue value) throws IOException {
+        switch (value.type()) {
+        case LuaValue.TNIL:
+            writeTag(TAG_NIL);
+            break;
+        case LuaValue.TBOOLEAN:
+            writeTag(value.toboolean() ? TAG_TRUE : TAG_FALSE);
+            break;
+        case LuaValue.TNUMBER:
+            if (value.isinttype()) {
+                // Zigzag encoding keeps small negative numbers small
+                int i = value.toint();
+                writeTag(TAG_INT);
+                writeVarint((i << 1) ^ (i >> 31));
+            } else {
+                writeTag(TAG_DOUBLE);
+                require(8);
+                mBuffer.putDouble(value.todouble());
+            }
+            break;
+        case LuaValue.TSTRING:
+            LuaString str = value.checkstring();
+            writeTag(TAG_STRING);
+            writeBytes(str.m_bytes, str.m_offset, str.m_length);
+            break;
+        case LuaValue.TTABLE:
+            writeTable((LuaTable)value);
+            break;
+        case LuaValue.TUSERDATA:
+            writeUserdata(value);
+            break;
+        default:
+            throw new IllegalArgumentException("Cannot serialize a " + value.typename());
+        }
+    }
+
+    private void writeTable(LuaTable table) throws IOException {
+        Integer id = mTableIds.get(table);
+        if (id != null) {
+            writeTag(TAG_REF);
+            writeVarint(id);
+            return;
+        }
+        mTableIds.put(table, mTableIds.size());
+
+        // The array part is written as a sequence of values, followed
+        // by the remaining entries as key-value pairs ending with nil
+        int length = table.rawlen();
+        writeTag(TAG_TABLE);
+        writeVarint(length);
+        for (int i = 1; i <= length; ++i) {
+            writeValue(table.rawget(i));
+        }
+
+        LuaValue key = LuaValue.NIL;
+        while (true) {
+            Varargs entry = table.next(key);
+            key = entry.arg1();
+            if (key.isnil()) {
+                break;
+            }
+            if (key.isinttype()) {
+                int index = key.toint();
+                if (index >= 1 && index <= length) {
+                    continue;
+                }
+            }
+            writeValue(key);
+            writeValue(entry.arg(2));
+        }
+        writeTag(TAG_NIL);
+    }
+
+    private void writeUserdata(LuaValue value) throws IOException {
+        Object instance = value.touserdata();
+        UserdataType userdataType = instance == null ? null : findUserdataType(instance.getClass());
+        if (userdataType == null) {
+            throw new IllegalArgumentException("Cannot serialize userdata of unregistered type: " +
+                (instance == null ? null : instance.getClass().getName()));
+        }
+        writeTag(TAG_USERDATA);
+        byte[] name = userdataType.mNameBytes;
+        writeBytes(name, 0, name.length);
+        writeValue(userdataType.toLua(instance));
+    }
+
+    /* package */ static class UserdataType {
+        private final Class<?> mType;
+        private final byte[] mNameBytes;
+        private final LuaConverter<Object> mConverter;
+
+        @SuppressWarnings("unchecked")
+        public UserdataType(String name, Class<?> type, LuaConverter<?> converter) {
+            mType = type;
+            LuaString luaName = LuaString.valueOf(name);
+            mNameBytes = new byte[luaName.m_length];
+            luaName.copyInto(0, mNameBytes, 0, mNameBytes.length);
+            mConverter = (LuaConverter<Object>)converter;
+        }
+
+        public LuaValue toLua(Object instance) {
+            return mConverter.toLua(instance);
+        }
+
+        public Object toJava(LuaValue value) {
+            return mConverter.toJava(value);
+        }
+    }
+}
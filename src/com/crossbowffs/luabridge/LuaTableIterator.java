@@ -10,25 +10,39 @@ import java.util.NoSuchElementException;
 /* package */ abstract class LuaTableIterator implements Iterator<Varargs> {
     private LuaTable mTable;
     private LuaValue mCurrentKey;
+    // The entry following the current key, if it has been looked up
+    // by hasNext() already; this ensures every entry is only looked
+    // up once, no matter how hasNext() and next() are called
+    private Varargs mNextEntry;
 
     public LuaTableIterator(LuaTable table, LuaValue initialKey) {
         mTable = table;
         mCurrentKey = initialKey;
     }
 
+    private Varargs nextEntry() {
+        Varargs entry = mNextEntry;
+        if (entry == null) {
+            entry = peekNext(mTable, mCurrentKey);
+            mNextEntry = entry;
+        }
+        return entry;
+    }
+
     @Override
     public boolean hasNext() {
-        Varargs entry = peekNext(mTable, mCurrentKey);
-        return !entry.arg1().isnil();
+        return !nextEntry().arg1().isnil();
     }
 
     @Override
     public Varargs next() {
-        Varargs entry = peekNext(mTable, mCurrentKey);
-        mCurrentKey = entry.arg1();
-        if (mCurrentKey.isnil()) {
+        Varargs entry = nextEntry();
+        LuaValue key = entry.arg1();
+        if (key.isnil()) {
             throw new NoSuchElementException();
         }
+        mCurrentKey = key;
+        mNextEntry = null;
         return entry;
     }
 
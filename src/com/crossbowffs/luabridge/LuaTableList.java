@@ -0,0 +1,119 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.RandomAccess;
+
+/**
+ * A live {@link java.util.List} view of the array part of a {@link LuaTable}.
+ * Elements are converted only when they are accessed, and changes made
+ * through the list are immediately visible in the table and vice versa.
+ * Obtain an instance using {@link LuaUtils#asList(LuaTable, Class)}.
+ *
+ * <p>
+ * Since Lua arrays cannot contain {@code nil}, this list does
+ * not support {@code null} elements.
+ *
+ * <p>
+ * Elements are converted using {@link LuaUtils#bridgeLuaToJava(LuaValue, Class)},
+ * or {@link LuaUtils#bridgeLuaToJava(LuaValue)} if the element type is
+ * {@link Object}, so reading an element of the wrong type throws a
+ * {@link org.luaj.vm2.LuaError}.
+ *
+ * @param <E> The type of the elements in the list.
+ */
+public class LuaTableList<E> extends AbstractList<E> implements RandomAccess {
+    private final LuaTable mTable;
+    private final LuaConverter<Object> mLuaConverter;
+    private final LuaConverter<Object> mJavaConverter;
+
+    /* package */ LuaTableList(LuaTable table, Class<E> elementType) {
+        mTable = table;
+        mLuaConverter = LuaConverters.forReturnType(elementType);
+        mJavaConverter = LuaConverters.forElementType(elementType);
+    }
+
+    /**
+     * Returns the table backing this list.
+     */
+    public LuaTable getTable() {
+        return mTable;
+    }
+
+    private void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    private LuaValue toLua(E element) {
+        if (element == null) {
+            throw new NullPointerException("Lua arrays cannot contain nil");
+        }
+        return mLuaConverter.toLua(element);
+    }
+
+    @SuppressWarnings("unchecked")
+    private E toJava(LuaValue value) {
+        return (E)mJavaConverter.toJava(value);
+    }
+
+    @Override
+    public int size() {
+        return mTable.length();
+    }
+
+    @Override
+    public E get(int index) {
+        checkIndex(index, size());
+        return toJava(mTable.get(index + 1));
+    }
+
+    @Override
+    public E set(int index, E element) {
+        checkIndex(index, size());
+        LuaValue oldValue = mTable.get(index + 1);
+        mTable.set(index + 1, toLua(element));
+        return toJava(oldValue);
+    }
+
+    @Override
+    public void add(int index, E element) {
+        checkIndex(index, size() + 1);
+        mTable.insert(index + 1, toLua(element));
+        modCount++;
+    }
+
+    @Override
+    public E remove(int index) {
+        checkIndex(index, size());
+        modCount++;
+        return toJava(mTable.remove(index + 1));
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        final LuaArrayIterator iterator = new LuaArrayIterator(mTable);
+        return new Iterator<E>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                Varargs entry = iterator.next();
+                return toJava(entry.arg(2));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("remove");
+            }
+        };
+    }
+}
@@ -0,0 +1,216 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A live {@link java.util.Map} view of a {@link LuaTable}. Keys and values
+ * are converted only when they are accessed, and changes made through the
+ * map are immediately visible in the table and vice versa. Obtain an
+ * instance using {@link LuaUtils#asMap(LuaTable, Class, Class)}.
+ *
+ * <p>
+ * Since Lua tables cannot contain {@code nil} keys or values, this map
+ * does not support {@code null} keys or values. Lookups are performed
+ * directly on the table, but {@link #size()} has to iterate over the
+ * entire table. Entries cannot be removed while iterating.
+ *
+ * <p>
+ * Keys and values are converted using {@link LuaUtils#bridgeLuaToJava(LuaValue, Class)},
+ * or {@link LuaUtils#bridgeLuaToJava(LuaValue)} if their type is
+ * {@link Object}, so reading an entry of the wrong type throws a
+ * {@link org.luaj.vm2.LuaError}.
+ *
+ * @param <K> The type of the keys in the map.
+ * @param <V> The type of the values in the map.
+ */
+public class LuaTableMap<K, V> extends AbstractMap<K, V> {
+    private final LuaTable mTable;
+    private final LuaConverter<Object> mKeyLuaConverter;
+    private final LuaConverter<Object> mKeyJavaConverter;
+    private final LuaConverter<Object> mValueLuaConverter;
+    private final LuaConverter<Object> mValueJavaConverter;
+    private Set<Map.Entry<K, V>> mEntrySet;
+
+    /* package */ LuaTableMap(LuaTable table, Class<K> keyType, Class<V> valueType) {
+        mTable = table;
+        mKeyLuaConverter = LuaConverters.forReturnType(keyType);
+        mKeyJavaConverter = LuaConverters.forElementType(keyType);
+        mValueLuaConverter = LuaConverters.forReturnType(valueType);
+        mValueJavaConverter = LuaConverters.forElementType(valueType);
+    }
+
+    /**
+     * Returns the table backing this map.
+     */
+    public LuaTable getTable() {
+        return mTable;
+    }
+
+    private LuaValue keyToLua(Object key) {
+        if (key == null) {
+            throw new NullPointerException("Lua tables cannot contain nil keys");
+        }
+        return mKeyLuaConverter.toLua(key);
+    }
+
+    private LuaValue valueToLua(Object value) {
+        if (value == null) {
+            throw new NullPointerException("Lua tables cannot contain nil values");
+        }
+        return mValueLuaConverter.toLua(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private K keyToJava(LuaValue key) {
+        return (K)mKeyJavaConverter.toJava(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueToJava(LuaValue value) {
+        return (V)mValueJavaConverter.toJava(value);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        LuaMapIterator iterator = new LuaMapIterator(mTable);
+        while (iterator.hasNext()) {
+            iterator.next();
+            size++;
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !new LuaMapIterator(mTable).hasNext();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key != null && !mTable.get(keyToLua(key)).isnil();
+    }
+
+    @Override
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        return valueToJava(mTable.get(keyToLua(key)));
+    }
+
+    @Override
+    public V put(K key, V value) {
+        LuaValue luaKey = keyToLua(key);
+        LuaValue oldValue = mTable.get(luaKey);
+        mTable.set(luaKey, valueToLua(value));
+        return valueToJava(oldValue);
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+        LuaValue luaKey = keyToLua(key);
+        LuaValue oldValue = mTable.get(luaKey);
+        mTable.set(luaKey, LuaValue.NIL);
+        return valueToJava(oldValue);
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new EntrySet();
+        }
+        return mEntrySet;
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+        @Override
+        public int size() {
+            return LuaTableMap.this.size();
+        }
+
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            final LuaMapIterator iterator = new LuaMapIterator(mTable);
+            return new Iterator<Map.Entry<K, V>>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Map.Entry<K, V> next() {
+                    return new Entry(iterator.next());
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException("remove");
+                }
+            };
+        }
+    }
+
+    private class Entry implements Map.Entry<K, V> {
+        private final LuaValue mKey;
+        private LuaValue mValue;
+
+        public Entry(Varargs entry) {
+            mKey = entry.arg1();
+            mValue = entry.arg(2);
+        }
+
+        @Override
+        public K getKey() {
+            return keyToJava(mKey);
+        }
+
+        @Override
+        public V getValue() {
+            return valueToJava(mValue);
+        }
+
+        @Override
+        public V setValue(V value) {
+            LuaValue oldValue = mValue;
+            mValue = valueToLua(value);
+            mTable.set(mKey, mValue);
+            return valueToJava(oldValue);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>)o;
+            K key = getKey();
+            V value = getValue();
+            return (key == null ? other.getKey() == null : key.equals(other.getKey())) &&
+                (value == null ? other.getValue() == null : value.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            K key = getKey();
+            V value = getValue();
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * {@link Spliterator} and {@link Stream} factories for {@link LuaTable}.
+ * Requires Java 8; the rest of the library does not depend on this class.
+ *
+ * <p>
+ * The array spliterators cover the indices {@code 1} to
+ * {@link LuaTable#rawlen()}, as determined when the spliterator is created.
+ * They are {@link Spliterator#SIZED} and split by halving the remaining
+ * index range, so parallel streams divide the work evenly without
+ * traversing the table first. Entries are read using
+ * {@link LuaTable#rawget(int)}, so metamethods are not invoked.
+ *
+ * <p>
+ * The table must not be modified while it is being traversed.
+ * Reading from multiple threads at once is safe as long as no
+ * thread writes to the table.
+ */
+public final class LuaTableStreams {
+    private static final int ARRAY_CHARACTERISTICS =
+        Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED;
+
+    private LuaTableStreams() { }
+
+    /**
+     * Returns a spliterator over the values in the array part of
+     * the specified table. Holes in the array are reported as
+     * {@link LuaValue#NIL}.
+     *
+     * @param table The table to traverse.
+     */
+    public static Spliterator<LuaValue> arraySpliterator(LuaTable table) {
+        return new ValueSpliterator(table, 1, table.rawlen() + 1);
+    }
+
+    /**
+     * Returns a spliterator over the values in the array part of
+     * the specified table, converted to the specified type using
+     * the same rules as {@link LuaUtils#bridgeLuaToJava(LuaValue, Class)},
+     * or {@link LuaUtils#bridgeLuaToJava(LuaValue)} if the type is
+     * {@link Object}. A {@link org.luaj.vm2.LuaError} is thrown when
+     * a value of the wrong type is reached.
+     *
+     * @param table The table to traverse.
+     * @param elementType The type to convert the values to.
+     */
+    public static <E> Spliterator<E> arraySpliterator(LuaTable table, Class<E> elementType) {
+        LuaConverter<Object> converter = LuaConverters.forElementType(elementType);
+        return new ConvertingSpliterator<E>(table, 1, table.rawlen() + 1, converter);
+    }
+
+    /**
+     * Returns a spliterator over the values in the array part of
+     * the specified table as {@code int}s, without boxing. A
+     * {@link org.luaj.vm2.LuaError} is thrown when a value that
+     * is not a number is reached.
+     *
+     * @param table The table to traverse.
+     */
+    public static Spliterator.OfInt intSpliterator(LuaTable table) {
+        return new IntSpliterator(table, 1, table.rawlen() + 1);
+    }
+
+    /**
+     * Returns a spliterator over the values in the array part of
+     * the specified table as {@code double}s, without boxing. A
+     * {@link org.luaj.vm2.LuaError} is thrown when a value that
+     * is not a number is reached.
+     *
+     * @param table The table to traverse.
+     */
+    public static Spliterator.OfDouble doubleSpliterator(LuaTable table) {
+        return new DoubleSpliterator(table, 1, table.rawlen() + 1);
+    }
+
+    /**
+     * Returns a spliterator over all key-value pairs in the specified
+     * table, in the same order as {@link LuaMapIterator}. Each element
+     * is a {@link Varargs} with the key as the first value and the
+     * value as the second. Since the number of keys is not known without
+     * traversing the table, this spliterator is not sized, and splits
+     * off batches of entries instead.
+     *
+     * @param table The table to traverse.
+     */
+    public static Spliterator<Varargs> entrySpliterator(LuaTable table) {
+        return Spliterators.spliteratorUnknownSize(new LuaMapIterator(table), Spliterator.NONNULL);
+    }
+
+    /**
+     * Returns a stream of the values in the array part of the
+     * specified table. See {@link #arraySpliterator(LuaTable)}.
+     *
+     * @param table The table to stream.
+     * @param parallel Whether to return a parallel stream.
+     */
+    public static Stream<LuaValue> arrayStream(LuaTable table, boolean parallel) {
+        return StreamSupport.stream(arraySpliterator(table), parallel);
+    }
+
+    /**
+     * Returns a stream of the values in the array part of the
+     * specified table, converted to the specified type. See
+     * {@link #arraySpliterator(LuaTable, Class)}.
+     *
+     * @param table The table to stream.
+     * @param elementType The type to convert the values to.
+     * @param parallel Whether to return a parallel stream.
+     */
+    public static <E> Stream<E> arrayStream(LuaTable table, Class<E> elementType, boolean parallel) {
+        return StreamSupport.stream(arraySpliterator(table, elementType), parallel);
+    }
+
+    /**
+     * Returns a stream of the values in the array part of the
+     * specified table as {@code int}s. See {@link #intSpliterator(LuaTable)}.
+     *
+     * @param table The table to stream.
+     * @param parallel Whether to return a parallel stream.
+     */
+    public static IntStream intStream(LuaTable table, boolean parallel) {
+        return StreamSupport.intStream(intSpliterator(table), parallel);
+    }
+
+    /**
+     * Returns a stream of the values in the array part of the
+     * specified table as {@code double}s. See {@link #doubleSpliterator(LuaTable)}.
+     *
+     * @param table The table to stream.
+     * @param parallel Whether to return a parallel stream.
+     */
+    public static DoubleStream doubleStream(LuaTable table, boolean parallel) {
+        return StreamSupport.doubleStream(doubleSpliterator(table), parallel);
+    }
+
+    /**
+     * Returns a stream of all key-value pairs in the specified
+     * table. See {@link #entrySpliterator(LuaTable)}.
+     *
+     * @param table The table to stream.
+     * @param parallel Whether to return a parallel stream.
+     */
+    public static Stream<Varargs> entryStream(LuaTable table, boolean parallel) {
+        return StreamSupport.stream(entrySpliterator(table), parallel);
+    }
+
+    /**
+     * Base class for spliterators over a range of indices
+     * in the array part of a table.
+     */
+    private static abstract class IndexSpliterator<S extends Spliterator<?>> {
+        protected final LuaTable mTable;
+        protected int mIndex;
+        protected final int mFence;
+
+        protected IndexSpliterator(LuaTable table, int index, int fence) {
+            mTable = table;
+            mIndex = index;
+            mFence = fence;
+        }
+
+        protected abstract S split(int index, int fence);
+
+        public S trySplit() {
+            int index = mIndex;
+            int mid = (index + mFence) >>> 1;
+            if (index >= mid) {
+                return null;
+            }
+            mIndex = mid;
+            return split(index, mid);
+        }
+
+        public long estimateSize() {
+            return mFence - mIndex;
+        }
+    }
+
+    private static final class ValueSpliterator
+            extends IndexSpliterator<ValueSpliterator>
+            implements Spliterator<LuaValue> {
+        public ValueSpliterator(LuaTable table, int index, int fence) {
+            super(table, index, fence);
+        }
+
+        @Override
+        protected ValueSpliterator split(int index, int fence) {
+            return new ValueSpliterator(mTable, index, fence);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super LuaValue> action) {
+            if (mIndex >= mFence) {
+                return false;
+            }
+            action.accept(mTable.rawget(mIndex++));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super LuaValue> action) {
+            LuaTable table = mTable;
+            int fence = mFence;
+            for (int i = mIndex; i < fence; ++i) {
+                action.accept(table.rawget(i));
+            }
+            mIndex = fence;
+        }
+
+        @Override
+        public int characteristics() {
+            return ARRAY_CHARACTERISTICS | Spliterator.NONNULL;
+        }
+    }
+
+    private static final class ConvertingSpliterator<E>
+            extends IndexSpliterator<ConvertingSpliterator<E>>
+            implements Spliterator<E> {
+        private final LuaConverter<Object> mConverter;
+
+        public ConvertingSpliterator(LuaTable table, int index, int fence, LuaConverter<Object> converter) {
+            super(table, index, fence);
+            mConverter = converter;
+        }
+
+        @Override
+        protected ConvertingSpliterator<E> split(int index, int fence) {
+            return new ConvertingSpliterator<E>(mTable, index, fence, mConverter);
+        }
+
+        @SuppressWarnings("unchecked")
+        private E get(int index) {
+            return (E)mConverter.toJava(mTable.rawget(index));
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super E> action) {
+            if (mIndex >= mFence) {
+                return false;
+            }
+            action.accept(get(mIndex++));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super E> action) {
+            int fence = mFence;
+            for (int i = mIndex; i < fence; ++i) {
+                action.accept(get(i));
+            }
+            mIndex = fence;
+        }
+
+        @Override
+        public int characteristics() {
+            return ARRAY_CHARACTERISTICS;
+        }
+    }
+
+    private static final class IntSpliterator
+            extends IndexSpliterator<IntSpliterator>
+            implements Spliterator.OfInt {
+        public IntSpliterator(LuaTable table, int index, int fence) {
+            super(table, index, fence);
+        }
+
+        @Override
+        protected IntSpliterator split(int index, int fence) {
+            return new IntSpliterator(mTable, index, fence);
+        }
+
+        @Override
+        public boolean tryAdvance(IntConsumer action) {
+            if (mIndex >= mFence) {
+                return false;
+            }
+            action.accept(mTable.rawget(mIndex++).checkint());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            LuaTable table = mTable;
+            int fence = mFence;
+            for (int i = mIndex; i < fence; ++i) {
+                action.accept(table.rawget(i).checkint());
+            }
+            mIndex = fence;
+        }
+
+        @Override
+        public int characteristics() {
+            return ARRAY_CHARACTERISTICS | Spliterator.NONNULL;
+        }
+    }
+
+    private static final class DoubleSpliterator
+            extends IndexSpliterator<DoubleSpliterator>
+            implements Spliterator.OfDouble {
+        public DoubleSpliterator(LuaTable table, int index, int fence) {
+            super(table, index, fence);
+        }
+
+        @Override
+        protected DoubleSpliterator split(int index, int fence) {
+            return new DoubleSpliterator(mTable, index, fence);
+        }
+
+        @Override
+        public boolean tryAdvance(DoubleConsumer action) {
+            if (mIndex >= mFence) {
+                return false;
+            }
+            action.accept(mTable.rawget(mIndex++).checkdouble());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(DoubleConsumer action) {
+            LuaTable table = mTable;
+            int fence = mFence;
+            for (int i = mIndex; i < fence; ++i) {
+                action.accept(table.rawget(i).checkdouble());
+            }
+            mIndex = fence;
+        }
+
+        @Override
+        public int characteristics() {
+            return ARRAY_CHARACTERISTICS | Spliterator.NONNULL;
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.crossbowffs.luabridge;
 import org.luaj.vm2.*;
 
 import java.lang.reflect.Array;
+import java.util.List;
+import java.util.Map;
 
 public final class LuaUtils {
     private LuaUtils() { }
@@ -17,6 +19,7 @@ public final class LuaUtils {
      *     <li>{@link Integer} -> {@link LuaInteger}</li>
      *     <li>(other primitive wrapper classes...)</li>
      *     <li>{@link LuaValue} -> {@link LuaValue}</li>
+     *     <li>(types with a registered {@link LuaConverter}...)</li>
      *     <li>{@link Object} -> {@link LuaUserdata}</li>
      * </ol>
      *
@@ -34,27 +37,25 @@ public final class LuaUtils {
         } else if (javaValue instanceof LuaValue) {
             return (LuaValue)javaValue;
         } else if (javaValue instanceof String) {
-            return LuaString.valueOf((String)javaValue);
+            return LuaConverters.toLuaString((String)javaValue);
         } else if (javaValue instanceof Integer) {
-            return LuaInteger.valueOf((Integer)javaValue);
+            return LuaConverters.toLuaNumber((Integer)javaValue);
         } else if (javaValue instanceof Float) {
-            return LuaDouble.valueOf((Float)javaValue);
+            return LuaConverters.toLuaNumber((Float)javaValue);
         } else if (javaValue instanceof Boolean) {
             return LuaBoolean.valueOf((Boolean)javaValue);
         } else if (javaValue instanceof Double) {
-            return LuaDouble.valueOf((Double)javaValue);
+            return LuaConverters.toLuaNumber((Double)javaValue);
         } else if (javaValue instanceof Long) {
-            return LuaInteger.valueOf((Long)javaValue);
+            return LuaConverters.toLuaNumber((Long)javaValue);
         } else if (javaValue instanceof Short) {
-            return LuaInteger.valueOf((Short)javaValue);
+            return LuaConverters.toLuaNumber((Short)javaValue);
         } else if (javaValue instanceof Byte) {
-            return LuaInteger.valueOf((Byte)javaValue);
+            return LuaConverters.toLuaNumber((Byte)javaValue);
         } else if (javaValue instanceof Character) {
-            return LuaInteger.valueOf((Character)javaValue);
-        } else if (javaValue.getClass().isArray()) {
-            return toTable(javaValue);
+            return LuaConverters.toLuaNumber((Character)javaValue);
         } else {
-            return new LuaUserdata(javaValue);
+            return LuaConverters.toLua(javaValue);
         }
     }
 
@@ -92,6 +93,10 @@ public final class LuaUtils {
      * the Lua object will be directly returned.
      *
      * <p>
+     * If a {@link LuaConverter} has been registered for {@code expectedType},
+     * it will be used to convert the value.
+     *
+     * <p>
      * If {@code expectedType} refers to any other Java class,
      * {@code luaValue} must be an instance of {@link LuaUserdata} that
      * wraps that type.
@@ -100,37 +105,7 @@ public final class LuaUtils {
      * @param expectedType The Java class to convert the value to.
      */
     public static Object bridgeLuaToJava(LuaValue luaValue, Class<?> expectedType) {
-        if (luaValue.isnil() && !expectedType.isPrimitive()) {
-            return null;
-        } else if (String.class.equals(expectedType)) {
-            return luaValue.checkjstring();
-        } else if (int.class.equals(expectedType) || Integer.class.equals(expectedType)) {
-            return luaValue.checkint();
-        } else if (float.class.equals(expectedType) || Float.class.equals(expectedType)) {
-            return (float)luaValue.checkdouble();
-        } else if (boolean.class.equals(expectedType) || Boolean.class.equals(expectedType)) {
-            return luaValue.checkboolean();
-        } else if (double.class.equals(expectedType) || Double.class.equals(expectedType)) {
-            return luaValue.checkdouble();
-        } else if (long.class.equals(expectedType) || Long.class.equals(expectedType)) {
-            return luaValue.checklong();
-        } else if (short.class.equals(expectedType) || Short.class.equals(expectedType)) {
-            return (short)luaValue.checkint();
-        } else if (byte.class.equals(expectedType) || Byte.class.equals(expectedType)) {
-            return (byte)luaValue.checkint();
-        } else if (char.class.equals(expectedType) || Character.class.equals(expectedType)) {
-            return (char)luaValue.checkint();
-        } else if (LuaValue.class.isAssignableFrom(expectedType)) {
-            if (!expectedType.isAssignableFrom(luaValue.getClass())) {
-                throw new LuaError("Cannot convert " + luaValue.typename() +
-                    " to " + expectedType.getName());
-            }
-            return luaValue;
-        } else if (expectedType.isArray()) {
-            return toArray(luaValue.checktable(), expectedType.getComponentType());
-        } else {
-            return luaValue.checkuserdata(expectedType);
-        }
+        return LuaConverters.forType(expectedType).toJava(luaValue);
     }
 
     /**
@@ -148,7 +123,7 @@ public final class LuaUtils {
         case LuaValue.TNIL:
             return null;
         case LuaValue.TSTRING:
-            return luaValue.tojstring();
+            return LuaConverters.toJavaString((LuaString)luaValue);
         case LuaValue.TBOOLEAN:
             return luaValue.toboolean();
         case LuaValue.TINT:
@@ -170,19 +145,56 @@ public final class LuaUtils {
      * @param table The table to check.
      */
     public static boolean isArray(LuaTable table) {
-        // Algorithm from http://stackoverflow.com/a/6080274/1808989
-        // Basically, we just check whether the number of items
-        // returned from ipairs() is the same as the number of items
-        // returned from pairs(). If true, then the table is an array.
-        int i = 0;
-        LuaMapIterator iterator = new LuaMapIterator(table);
-        while (iterator.hasNext()) {
-            iterator.next();
-            if (table.get(++i).isnil()) {
+        // Since keys are unique, the table is an array if and only if
+        // every key is a positive integer, and the largest key is equal
+        // to the number of keys. This only needs to visit each entry
+        // once, without looking up the value at each index again.
+        int count = 0;
+        int maxKey = 0;
+        LuaValue key = LuaValue.NIL;
+        while (true) {
+            key = table.next(key).arg1();
+            if (key.isnil()) {
+                break;
+            }
+            if (!key.isinttype()) {
                 return false;
             }
+            int index = key.toint();
+            if (index < 1) {
+                return false;
+            }
+            if (index > maxKey) {
+                maxKey = index;
+            }
+            count++;
         }
-        return true;
+        return maxKey == count;
+    }
+
+    /**
+     * Returns a live {@link List} view of the array part of the specified
+     * table. Unlike {@link #toArray(LuaTable, Class)}, the table is not
+     * copied, and elements are only converted when they are accessed.
+     *
+     * @param table The table to wrap.
+     * @param elementType The type of the elements within the list.
+     */
+    public static <E> List<E> asList(LuaTable table, Class<E> elementType) {
+        return new LuaTableList<E>(table, elementType);
+    }
+
+    /**
+     * Returns a live {@link Map} view of the specified table. The table
+     * is not copied, and keys and values are only converted when they
+     * are accessed.
+     *
+     * @param table The table to wrap.
+     * @param keyType The type of the keys within the map.
+     * @param valueType The type of the values within the map.
+     */
+    public static <K, V> Map<K, V> asMap(LuaTable table, Class<K> keyType, Class<V> valueType) {
+        return new LuaTableMap<K, V>(table, keyType, valueType);
     }
 
     /**
@@ -190,15 +202,60 @@ public final class LuaUtils {
      * {@link LuaValue} objects to their corresponding Java
      * equivalents using {@link #bridgeLuaToJava(LuaValue, Class)}.
      *
+     * <p>
+     * Arrays of primitive types and {@link String} are filled without
+     * boxing each element. Use the methods in {@link LuaArrays} if
+     * you want to fill an existing array instead.
+     *
      * @param table The table to convert.
      * @param expectedType The type of the elements within the array.
      */
     public static Object toArray(LuaTable table, Class<?> expectedType) {
         int length = table.length();
-        Object array = Array.newInstance(expectedType, length);
+        if (int.class.equals(expectedType)) {
+            int[] array = new int[length];
+            LuaArrays.copyToArray(table, array);
+            return array;
+        } else if (double.class.equals(expectedType)) {
+            double[] array = new double[length];
+            LuaArrays.copyToArray(table, array);
+            return array;
+        } else if (String.class.equals(expectedType)) {
+            String[] array = new String[length];
+            LuaArrays.copyToArray(table, array);
+            return array;
+        } else if (long.class.equals(expectedType)) {
+            long[] array = new long[length];
+            LuaArrays.copyToArray(table, array);
+            return array;
+        } else if (float.class.equals(expectedType)) {
+            float[] array = new float[length];
+            LuaArrays.copyToArray(table, array);
+            return array;
+        } else if (boolean.class.equals(expectedType)) {
+            boolean[] array = new boolean[length];
+            LuaArrays.copyToArray(table, array);
+            return array;
+        } else if (byte.class.equals(expectedType)) {
+            byte[] array = new byte[length];
+            LuaArrays.copyToArray(table, array);
+            return array;
+        } else if (short.class.equals(expectedType)) {
+            short[] array = new short[length];
+            LuaArrays.copyToArray(table, array);
+            return array;
+        } else if (char.class.equals(expectedType)) {
+            char[] array = new char[length];
+            LuaArrays.copyToArray(table, array);
+            return array;
+        }
+
+        // Resolve the converter once for the whole array,
+        // rather than once per element
+        LuaConverter<?> converter = LuaConverters.forType(expectedType);
+        Object[] array = (Object[])Array.newInstance(expectedType, length);
         for (int i = 0; i < length; ++i) {
-            LuaValue value = table.get(i + 1);
-            Array.set(array, i, bridgeLuaToJava(value, expectedType));
+            array[i] = converter.toJava(table.get(i + 1));
         }
         return array;
     }
@@ -247,15 +304,44 @@ public final class LuaUtils {
      * Java objects to their corresponding Lua equivalents using
      * {@link #bridgeJavaToLuaIn(Object)}.
      *
+     * <p>
+     * Arrays of primitive types and {@link String} are converted without
+     * boxing each element. Use the methods in {@link LuaArrays} if
+     * you want to fill an existing table instead.
+     *
      * @param array The array to convert.
      */
     public static LuaTable toTable(Object array) {
-        int length = Array.getLength(array);
-        LuaTable table = new LuaTable(length, 0);
-        for (int i = 0; i < length; ++i) {
-            LuaValue value = bridgeJavaToLuaIn(Array.get(array, i));
-            table.set(i + 1, value);
+        if (array instanceof Object[] && !(array instanceof String[])) {
+            Object[] objects = (Object[])array;
+            LuaTable table = new LuaTable(objects.length, 0);
+            for (int i = 0; i < objects.length; ++i) {
+                table.rawset(i + 1, bridgeJavaToLuaIn(objects[i]));
+            }
+            return table;
+        }
+
+        LuaTable table = new LuaTable(Array.getLength(array), 0);
+        if (array instanceof int[]) {
+            return LuaArrays.copyToTable((int[])array, table);
+        } else if (array instanceof double[]) {
+            return LuaArrays.copyToTable((double[])array, table);
+        } else if (array instanceof String[]) {
+            return LuaArrays.copyToTable((String[])array, table);
+        } else if (array instanceof long[]) {
+            return LuaArrays.copyToTable((long[])array, table);
+        } else if (array instanceof float[]) {
+            return LuaArrays.copyToTable((float[])array, table);
+        } else if (array instanceof boolean[]) {
+            return LuaArrays.copyToTable((boolean[])array, table);
+        } else if (array instanceof byte[]) {
+            return LuaArrays.copyToTable((byte[])array, table);
+        } else if (array instanceof short[]) {
+            return LuaArrays.copyToTable((short[])array, table);
+        } else if (array instanceof char[]) {
+            return LuaArrays.copyToTable((char[])array, table);
+        } else {
+            throw new IllegalArgumentException("Not an array: " + array.getClass().getName());
         }
-        return table;
     }
 }
@@ -0,0 +1,45 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaTable;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe cache of metatables for exposed classes. Lookups are
+ * lock-free, and since the metatables are stored alongside their
+ * classes, caching a class does not prevent it from being unloaded.
+ */
+/* package */ class MetatableCache extends ClassValue<LuaTable> {
+    private final AtomicLong mLookups = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    // Only used to count the cached classes, touched on misses only.
+    // The keys are weak, so this does not keep the classes alive either.
+    private final Map<Class<?>, Boolean> mClasses =
+        Collections.synchronizedMap(new WeakHashMap<Class<?>, Boolean>());
+
+    public LuaTable getMetatable(Class<?> cls) {
+        mLookups.incrementAndGet();
+        return get(cls);
+    }
+
+    @Override
+    protected LuaTable computeValue(Class<?> cls) {
+        // This may be called more than once for the same class if
+        // multiple threads race to create it; only one result is kept
+        mMisses.incrementAndGet();
+        LuaTable metatable = ExposedJavaClass.createMetatable(cls);
+        mClasses.put(cls, Boolean.TRUE);
+        return metatable;
+    }
+
+    public MetatableCacheStats getStats() {
+        // Read misses first so that hits can never become negative
+        long misses = mMisses.get();
+        long lookups = mLookups.get();
+        return new MetatableCacheStats(mClasses.size(), Math.max(0, lookups - misses), misses);
+    }
+}
@@ -0,0 +1,45 @@
+package com.crossbowffs.luabridge;
+
+/**
+ * A snapshot of the statistics of the metatable cache used by
+ * {@link ExposedJavaClass}. Obtain an instance using
+ * {@link ExposedJavaClass#getMetatableCacheStats()}.
+ */
+public final class MetatableCacheStats {
+    private final int mSize;
+    private final long mHits;
+    private final long mMisses;
+
+    /* package */ MetatableCacheStats(int size, long hits, long misses) {
+        mSize = size;
+        mHits = hits;
+        mMisses = misses;
+    }
+
+    /**
+     * Returns the number of classes that currently have a cached
+     * metatable. Classes that have been unloaded are not counted.
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of lookups that were served from the cache.
+     */
+    public long getHits() {
+        return mHits;
+    }
+
+    /**
+     * Returns the number of lookups that had to create a new metatable.
+     */
+    public long getMisses() {
+        return mMisses;
+    }
+
+    @Override
+    public String toString() {
+        return "MetatableCacheStats{size=" + mSize + ", hits=" + mHits + ", misses=" + mMisses + "}";
+    }
+}
@@ -0,0 +1,268 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Calls a Java method through a {@link MethodHandle}. The handle
+ * is adapted once to a generic {@code (Object, Object...)Object}
+ * shape, so that each call is a single {@code invokeExact} with no
+ * access checks and no exception wrapping. Methods with up to 3
+ * parameters can be called without allocating an argument array.
+ * Numeric return values are converted to Lua numbers by the handle
+ * itself, so they are never boxed; see {@link #convertsReturnValue()}.
+ * Likewise, methods with up to 3 parameters that are all primitives
+ * get a second handle that converts the arguments from Lua without
+ * boxing them; see {@link #convertsArguments()}.
+ */
+/* package */ abstract class MethodHandleInvoker extends JavaMethodInvoker {
+    private static final MethodHandle TO_LUA_INT;
+    private static final MethodHandle TO_LUA_LONG;
+    private static final MethodHandle TO_LUA_DOUBLE;
+    private static final MethodHandle CHECK_INT;
+    private static final MethodHandle CHECK_LONG;
+    private static final MethodHandle CHECK_DOUBLE;
+    private static final MethodHandle CHECK_BOOLEAN;
+    private static final MethodHandle WRAP_EXCEPTION;
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            CHECK_INT = lookup.findVirtual(LuaValue.class, "checkint", MethodType.methodType(int.class));
+            CHECK_LONG = lookup.findVirtual(LuaValue.class, "checklong", MethodType.methodType(long.class));
+            CHECK_DOUBLE = lookup.findVirtual(LuaValue.class, "checkdouble", MethodType.methodType(double.class));
+            CHECK_BOOLEAN = lookup.findVirtual(LuaValue.class, "checkboolean", MethodType.methodType(boolean.class));
+            WRAP_EXCEPTION = lookup.findStatic(MethodHandleInvoker.class, "wrapException",
+                MethodType.methodType(Object.class, Throwable.class));
+            TO_LUA_INT = lookup.findStatic(LuaConverters.class, "toLuaNumber",
+                MethodType.methodType(LuaValue.class, int.class));
+            TO_LUA_LONG = lookup.findStatic(LuaConverters.class, "toLuaNumber",
+                MethodType.methodType(LuaValue.class, long.class));
+            TO_LUA_DOUBLE = lookup.findStatic(LuaConverters.class, "toLuaNumber",
+                MethodType.methodType(LuaValue.class, double.class));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    protected final MethodHandle mHandle;
+    protected MethodHandle mLuaHandle;
+    private final boolean mConvertsReturnValue;
+
+    private MethodHandleInvoker(MethodHandle handle, boolean convertsReturnValue) {
+        mHandle = handle;
+        mConvertsReturnValue = convertsReturnValue;
+    }
+
+    @Override
+    public boolean convertsReturnValue() {
+        return mConvertsReturnValue;
+    }
+
+    @Override
+    public boolean convertsArguments() {
+        return mLuaHandle != null;
+    }
+
+    private static Object wrapException(Throwable e) {
+        throw new LuaError(e);
+    }
+
+    public static MethodHandleInvoker fromMethod(Method method) throws IllegalAccessException {
+        MethodHandle handle = MethodHandles.lookup().unreflect(method);
+
+        // Static methods ignore the receiver, so give them a dummy
+        // leading parameter to get the same shape as instance methods
+        if (Modifier.isStatic(method.getModifiers())) {
+            handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        }
+
+        // Converts numbers straight to Lua, instead of boxing them
+        // first and converting the box afterwards
+        MethodHandle toLua = getReturnFilter(method.getReturnType());
+        if (toLua != null) {
+            handle = handle.asType(handle.type().changeReturnType(toLua.type().parameterType(0)));
+            handle = MethodHandles.filterReturnValue(handle, toLua);
+        }
+
+        MethodHandle luaHandle = createLuaHandle(handle, method.getParameterTypes());
+
+        // Boxes/unboxes primitives and maps void returns to null
+        int arity = method.getParameterTypes().length;
+        handle = handle.asType(MethodType.genericMethodType(arity + 1));
+
+        boolean convertsReturnValue = toLua != null;
+        MethodHandleInvoker invoker;
+        switch (arity) {
+        case 0:
+            invoker = new Arity0(handle, convertsReturnValue);
+            break;
+        case 1:
+            invoker = new Arity1(handle, convertsReturnValue);
+            break;
+        case 2:
+            invoker = new Arity2(handle, convertsReturnValue);
+            break;
+        case 3:
+            invoker = new Arity3(handle, convertsReturnValue);
+            break;
+        default:
+            return new Spread(handle.asSpreader(Object[].class, arity), convertsReturnValue);
+        }
+        invoker.mLuaHandle = luaHandle;
+        return invoker;
+    }
+
+    private static MethodHandle createLuaHandle(MethodHandle handle, Class<?>[] parameterTypes) {
+        if (parameterTypes.length == 0 || parameterTypes.length > 3) {
+            return null;
+        }
+
+        MethodHandle[] filters = new MethodHandle[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; ++i) {
+            filters[i] = getArgumentFilter(parameterTypes[i]);
+            if (filters[i] == null) {
+                return null;
+            }
+        }
+
+        // Exceptions thrown by the method are wrapped inside the handle,
+        // so that errors from converting the arguments, which are
+        // already LuaErrors, can be told apart and are not wrapped again
+        MethodType type = handle.type().changeReturnType(Object.class).changeParameterType(0, Object.class);
+        handle = handle.asType(type);
+        MethodHandle handler = MethodHandles.dropArguments(WRAP_EXCEPTION, 1, type.parameterList());
+        handle = MethodHandles.catchException(handle, Throwable.class, handler);
+        return MethodHandles.filterArguments(handle, 1, filters);
+    }
+
+    private static MethodHandle getArgumentFilter(Class<?> parameterType) {
+        // Converts the same way as the converters in LuaConverters,
+        // including the narrowing casts, but without boxing
+        if (parameterType == int.class) {
+            return CHECK_INT;
+        } else if (parameterType == short.class || parameterType == byte.class || parameterType == char.class) {
+            return MethodHandles.explicitCastArguments(CHECK_INT,
+                MethodType.methodType(parameterType, LuaValue.class));
+        } else if (parameterType == long.class) {
+            return CHECK_LONG;
+        } else if (parameterType == double.class) {
+            return CHECK_DOUBLE;
+        } else if (parameterType == float.class) {
+            return MethodHandles.explicitCastArguments(CHECK_DOUBLE,
+                MethodType.methodType(float.class, LuaValue.class));
+        } else if (parameterType == boolean.class) {
+            return CHECK_BOOLEAN;
+        } else {
+            return null;
+        }
+    }
+
+    private static MethodHandle getReturnFilter(Class<?> returnType) {
+        if (returnType == int.class || returnType == short.class ||
+            returnType == byte.class || returnType == char.class) {
+            return TO_LUA_INT;
+        } else if (returnType == long.class) {
+            return TO_LUA_LONG;
+        } else if (returnType == double.class || returnType == float.class) {
+            return TO_LUA_DOUBLE;
+        } else {
+            return null;
+        }
+    }
+
+    private static class Arity0 extends MethodHandleInvoker {
+        public Arity0(MethodHandle handle, boolean convertsReturnValue) {
+            super(handle, convertsReturnValue);
+        }
+
+        @Override
+        public Object invoke(Object thisObject, Object[] parameters) throws Throwable {
+            return invoke0(thisObject);
+        }
+
+        @Override
+        public Object invoke0(Object thisObject) throws Throwable {
+            return mHandle.invokeExact(thisObject);
+        }
+    }
+
+    private static class Arity1 extends MethodHandleInvoker {
+        public Arity1(MethodHandle handle, boolean convertsReturnValue) {
+            super(handle, convertsReturnValue);
+        }
+
+        @Override
+        public Object invoke(Object thisObject, Object[] parameters) throws Throwable {
+            return invoke1(thisObject, parameters[0]);
+        }
+
+        @Override
+        public Object invoke1(Object thisObject, Object p0) throws Throwable {
+            return mHandle.invokeExact(thisObject, p0);
+        }
+
+        @Override
+        public Object invokeLua1(Object thisObject, LuaValue a) throws Throwable {
+            return mLuaHandle.invokeExact(thisObject, a);
+        }
+    }
+
+    private static class Arity2 extends MethodHandleInvoker {
+        public Arity2(MethodHandle handle, boolean convertsReturnValue) {
+            super(handle, convertsReturnValue);
+        }
+
+        @Override
+        public Object invoke(Object thisObject, Object[] parameters) throws Throwable {
+            return invoke2(thisObject, parameters[0], parameters[1]);
+        }
+
+        @Override
+        public Object invoke2(Object thisObject, Object p0, Object p1) throws Throwable {
+            return mHandle.invokeExact(thisObject, p0, p1);
+        }
+
+        @Override
+        public Object invokeLua2(Object thisObject, LuaValue a, LuaValue b) throws Throwable {
+            return mLuaHandle.invokeExact(thisObject, a, b);
+        }
+    }
+
+    private static class Arity3 extends MethodHandleInvoker {
+        public Arity3(MethodHandle handle, boolean convertsReturnValue) {
+            super(handle, convertsReturnValue);
+        }
+
+        @Override
+        public Object invoke(Object thisObject, Object[] parameters) throws Throwable {
+            return invoke3(thisObject, parameters[0], parameters[1], parameters[2]);
+        }
+
+        @Override
+        public Object invoke3(Object thisObject, Object p0, Object p1, Object p2) throws Throwable {
+            return mHandle.invokeExact(thisObject, p0, p1, p2);
+        }
+
+        @Override
+        public Object invokeLua3(Object thisObject, LuaValue a, LuaValue b, LuaValue c) throws Throwable {
+            return mLuaHandle.invokeExact(thisObject, a, b, c);
+        }
+    }
+
+    private static class Spread extends MethodHandleInvoker {
+        public Spread(MethodHandle handle, boolean convertsReturnValue) {
+            super(handle, convertsReturnValue);
+        }
+
+        @Override
+        public Object invoke(Object thisObject, Object[] parameters) throws Throwable {
+            return mHandle.invokeExact(thisObject, parameters);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.crossbowffs.luabridge;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live call metrics of a single exposed method, shared by all of its
+ * overloads. Use {@link LuaMetrics#getMethodStats()} to read them.
+ *
+ * <p>
+ * Calls are timed using the following pattern, which only reads
+ * a volatile flag when metrics are disabled:
+ * <pre>
+ * long start = metrics.start();
+ * // convert arguments
+ * long invokeStart = metrics.timestamp(start);
+ * // call Java method
+ * long invokeEnd = metrics.timestamp(start);
+ * // convert return value
+ * metrics.record(start, invokeStart, invokeEnd);
+ * </pre>
+ * A timestamp of 0 means that metrics were disabled when the call started.
+ * For methods returning a future, waiting for its result is part of
+ * calling the Java method, not of converting the return value.
+ * The same calls also tell {@link LuaProfiler} which phase of the call
+ * is running, if it is sampling.
+ */
+public final class MethodMetrics {
+    private final Class<?> mDeclaringClass;
+    private final String mMethodName;
+    private String mProfilerName;
+    private final AtomicLong mErrorCount = new AtomicLong();
+    private final AtomicLong mConversionNanos = new AtomicLong();
+    private final AtomicLong mJavaNanos = new AtomicLong();
+    private final AtomicLongArray mConversionBuckets = new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+    private final AtomicLongArray mJavaBuckets = new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+
+    /* package */ MethodMetrics(Class<?> declaringClass, String methodName) {
+        mDeclaringClass = declaringClass;
+        mMethodName = methodName;
+    }
+
+    /* package */ long start() {
+        if (LuaProfiler.isRunning()) {
+            LuaProfiler.enterMethod(this);
+        }
+        return LuaMetrics.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    /* package */ long timestamp(long start) {
+        if (LuaProfiler.isRunning()) {
+            LuaProfiler.nextPhase(this);
+        }
+        return start != 0 ? System.nanoTime() : 0;
+    }
+
+    /* package */ void record(long start, long invokeStart, long invokeEnd) {
+        if (LuaProfiler.isRunning()) {
+            LuaProfiler.exitMethod(this);
+        }
+        if (start != 0) {
+            long end = System.nanoTime();
+            record((invokeStart - start) + (end - invokeEnd), invokeEnd - invokeStart, false);
+        }
+    }
+
+    /* package */ void recordError(long start, long invokeStart) {
+        if (LuaProfiler.isRunning()) {
+            LuaProfiler.exitMethod(this);
+        }
+        if (start != 0) {
+            long end = System.nanoTime();
+            record(invokeStart - start, end - invokeStart, true);
+        }
+    }
+
+    private void record(long conversionNanos, long javaNanos, boolean failed) {
+        if (failed) {
+            mErrorCount.incrementAndGet();
+        }
+        mConversionNanos.addAndGet(conversionNanos);
+        mJavaNanos.addAndGet(javaNanos);
+        mConversionBuckets.incrementAndGet(LatencyHistogram.bucketOf(conversionNanos));
+        mJavaBuckets.incrementAndGet(LatencyHistogram.bucketOf(javaNanos));
+
+        LuaMetricsListener listener = LuaMetrics.getListener();
+        if (listener != null) {
+            listener.onMethodCall(mDeclaringClass, mMethodName, conversionNanos, javaNanos, failed);
+        }
+    }
+
+    /* package */ String getProfilerName() {
+        // Racy, but every thread computes the same name
+        String name = mProfilerName;
+        if (name == null) {
+            name = mDeclaringClass.getSimpleName() + "." + mMethodName;
+            mProfilerName = name;
+        }
+        return name;
+    }
+
+    /* package */ void reset() {
+        mErrorCount.set(0);
+        mConversionNanos.set(0);
+        mJavaNanos.set(0);
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; ++i) {
+            mConversionBuckets.set(i, 0);
+            mJavaBuckets.set(i, 0);
+        }
+    }
+
+    /* package */ MethodStats snapshot() {
+        return new MethodStats(
+            mDeclaringClass.getName(),
+            mMethodName,
+            mErrorCount.get(),
+            LatencyHistogram.snapshot(mConversionBuckets, mConversionNanos.get()),
+            LatencyHistogram.snapshot(mJavaBuckets, mJavaNanos.get()));
+    }
+}
@@ -0,0 +1,73 @@
+package com.crossbowffs.luabridge;
+
+/**
+ * A snapshot of the call metrics of a single exposed method.
+ * Obtain instances using {@link LuaMetrics#getMethodStats()}.
+ */
+public final class MethodStats {
+    private final String mClassName;
+    private final String mMethodName;
+    private final long mErrorCount;
+    private final LatencyHistogram mConversionTime;
+    private final LatencyHistogram mJavaTime;
+
+    /* package */ MethodStats(String className, String methodName, long errorCount,
+                              LatencyHistogram conversionTime, LatencyHistogram javaTime) {
+        mClassName = className;
+        mMethodName = methodName;
+        mErrorCount = errorCount;
+        mConversionTime = conversionTime;
+        mJavaTime = javaTime;
+    }
+
+    /**
+     * Returns the name of the class that declares the method.
+     */
+    public String getClassName() {
+        return mClassName;
+    }
+
+    /**
+     * Returns the name of the method in Lua.
+     */
+    public String getMethodName() {
+        return mMethodName;
+    }
+
+    /**
+     * Returns the number of times the method was called.
+     */
+    public long getCallCount() {
+        return mConversionTime.getCount();
+    }
+
+    /**
+     * Returns the number of calls where the Java method threw an
+     * exception. Calls that failed because an argument could not be
+     * converted are not counted, since the method was never called.
+     */
+    public long getErrorCount() {
+        return mErrorCount;
+    }
+
+    /**
+     * Returns the time spent converting arguments
+     * and return values between Lua and Java.
+     */
+    public LatencyHistogram getConversionTime() {
+        return mConversionTime;
+    }
+
+    /**
+     * Returns the time spent executing the Java method.
+     */
+    public LatencyHistogram getJavaTime() {
+        return mJavaTime;
+    }
+
+    @Override
+    public String toString() {
+        return "MethodStats{" + mClassName + "." + mMethodName + ", calls=" + getCallCount() +
+            ", errors=" + mErrorCount + ", conversion=" + mConversionTime + ", java=" + mJavaTime + "}";
+    }
+}
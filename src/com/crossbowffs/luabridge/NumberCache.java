@@ -0,0 +1,174 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaDouble;
+import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaValue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe cache of {@link LuaInteger} and {@link LuaDouble} values,
+ * so that numbers returned to Lua repeatedly do not allocate a new
+ * object every time. LuaJ itself only caches integers from -256 to 255.
+ *
+ * <p>
+ * Integers within a configurable range are cached in an array that is
+ * filled lazily, so a wide range only costs memory for the values that
+ * are actually used. Entries are immutable, so a racing thread at worst
+ * allocates a duplicate. Doubles that are not integers are only cached
+ * if they are one of a fixed set of constants.
+ */
+/* package */ final class NumberCache {
+    // The range of integers that LuaJ caches itself; conversions
+    // within it never allocate, so they are not counted
+    private static final int LUAJ_MIN = -256;
+    private static final int LUAJ_MAX = 255;
+
+    private final int mMin;
+    private final int mMax;
+    private final LuaInteger[] mIntegers;
+    private final LuaValue[] mDoubles;
+    private final long[] mDoubleBits;
+    private final int mDoubleMask;
+    private final int mDoubleCount;
+    private final double[] mDoubleConstants;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    public NumberCache(int min, int max, double[] constants) {
+        mMin = min;
+        mMax = max;
+        mIntegers = new LuaInteger[max - min + 1];
+
+        // Open addressing with linear probing, at most half full
+        int capacity = Integer.highestOneBit(Math.max(constants.length, 1)) << 2;
+        mDoubles = new LuaValue[capacity];
+        mDoubleBits = new long[capacity];
+        mDoubleMask = capacity - 1;
+        int count = 0;
+        for (double constant : constants) {
+            // Integral values are converted to integers by LuaJ anyways
+            if (constant == (int)constant) {
+                continue;
+            }
+            long bits = Double.doubleToLongBits(constant);
+            int index = spread(bits) & mDoubleMask;
+            while (mDoubles[index] != null && mDoubleBits[index] != bits) {
+                index = (index + 1) & mDoubleMask;
+            }
+            if (mDoubles[index] == null) {
+                mDoubles[index] = LuaDouble.valueOf(constant);
+                mDoubleBits[index] = bits;
+                count++;
+            }
+        }
+        mDoubleCount = count;
+        mDoubleConstants = constants;
+    }
+
+    private static int spread(long bits) {
+        int hash = (int)(bits ^ (bits >>> 32));
+        return hash ^ (hash >>> 16);
+    }
+
+    public int getIntegerMin() {
+        return mMin;
+    }
+
+    public int getIntegerMax() {
+        return mMax;
+    }
+
+    public double[] getDoubleConstants() {
+        return mDoubleConstants;
+    }
+
+    public LuaValue toLua(int value) {
+        if (value < mMin || value > mMax) {
+            if (value < LUAJ_MIN || value > LUAJ_MAX) {
+                recordMiss();
+            }
+            return LuaInteger.valueOf(value);
+        }
+
+        int index = value - mMin;
+        LuaInteger cached = mIntegers[index];
+        boolean counted = value < LUAJ_MIN || value > LUAJ_MAX;
+        if (cached != null) {
+            if (counted) {
+                recordHit();
+            }
+            return cached;
+        }
+
+        if (counted) {
+            recordMiss();
+        }
+        cached = LuaInteger.valueOf(value);
+        mIntegers[index] = cached;
+        return cached;
+    }
+
+    public LuaValue toLua(long value) {
+        int intValue = (int)value;
+        if (intValue == value) {
+            return toLua(intValue);
+        }
+        recordMiss();
+        return LuaDouble.valueOf(value);
+    }
+
+    public LuaValue toLua(double value) {
+        // Same as LuaDouble.valueOf(), which returns
+        // integers for doubles with integral values
+        int intValue = (int)value;
+        if (intValue == value) {
+            return toLua(intValue);
+        }
+
+        if (mDoubleCount > 0) {
+            long bits = Double.doubleToLongBits(value);
+            int index = spread(bits) & mDoubleMask;
+            LuaValue cached;
+            while ((cached = mDoubles[index]) != null) {
+                if (mDoubleBits[index] == bits) {
+                    recordHit();
+                    return cached;
+                }
+                index = (index + 1) & mDoubleMask;
+            }
+        }
+
+        recordMiss();
+        return LuaDouble.valueOf(value);
+    }
+
+    private void recordHit() {
+        // Like the string cache, counting is skipped while metrics
+        // are disabled, to avoid contending on the counter
+        if (LuaMetrics.isEnabled()) {
+            mHits.incrementAndGet();
+        }
+    }
+
+    private void recordMiss() {
+        if (LuaMetrics.isEnabled()) {
+            mMisses.incrementAndGet();
+        }
+    }
+
+    public void resetStats() {
+        mHits.set(0);
+        mMisses.set(0);
+    }
+
+    public NumberCacheStats getStats() {
+        int size = 0;
+        for (LuaInteger value : mIntegers) {
+            if (value != null) {
+                size++;
+            }
+        }
+        return new NumberCacheStats(mMin, mMax, size, mDoubleCount, mHits.get(), mMisses.get());
+    }
+}
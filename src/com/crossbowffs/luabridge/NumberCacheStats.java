@@ -0,0 +1,90 @@
+package com.crossbowffs.luabridge;
+
+/**
+ * A snapshot of the statistics of the cache used to convert numbers
+ * from Java to Lua. Obtain an instance using
+ * {@link LuaConverters#getNumberCacheStats()}. Hits and misses are
+ * only counted while {@link LuaMetrics} are enabled.
+ */
+public final class NumberCacheStats {
+    private final int mIntegerMin;
+    private final int mIntegerMax;
+    private final int mIntegerCount;
+    private final int mDoubleCount;
+    private final long mHits;
+    private final long mMisses;
+
+    /* package */ NumberCacheStats(int integerMin, int integerMax, int integerCount,
+                                   int doubleCount, long hits, long misses) {
+        mIntegerMin = integerMin;
+        mIntegerMax = integerMax;
+        mIntegerCount = integerCount;
+        mDoubleCount = doubleCount;
+        mHits = hits;
+        mMisses = misses;
+    }
+
+    /**
+     * Returns the smallest integer that can be cached.
+     */
+    public int getIntegerMin() {
+        return mIntegerMin;
+    }
+
+    /**
+     * Returns the largest integer that can be cached.
+     */
+    public int getIntegerMax() {
+        return mIntegerMax;
+    }
+
+    /**
+     * Returns the number of integers that are currently cached.
+     */
+    public int getIntegerCount() {
+        return mIntegerCount;
+    }
+
+    /**
+     * Returns the number of non-integral double constants that
+     * are cached.
+     */
+    public int getDoubleCount() {
+        return mDoubleCount;
+    }
+
+    /**
+     * Returns the number of conversions that were served from the
+     * cache, each of which avoided allocating a new Lua number.
+     * Integers from -256 to 255, which LuaJ caches itself, are
+     * not counted.
+     */
+    public long getHits() {
+        return mHits;
+    }
+
+    /**
+     * Returns the number of conversions that allocated a new Lua
+     * number, either because the value was not cached yet, or
+     * because it could not be cached.
+     */
+    public long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the fraction of counted conversions that were served
+     * from the cache, or 0 if there were none.
+     */
+    public double getHitRate() {
+        long lookups = mHits + mMisses;
+        return lookups == 0 ? 0 : (double)mHits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "NumberCacheStats{integerMin=" + mIntegerMin + ", integerMax=" + mIntegerMax +
+            ", integerCount=" + mIntegerCount + ", doubleCount=" + mDoubleCount +
+            ", hits=" + mHits + ", misses=" + mMisses + "}";
+    }
+}
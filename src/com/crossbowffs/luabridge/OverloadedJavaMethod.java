@@ -0,0 +1,582 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.*;
+import org.luaj.vm2.lib.VarArgFunction;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Dispatches calls to one of several overloaded Java methods that are
+ * exposed under the same name. The overload is selected based on the
+ * number of arguments and their runtime Lua types:
+ * <p>
+ * <ul>
+ *     <li>Overloads without a {@link Varargs} parameter must take exactly
+ *     as many arguments as were passed. Overloads with a {@link Varargs}
+ *     parameter are only considered if none of the others match.</li>
+ *     <li>Exact matches (e.g. a Lua integer for an {@code int}) are preferred
+ *     over widening conversions (an integer for a {@code double}), which are
+ *     preferred over lossy conversions (a float for an {@code int}, or a
+ *     number for a {@link String}).</li>
+ *     <li>For userdata, an overload taking a subclass is preferred over one
+ *     taking its superclass.</li>
+ * </ul>
+ *
+ * <p>
+ * Overloads that would match some non-nil arguments equally well are
+ * rejected when they are added. This includes overloads that cannot be
+ * told apart by the Lua types of their arguments (e.g. {@code f(int)}
+ * and {@code f(long)}, or {@code f(int)} and {@code f(Integer)}), as well
+ * as overloads that are each better for different arguments by the same
+ * amount (e.g. {@code f(int, double)} and {@code f(double, int)} for two
+ * integers). Calls that still match more than one overload equally
+ * well, which can only happen if {@code nil} was passed, raise a Lua error.
+ *
+ * <p>
+ * The selected overload is cached per combination of argument types (and
+ * userdata classes), so repeated calls with the same kinds of arguments
+ * do not have to resolve the overload again.
+ */
+/* package */ class OverloadedJavaMethod extends VarArgFunction {
+    // Argument type codes used as the cache key
+    private static final int T_NIL = 0;
+    private static final int T_BOOLEAN = 1;
+    private static final int T_INTEGER = 2;
+    private static final int T_DOUBLE = 3;
+    private static final int T_STRING = 4;
+    private static final int T_TABLE = 5;
+    private static final int T_FUNCTION = 6;
+    private static final int T_USERDATA = 7;
+    private static final int T_OTHER = 8;
+    private static final int TYPE_COUNT = 9;
+
+    // How well an argument of a given type matches a parameter,
+    // higher is better, 0 means the argument is not applicable
+    private static final byte NO_MATCH = 0;
+    private static final byte ANY = 1;
+    private static final byte COERCION = 2;
+    private static final byte WIDENING = 3;
+    private static final byte EXACT = 4;
+
+    // Each argument type takes 4 bits in the cache key
+    private static final int MAX_CACHED_ARGS = 15;
+    private static final int MAX_CACHE_ENTRIES = 8;
+    private static final CacheEntry[] EMPTY_CACHE = new CacheEntry[0];
+
+    private final String mExposedName;
+    private Overload[] mOverloads = new Overload[0];
+    private boolean mIsStatic;
+    private volatile CacheEntry[] mCache = EMPTY_CACHE;
+
+    public OverloadedJavaMethod(String exposedName) {
+        mExposedName = exposedName;
+    }
+
+    /**
+     * Adds an overload to this method. This must be done before
+     * the method is exposed to Lua.
+     *
+     * @param function The function that calls the Java method.
+     * @param isStatic Whether the Java method is static.
+     * @param parameterTypes The parameter types of the Java method.
+     * @throws IllegalArgumentException If the overload would be
+     * ambiguous with a previously added overload for some arguments.
+     */
+    public void addOverload(LuaFunction function, boolean isStatic, Class<?>[] parameterTypes) {
+        if (mOverloads.length == 0) {
+            mIsStatic = isStatic;
+        } else if (mIsStatic != isStatic) {
+            throw new IllegalArgumentException("Overloads of method " + mExposedName +
+                " must either all be static or all be instance methods");
+        }
+
+        Overload overload = new Overload(function, mExposedName, parameterTypes);
+        for (Overload other : mOverloads) {
+            if (overload.isAmbiguousWith(other)) {
+                throw new IllegalArgumentException("Ambiguous overloads for method " +
+                    mExposedName + ": " + other + " and " + overload);
+            }
+        }
+
+        Overload[] overloads = Arrays.copyOf(mOverloads, mOverloads.length + 1);
+        overloads[mOverloads.length] = overload;
+        mOverloads = overloads;
+        mCache = EMPTY_CACHE;
+    }
+
+    private static int typeCode(LuaValue value) {
+        switch (value.type()) {
+        case TNIL:
+            return T_NIL;
+        case TBOOLEAN:
+            return T_BOOLEAN;
+        case TNUMBER:
+            return value.isinttype() ? T_INTEGER : T_DOUBLE;
+        case TSTRING:
+            return T_STRING;
+        case TTABLE:
+            return T_TABLE;
+        case TFUNCTION:
+            return T_FUNCTION;
+        case TUSERDATA:
+            return T_USERDATA;
+        default:
+            return T_OTHER;
+        }
+    }
+
+    private static Class<?> userdataClass(LuaValue value) {
+        Object instance = value.touserdata();
+        return instance == null ? null : instance.getClass();
+    }
+
+    private static LuaValue arg(int index, LuaValue a, LuaValue b, LuaValue c, Varargs args) {
+        // Avoids creating Varargs for calls made through call()
+        if (args != null) {
+            return args.arg(index);
+        }
+        switch (index) {
+        case 1:
+            return a;
+        case 2:
+            return b;
+        case 3:
+            return c;
+        default:
+            return NIL;
+        }
+    }
+
+    private Overload select(int narg, LuaValue a, LuaValue b, LuaValue c, Varargs args) {
+        // The object is not considered when selecting
+        // an overload of an instance method
+        int first = mIsStatic ? 1 : 2;
+        int count = Math.max(0, narg - first + 1);
+        if (count > MAX_CACHED_ARGS) {
+            return resolve(first, count, a, b, c, args);
+        }
+
+        long key = 0;
+        boolean hasUserdata = false;
+        for (int i = 0; i < count; ++i) {
+            LuaValue value = arg(first + i, a, b, c, args);
+            int type = typeCode(value);
+            if (type == T_USERDATA) {
+                // Userdata without an object can't be
+                // distinguished by class in the cache
+                if (value.touserdata() == null) {
+                    return resolve(first, count, a, b, c, args);
+                }
+                hasUserdata = true;
+            }
+            key |= (long)type << (i * 4);
+        }
+
+        CacheEntry[] cache = mCache;
+        for (CacheEntry entry : cache) {
+            if (entry.matches(count, key, first, a, b, c, args)) {
+                return entry.mOverload;
+            }
+        }
+
+        Overload overload = resolve(first, count, a, b, c, args);
+
+        // Once the cache is full, the call site is considered
+        // megamorphic and overloads are resolved on every call
+        if (cache.length < MAX_CACHE_ENTRIES) {
+            Class<?>[] classes = null;
+            if (hasUserdata) {
+                classes = new Class<?>[count];
+                for (int i = 0; i < count; ++i) {
+                    LuaValue value = arg(first + i, a, b, c, args);
+                    if (value.type() == TUSERDATA) {
+                        classes[i] = userdataClass(value);
+                    }
+                }
+            }
+            CacheEntry[] newCache = Arrays.copyOf(cache, cache.length + 1);
+            newCache[cache.length] = new CacheEntry(count, key, classes, overload);
+            mCache = newCache;
+        }
+        return overload;
+    }
+
+    private Overload resolve(int first, int count, LuaValue a, LuaValue b, LuaValue c, Varargs args) {
+        // Like Java, only consider overloads with
+        // varargs if no other overload is applicable
+        Overload best = resolve(false, first, count, a, b, c, args);
+        if (best == null) {
+            best = resolve(true, first, count, a, b, c, args);
+        }
+        if (best == null) {
+            throw new LuaError("No overload of method " + mExposedName +
+                " matches arguments " + describeArgs(first, count, a, b, c, args));
+        }
+        return best;
+    }
+
+    private Overload resolve(boolean varargs, int first, int count,
+                             LuaValue a, LuaValue b, LuaValue c, Varargs args) {
+        Overload best = null;
+        for (Overload overload : mOverloads) {
+            if (overload.mHasVarargs == varargs && overload.isApplicable(first, count, a, b, c, args)) {
+                if (best == null || overload.compareTo(best, first, a, b, c, args) > 0) {
+                    best = overload;
+                }
+            }
+        }
+
+        // Make sure the best overload is strictly better than every
+        // other applicable one, not just the ones that came before it
+        if (best != null) {
+            for (Overload overload : mOverloads) {
+                if (overload != best && overload.mHasVarargs == varargs &&
+                    overload.isApplicable(first, count, a, b, c, args) &&
+                    best.compareTo(overload, first, a, b, c, args) <= 0) {
+                    throw new LuaError("Ambiguous call to overloaded method " + mExposedName +
+                        " with arguments " + describeArgs(first, count, a, b, c, args));
+                }
+            }
+        }
+        return best;
+    }
+
+    private static String describeArgs(int first, int count, LuaValue a, LuaValue b, LuaValue c, Varargs args) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < count; ++i) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            LuaValue value = arg(first + i, a, b, c, args);
+            Class<?> cls = value.type() == TUSERDATA ? userdataClass(value) : null;
+            sb.append(cls != null ? cls.getName() : value.typename());
+        }
+        return sb.append(")").toString();
+    }
+
+    @Override
+    public LuaValue call() {
+        return select(0, NIL, NIL, NIL, null).mFunction.call();
+    }
+
+    @Override
+    public LuaValue call(LuaValue a) {
+        return select(1, a, NIL, NIL, null).mFunction.call(a);
+    }
+
+    @Override
+    public LuaValue call(LuaValue a, LuaValue b) {
+        return select(2, a, b, NIL, null).mFunction.call(a, b);
+    }
+
+    @Override
+    public LuaValue call(LuaValue a, LuaValue b, LuaValue c) {
+        return select(3, a, b, c, null).mFunction.call(a, b, c);
+    }
+
+    @Override
+    public Varargs invoke(Varargs args) {
+        return select(args.narg(), null, null, null, args).mFunction.invoke(args);
+    }
+
+    @Override
+    public String tojstring() {
+        return "function: " + mExposedName;
+    }
+
+    private static class CacheEntry {
+        private final int mCount;
+        private final long mKey;
+        private final Class<?>[] mClasses;
+        private final Overload mOverload;
+
+        public CacheEntry(int count, long key, Class<?>[] classes, Overload overload) {
+            mCount = count;
+            mKey = key;
+            mClasses = classes;
+            mOverload = overload;
+        }
+
+        public boolean matches(int count, long key, int first, LuaValue a, LuaValue b, LuaValue c, Varargs args) {
+            if (mCount != count || mKey != key) {
+                return false;
+            }
+            if (mClasses != null) {
+                for (int i = 0; i < count; ++i) {
+                    if (mClasses[i] != null && mClasses[i] != userdataClass(arg(first + i, a, b, c, args))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Overload {
+        private final LuaFunction mFunction;
+        private final String mSignature;
+        private final Parameter[] mParameters;
+        private final boolean mHasVarargs;
+
+        public Overload(LuaFunction function, String exposedName, Class<?>[] parameterTypes) {
+            mFunction = function;
+            mHasVarargs = parameterTypes.length > 0 &&
+                parameterTypes[parameterTypes.length - 1].equals(Varargs.class);
+
+            // The varargs parameter accepts any number of arguments
+            // of any type, so it is not matched against anything
+            int fixedCount = mHasVarargs ? parameterTypes.length - 1 : parameterTypes.length;
+            mParameters = new Parameter[fixedCount];
+            StringBuilder signature = new StringBuilder(exposedName).append("(");
+            for (int i = 0; i < parameterTypes.length; ++i) {
+                if (i < fixedCount) {
+                    mParameters[i] = new Parameter(parameterTypes[i]);
+                }
+                if (i > 0) {
+                    signature.append(", ");
+                }
+                signature.append(parameterTypes[i].getSimpleName());
+            }
+            mSignature = signature.append(")").toString();
+        }
+
+        /**
+         * Returns whether there are non-nil arguments that both overloads
+         * are applicable to, for which {@link #compareTo} finds neither
+         * overload better than the other.
+         */
+        public boolean isAmbiguousWith(Overload other) {
+            if (mHasVarargs != other.mHasVarargs || mParameters.length != other.mParameters.length) {
+                return false;
+            }
+
+            // Tracks which outcomes of compareTo() are possible for the
+            // arguments so far, indexed by [better | worse << 1][rankDiff]
+            int offset = (EXACT - ANY) * mParameters.length;
+            boolean[][] outcomes = new boolean[4][2 * offset + 1];
+            outcomes[0][offset] = true;
+            for (int i = 0; i < mParameters.length; ++i) {
+                Parameter parameter = mParameters[i];
+                Parameter otherParameter = other.mParameters[i];
+                boolean[][] next = new boolean[4][2 * offset + 1];
+                boolean applicable = false;
+                for (int type = 0; type < TYPE_COUNT; ++type) {
+                    if (type == T_NIL || !parameter.overlaps(otherParameter, type)) {
+                        continue;
+                    }
+                    applicable = true;
+                    int diff = parameter.mRanks[type] - otherParameter.mRanks[type];
+                    int cmp = diff != 0 ? diff : parameter.compareSpecificity(otherParameter);
+                    int flags = cmp > 0 ? 1 : cmp < 0 ? 2 : 0;
+                    for (int state = 0; state < 4; ++state) {
+                        for (int sum = 0; sum < next[state].length; ++sum) {
+                            if (outcomes[state][sum]) {
+                                next[state | flags][sum + diff] = true;
+                            }
+                        }
+                    }
+                }
+                if (!applicable) {
+                    // No non-nil argument matches both parameters
+                    return false;
+                }
+                outcomes = next;
+            }
+
+            // Ambiguous if neither overload is better for any argument,
+            // or each is better for some arguments by the same amount
+            for (boolean tie : outcomes[0]) {
+                if (tie) {
+                    return true;
+                }
+            }
+            return outcomes[3][offset];
+        }
+
+        public boolean isApplicable(int first, int count, LuaValue a, LuaValue b, LuaValue c, Varargs args) {
+            if (mHasVarargs ? count < mParameters.length : count != mParameters.length) {
+                return false;
+            }
+            for (int i = 0; i < mParameters.length; ++i) {
+                if (mParameters[i].rank(arg(first + i, a, b, c, args)) == NO_MATCH) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns a positive number if this overload is a better match for
+         * the arguments than the other overload, a negative number if it
+         * is a worse match, and 0 if neither is better than the other.
+         */
+        public int compareTo(Overload other, int first, LuaValue a, LuaValue b, LuaValue c, Varargs args) {
+            boolean better = false, worse = false;
+            int rankDiff = 0;
+            for (int i = 0; i < mParameters.length && i < other.mParameters.length; ++i) {
+                LuaValue value = arg(first + i, a, b, c, args);
+                int cmp = mParameters[i].compareTo(other.mParameters[i], value);
+                better |= (cmp > 0);
+                worse |= (cmp < 0);
+                rankDiff += mParameters[i].rank(value) - other.mParameters[i].rank(value);
+            }
+            if (better != worse) {
+                return better ? 1 : -1;
+            }
+
+            // If each overload is better for some of the arguments,
+            // e.g. add(int, int) and add(double, double) for (1.5, 2),
+            // pick the one that needs the fewest conversions overall
+            return better ? rankDiff : 0;
+        }
+
+        @Override
+        public String toString() {
+            return mSignature;
+        }
+    }
+
+    private static class Parameter {
+        private final Class<?> mType;
+        private final byte[] mRanks = new byte[TYPE_COUNT];
+        private final Class<?> mUserdataType;
+
+        public Parameter(Class<?> type) {
+            mType = type;
+            byte[] ranks = mRanks;
+            Class<?> userdataType = null;
+            if (LuaConverters.isCustomType(type) || type.equals(LuaValue.class) || type.equals(Varargs.class)) {
+                // We don't know which types a custom converter accepts
+                Arrays.fill(ranks, ANY);
+            } else if (isIntegerType(type)) {
+                ranks[T_INTEGER] = EXACT;
+                ranks[T_DOUBLE] = COERCION;
+            } else if (isFloatingType(type)) {
+                ranks[T_DOUBLE] = EXACT;
+                ranks[T_INTEGER] = WIDENING;
+            } else if (type.equals(boolean.class) || type.equals(Boolean.class)) {
+                ranks[T_BOOLEAN] = EXACT;
+            } else if (type.equals(String.class) || type.equals(LuaString.class)) {
+                ranks[T_STRING] = EXACT;
+                ranks[T_INTEGER] = COERCION;
+                ranks[T_DOUBLE] = COERCION;
+            } else if (type.equals(CharSequence.class) || type.equals(ByteBuffer.class)) {
+                // Also accept Java objects of that type, e.g. a StringBuilder
+                ranks[T_STRING] = EXACT;
+                ranks[T_USERDATA] = EXACT;
+                userdataType = type;
+                if (type.equals(CharSequence.class)) {
+                    ranks[T_INTEGER] = COERCION;
+                    ranks[T_DOUBLE] = COERCION;
+                }
+            } else if (type.equals(byte[].class)) {
+                // Passed as a string, but tables are still accepted
+                ranks[T_STRING] = EXACT;
+                ranks[T_TABLE] = COERCION;
+            } else if (LuaValue.class.isAssignableFrom(type)) {
+                matchLuaValueType(ranks, type, T_BOOLEAN, LuaBoolean.class);
+                matchLuaValueType(ranks, type, T_INTEGER, LuaInteger.class);
+                matchLuaValueType(ranks, type, T_DOUBLE, LuaDouble.class);
+                matchLuaValueType(ranks, type, T_STRING, LuaString.class);
+                matchLuaValueType(ranks, type, T_TABLE, LuaTable.class);
+                matchLuaValueType(ranks, type, T_FUNCTION, LuaFunction.class);
+                matchLuaValueType(ranks, type, T_USERDATA, LuaUserdata.class);
+                matchLuaValueType(ranks, type, T_OTHER, LuaThread.class);
+            } else if (type.isArray()) {
+                ranks[T_TABLE] = EXACT;
+            } else if (CompletionStage.class.isAssignableFrom(type)) {
+                // Any value is wrapped in a completed future
+                Arrays.fill(ranks, COERCION);
+                ranks[T_USERDATA] = EXACT;
+                userdataType = type;
+            } else if (type.isInterface() && type.isAnnotationPresent(LuaInterface.class)) {
+                // Implemented in Lua using a proxy
+                ranks[T_FUNCTION] = EXACT;
+                ranks[T_TABLE] = COERCION;
+                ranks[T_USERDATA] = EXACT;
+                userdataType = type;
+            } else {
+                ranks[T_USERDATA] = EXACT;
+                userdataType = type;
+            }
+
+            // Reference types accept nil as null
+            if (!type.isPrimitive() && ranks[T_NIL] == NO_MATCH) {
+                ranks[T_NIL] = COERCION;
+            }
+            mUserdataType = userdataType;
+        }
+
+        private static boolean isIntegerType(Class<?> type) {
+            return type.equals(int.class) || type.equals(Integer.class) ||
+                type.equals(long.class) || type.equals(Long.class) ||
+                type.equals(short.class) || type.equals(Short.class) ||
+                type.equals(byte.class) || type.equals(Byte.class) ||
+                type.equals(char.class) || type.equals(Character.class);
+        }
+
+        private static boolean isFloatingType(Class<?> type) {
+            return type.equals(double.class) || type.equals(Double.class) ||
+                type.equals(float.class) || type.equals(Float.class);
+        }
+
+        private static void matchLuaValueType(byte[] ranks, Class<?> type, int typeCode, Class<?> luaType) {
+            // Also match subclasses (e.g. LuaClosure for functions),
+            // the converter will check the actual class at call time
+            if (type.isAssignableFrom(luaType) || luaType.isAssignableFrom(type)) {
+                ranks[typeCode] = EXACT;
+            }
+        }
+
+        /**
+         * Returns whether some argument of the specified type
+         * can be passed to both this and the other parameter.
+         */
+        public boolean overlaps(Parameter other, int type) {
+            if (mRanks[type] == NO_MATCH || other.mRanks[type] == NO_MATCH) {
+                return false;
+            }
+            if (type == T_USERDATA && mUserdataType != null && other.mUserdataType != null) {
+                return mUserdataType.isAssignableFrom(other.mUserdataType) ||
+                    other.mUserdataType.isAssignableFrom(mUserdataType);
+            }
+            return true;
+        }
+
+        public byte rank(LuaValue value) {
+            int type = typeCode(value);
+            byte rank = mRanks[type];
+            if (rank != NO_MATCH && type == T_USERDATA && mUserdataType != null) {
+                Object instance = value.touserdata();
+                if (instance != null && !mUserdataType.isInstance(instance)) {
+                    return NO_MATCH;
+                }
+            }
+            return rank;
+        }
+
+        public int compareTo(Parameter other, LuaValue value) {
+            int cmp = rank(value) - other.rank(value);
+            if (cmp != 0) {
+                return cmp;
+            }
+            return compareSpecificity(other);
+        }
+
+        public int compareSpecificity(Parameter other) {
+            // If both parameters match equally well, prefer the more
+            // specific type, e.g. a subclass over its superclass
+            if (mType.equals(other.mType) || mType.isPrimitive() || other.mType.isPrimitive()) {
+                return 0;
+            } else if (other.mType.isAssignableFrom(mType)) {
+                return 1;
+            } else if (mType.isAssignableFrom(other.mType)) {
+                return -1;
+            } else {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implements an interface in Lua using a {@link Proxy}. This is only
+ * used for interfaces that do not have an implementation generated
+ * by the annotation processor. Converters are still resolved only
+ * once per interface method, but each call allocates an argument
+ * array, and goes through reflection. Default methods are not
+ * supported, since a proxy has no way to call them.
+ */
+/* package */ final class ReflectiveLuaProxy implements InvocationHandler {
+    private final Factory mFactory;
+    private final LuaValue mTarget;
+    private final LuaValue[] mFunctions;
+    private final LuaValue mSelf;
+
+    private ReflectiveLuaProxy(Factory factory, LuaValue target) {
+        mFactory = factory;
+        mTarget = target;
+        mSelf = LuaProxy.getSelf(target);
+        MethodInfo[] methods = factory.mMethods;
+        mFunctions = new LuaValue[methods.length];
+        for (int i = 0; i < methods.length; ++i) {
+            mFunctions[i] = LuaProxy.getFunction(target, mSelf, methods[i].mName);
+        }
+    }
+
+    public LuaValue getTarget() {
+        return mTarget;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Integer index = mFactory.mIndices.get(method);
+        if (index == null) {
+            // equals(), hashCode() and toString() from Object
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "LuaProxy{" + mTarget + "}";
+            }
+            throw new UnsupportedOperationException(method.toString());
+        }
+
+        MethodInfo info = mFactory.mMethods[index];
+        LuaConverter<Object>[] converters = info.mArgumentConverters;
+        int offset = mSelf == null ? 0 : 1;
+        LuaValue[] luaArgs = new LuaValue[converters.length + offset];
+        if (mSelf != null) {
+            luaArgs[0] = mSelf;
+        }
+        for (int i = 0; i < converters.length; ++i) {
+            luaArgs[i + offset] = converters[i].toLua(args[i]);
+        }
+
+        Varargs result = mFunctions[index].invoke(luaArgs);
+        if (info.mReturnType == void.class) {
+            return null;
+        } else if (info.mReturnConverter == null) {
+            return result;
+        } else {
+            return info.mReturnConverter.toJava(result.arg1());
+        }
+    }
+
+    private static class MethodInfo {
+        private final String mName;
+        private final LuaConverter<Object>[] mArgumentConverters;
+        private final Class<?> mReturnType;
+        private final LuaConverter<?> mReturnConverter;
+
+        @SuppressWarnings("unchecked")
+        public MethodInfo(Method method) {
+            mName = method.getName();
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            mArgumentConverters = (LuaConverter<Object>[])new LuaConverter<?>[parameterTypes.length];
+            for (int i = 0; i < parameterTypes.length; ++i) {
+                mArgumentConverters[i] = LuaProxy.argumentConverter(parameterTypes[i]);
+            }
+            mReturnType = method.getReturnType();
+            if (mReturnType == void.class || mReturnType == Varargs.class) {
+                mReturnConverter = null;
+            } else {
+                mReturnConverter = LuaProxy.returnConverter(mReturnType);
+            }
+        }
+    }
+
+    /* package */ static class Factory implements LuaProxy.ProxyFactory {
+        private final Class<?> mInterface;
+        private final Map<Method, Integer> mIndices;
+        private final MethodInfo[] mMethods;
+
+        public Factory(Class<?> iface) {
+            mInterface = iface;
+            List<MethodInfo> methods = new ArrayList<MethodInfo>();
+            mIndices = new HashMap<Method, Integer>();
+            for (Method method : iface.getMethods()) {
+                // Default and static methods cannot be implemented by a
+                // proxy, and methods from Object are handled by the proxy
+                if (!Modifier.isAbstract(method.getModifiers()) || isObjectMethod(method)) {
+                    continue;
+                }
+                mIndices.put(method, methods.size());
+                methods.add(new MethodInfo(method));
+            }
+            mMethods = methods.toArray(new MethodInfo[methods.size()]);
+        }
+
+        private static boolean isObjectMethod(Method method) {
+            try {
+                Object.class.getMethod(method.getName(), method.getParameterTypes());
+                return true;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public Object create(LuaValue target) {
+            ReflectiveLuaProxy handler = new ReflectiveLuaProxy(this, target);
+            return Proxy.newProxyInstance(mInterface.getClassLoader(), new Class<?>[] {mInterface}, handler);
+        }
+    }
+}
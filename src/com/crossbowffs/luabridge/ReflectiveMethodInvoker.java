@@ -0,0 +1,28 @@
+package com.crossbowffs.luabridge;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Calls a Java method using {@link Method#invoke(Object, Object...)}.
+ * This is the slowest invoker, and is only used when method handles
+ * are not available.
+ */
+/* package */ class ReflectiveMethodInvoker extends JavaMethodInvoker {
+    private final Method mJavaMethod;
+
+    public ReflectiveMethodInvoker(Method method) {
+        mJavaMethod = method;
+    }
+
+    @Override
+    public Object invoke(Object thisObject, Object[] parameters) throws Throwable {
+        try {
+            return mJavaMethod.invoke(thisObject, parameters);
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
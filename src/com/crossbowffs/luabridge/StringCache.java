@@ -0,0 +1,139 @@
+package com.crossbowffs.luabridge;
+
+import org.luaj.vm2.LuaString;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe, fixed-size cache of conversions between short Java
+ * strings and {@link LuaString}s, so that strings which cross the
+ * bridge repeatedly (e.g. table keys and identifiers) are only
+ * encoded or decoded once.
+ *
+ * <p>
+ * Each direction is a direct-mapped table indexed by the hash code
+ * of the string, which both {@link String} and {@link LuaString}
+ * already cache. Lookups are lock-free, and a colliding string simply
+ * replaces the previous entry. Entries are immutable, so a racing
+ * thread either sees a complete entry or none at all.
+ */
+/* package */ final class StringCache {
+    /**
+     * Strings longer than this (in characters for Java strings,
+     * in bytes for Lua strings) are not cached.
+     */
+    public static final int MAX_LENGTH = 64;
+
+    private final Entry[] mJavaEntries;
+    private final Entry[] mLuaEntries;
+    private final int mMask;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    public StringCache(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        mJavaEntries = new Entry[capacity];
+        mLuaEntries = new Entry[capacity];
+        mMask = capacity - 1;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    public String toJava(LuaString luaString) {
+        if (luaString.m_length > MAX_LENGTH) {
+            return luaString.tojstring();
+        }
+
+        int index = spread(luaString.hashCode()) & mMask;
+        Entry entry = mLuaEntries[index];
+        if (entry != null && entry.mLuaString.raweq(luaString)) {
+            recordHit();
+            return entry.mJavaString;
+        }
+
+        recordMiss();
+        String javaString = luaString.tojstring();
+        if (!luaString.isValidUtf8()) {
+            // Decoding is lossy, so the Java string would not
+            // convert back to the same bytes; don't cache it
+            return javaString;
+        }
+
+        // Don't keep the original around, since it may be a view into
+        // a larger array (e.g. a buffer read in zero-copy mode)
+        byte[] bytes = new byte[luaString.m_length];
+        luaString.copyInto(0, bytes, 0, bytes.length);
+        store(new Entry(javaString, LuaString.valueUsing(bytes)));
+        return javaString;
+    }
+
+    public LuaString toLua(String javaString) {
+        if (javaString.length() > MAX_LENGTH) {
+            return LuaString.valueOf(javaString);
+        }
+
+        int index = spread(javaString.hashCode()) & mMask;
+        Entry entry = mJavaEntries[index];
+        if (entry != null && entry.mJavaString.equals(javaString)) {
+            recordHit();
+            return entry.mLuaString;
+        }
+
+        recordMiss();
+        LuaString luaString = LuaString.valueOf(javaString);
+        store(new Entry(javaString, luaString));
+        return luaString;
+    }
+
+    private void store(Entry entry) {
+        // Both directions share the entry, so that a string
+        // converted one way is also cached the other way
+        mJavaEntries[spread(entry.mJavaString.hashCode()) & mMask] = entry;
+        mLuaEntries[spread(entry.mLuaString.hashCode()) & mMask] = entry;
+    }
+
+    private void recordHit() {
+        // Like method metrics, counting is skipped while metrics are
+        // disabled, to avoid contending on the counter across threads
+        if (LuaMetrics.isEnabled()) {
+            mHits.incrementAndGet();
+        }
+    }
+
+    private void recordMiss() {
+        if (LuaMetrics.isEnabled()) {
+            mMisses.incrementAndGet();
+        }
+    }
+
+    public void resetStats() {
+        mHits.set(0);
+        mMisses.set(0);
+    }
+
+    public StringCacheStats getStats() {
+        int size = 0;
+        for (Entry entry : mJavaEntries) {
+            if (entry != null) {
+                size++;
+            }
+        }
+        return new StringCacheStats(getCapacity(), size, mHits.get(), mMisses.get());
+    }
+
+    private static class Entry {
+        private final String mJavaString;
+        private final LuaString mLuaString;
+
+        public Entry(String javaString, LuaString luaString) {
+            mJavaString = javaString;
+            mLuaString = luaString;
+        }
+    }
+}
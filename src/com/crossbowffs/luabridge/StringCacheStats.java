@@ -0,0 +1,67 @@
+package com.crossbowffs.luabridge;
+
+/**
+ * A snapshot of the statistics of the cache used to convert strings
+ * between Lua and Java. Obtain an instance using
+ * {@link LuaConverters#getStringCacheStats()}. Hits and misses are
+ * only counted while {@link LuaMetrics} are enabled.
+ */
+public final class StringCacheStats {
+    private final int mCapacity;
+    private final int mSize;
+    private final long mHits;
+    private final long mMisses;
+
+    /* package */ StringCacheStats(int capacity, int size, long hits, long misses) {
+        mCapacity = capacity;
+        mSize = size;
+        mHits = hits;
+        mMisses = misses;
+    }
+
+    /**
+     * Returns the maximum number of strings that can be cached,
+     * or 0 if the cache is disabled.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of strings that are currently cached.
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of conversions that were served from the cache.
+     */
+    public long getHits() {
+        return mHits;
+    }
+
+    /**
+     * Returns the number of conversions of cacheable strings that
+     * were not found in the cache. Strings that are too long to be
+     * cached are not counted.
+     */
+    public long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the fraction of lookups that were served from the
+     * cache, or 0 if there were no lookups.
+     */
+    public double getHitRate() {
+        long lookups = mHits + mMisses;
+        return lookups == 0 ? 0 : (double)mHits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "StringCacheStats{capacity=" + mCapacity + ", size=" + mSize +
+            ", hits=" + mHits + ", misses=" + mMisses + "}";
+    }
+}
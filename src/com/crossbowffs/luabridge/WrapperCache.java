@@ -0,0 +1,118 @@
+package com.crossbowffs.luabridge;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Caches {@link ExposedJavaClass} wrappers by the identity of the
+ * object they wrap. Only the wrappers are weakly referenced - since
+ * a wrapper holds a strong reference to its object, the object is
+ * guaranteed to be alive as long as the wrapper is. Once Lua stops
+ * referencing a wrapper, it can be collected and is removed from
+ * the cache.
+ *
+ * <p>
+ * The cache is split into independently locked stripes, and looking
+ * up an existing wrapper does not allocate any memory.
+ */
+/* package */ class WrapperCache {
+    private static final int STRIPE_COUNT = 16;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Stripe[] mStripes;
+
+    public WrapperCache() {
+        mStripes = new Stripe[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; ++i) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    private static int hash(Object obj) {
+        // Spread the bits, since identity hash codes tend to
+        // have poor distribution in the lower bits
+        int h = System.identityHashCode(obj);
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the wrapper for the specified object, creating
+     * a new one if there is no live wrapper for it yet.
+     */
+    public ExposedJavaClass get(Object obj) {
+        int hash = hash(obj);
+        return mStripes[hash & (STRIPE_COUNT - 1)].get(obj, hash);
+    }
+
+    private static class WrapperRef extends WeakReference<ExposedJavaClass> {
+        private final int mHash;
+        private WrapperRef mNext;
+
+        public WrapperRef(ExposedJavaClass wrapper, int hash, WrapperRef next, ReferenceQueue<ExposedJavaClass> queue) {
+            super(wrapper, queue);
+            mHash = hash;
+            mNext = next;
+        }
+    }
+
+    private static class Stripe {
+        private final ReferenceQueue<ExposedJavaClass> mQueue = new ReferenceQueue<ExposedJavaClass>();
+        private WrapperRef[] mBuckets = new WrapperRef[INITIAL_CAPACITY];
+        private int mSize;
+
+        public synchronized ExposedJavaClass get(Object obj, int hash) {
+            expungeStaleEntries();
+
+            // The lower bits were used to select the stripe
+            int index = (hash >>> 4) & (mBuckets.length - 1);
+            for (WrapperRef ref = mBuckets[index]; ref != null; ref = ref.mNext) {
+                ExposedJavaClass wrapper = ref.get();
+                if (wrapper != null && wrapper.userdata() == obj) {
+                    return wrapper;
+                }
+            }
+
+            ExposedJavaClass wrapper = new ExposedJavaClass(obj);
+            mBuckets[index] = new WrapperRef(wrapper, hash, mBuckets[index], mQueue);
+            if (++mSize > mBuckets.length * 3 / 4) {
+                resize();
+            }
+            return wrapper;
+        }
+
+        private void expungeStaleEntries() {
+            WrapperRef stale;
+            while ((stale = (WrapperRef)mQueue.poll()) != null) {
+                int index = (stale.mHash >>> 4) & (mBuckets.length - 1);
+                WrapperRef prev = null;
+                for (WrapperRef ref = mBuckets[index]; ref != null; prev = ref, ref = ref.mNext) {
+                    if (ref == stale) {
+                        if (prev == null) {
+                            mBuckets[index] = ref.mNext;
+                        } else {
+                            prev.mNext = ref.mNext;
+                        }
+                        mSize--;
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void resize() {
+            WrapperRef[] oldBuckets = mBuckets;
+            WrapperRef[] newBuckets = new WrapperRef[oldBuckets.length * 2];
+            for (WrapperRef head : oldBuckets) {
+                WrapperRef ref = head;
+                while (ref != null) {
+                    WrapperRef next = ref.mNext;
+                    int index = (ref.mHash >>> 4) & (newBuckets.length - 1);
+                    ref.mNext = newBuckets[index];
+                    newBuckets[index] = ref;
+                    ref = next;
+                }
+            }
+            mBuckets = newBuckets;
+        }
+    }
+}
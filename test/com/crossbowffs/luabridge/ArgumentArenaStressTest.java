@@ -0,0 +1,114 @@
+package com.crossbowffs.luabridge;
+
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class ArgumentArenaStressTest {
+    private static final int THREAD_COUNT = 8;
+    private static final int ITERATIONS = 2000;
+
+    // Each call checks its arguments against each other, so that arguments
+    // overwritten by another thread or a nested call are detected in Java,
+    // and returns a value that the script checks as well
+    private static final String SCRIPT =
+        "local calc, seed = ...\n" +
+        "local function nested(depth, a)\n" +
+        "    if depth == 0 then return 0 end\n" +
+        "    return calc:mix(a, a * 2, a * 3, depth - 1, nested)\n" +
+        "end\n" +
+        "local sum = 0\n" +
+        "for i = 1, " + ITERATIONS + " do\n" +
+        "    local a = seed * 100000 + i\n" +
+        "    local depth = i % 4\n" +
+        "    local expected = 6 * a * (depth + 1)\n" +
+        "    local result = calc:mix(a, a * 2, a * 3, depth, nested)\n" +
+        "    if result ~= expected then\n" +
+        "        error('expected ' .. expected .. ', got ' .. tostring(result))\n" +
+        "    end\n" +
+        "    -- Throw from within the Java method, at a random depth\n" +
+        "    local ok = pcall(calc.mix, calc, -a, a * 2, a * 3, depth, nested)\n" +
+        "    assert(not ok)\n" +
+        "    -- Fail converting an argument after some were already converted\n" +
+        "    ok = pcall(calc.mix, calc, a, a * 2, 'bad', depth, nested)\n" +
+        "    assert(not ok)\n" +
+        "    sum = sum + result\n" +
+        "end\n" +
+        "return sum\n";
+
+    // Private, so that no binding is generated for it, and calls go
+    // through ExposedJavaMethod. The method takes 6 arguments from Lua
+    // (including self), so it uses the generic path with the arena.
+    private static class Calculator extends ExposedJavaClass {
+        @ExposeToLua
+        public int mix(int a, int b, int c, int depth, LuaValue callback) {
+            if (a < 0) {
+                if (depth == 0) {
+                    throw new IllegalArgumentException("negative");
+                }
+                return callback.call(LuaValue.valueOf(depth), LuaValue.valueOf(a)).toint();
+            }
+            if (b != a * 2 || c != a * 3) {
+                throw new AssertionError("Arguments corrupted: " + a + ", " + b + ", " + c);
+            }
+            int nested = callback.call(LuaValue.valueOf(depth), LuaValue.valueOf(a)).toint();
+            return a + b + c + nested;
+        }
+    }
+
+    @Test
+    public void concurrentReentrantCalls() throws Exception {
+        final Calculator calculator = new Calculator();
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < THREAD_COUNT; ++i) {
+                final int seed = i;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        Globals globals = JsePlatform.standardGlobals();
+                        LuaValue chunk = globals.load(SCRIPT, "stress");
+                        chunk.call(calculator, LuaValue.valueOf(seed));
+                        // Every array must have been released, even
+                        // by calls that threw an exception
+                        return ArgumentArena.get().getDepth();
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(0, (int)result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void nestedArraysAreDistinct() {
+        ArgumentArena arena = ArgumentArena.get();
+        Object[] outer = arena.acquire(5);
+        outer[0] = "outer";
+        Object[] inner = arena.acquire(5);
+        try {
+            assertEquals(null, inner[0]);
+            assertEquals(2, arena.getDepth());
+        } finally {
+            arena.release(inner);
+        }
+        assertEquals("outer", outer[0]);
+        arena.release(outer);
+        assertEquals(0, arena.getDepth());
+        assertEquals(null, outer[0]);
+    }
+}
@@ -0,0 +1,67 @@
+package com.crossbowffs.luabridge;
+
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class JavaCollectionViewTest {
+    private static void run(String script, String name, LuaValue view) {
+        Globals globals = JsePlatform.standardGlobals();
+        globals.set(name, view);
+        globals.load(script, "script").call();
+    }
+
+    @Test
+    public void typedViewsConvertToElementType() {
+        List<Integer> list = new ArrayList<Integer>(Arrays.asList(1, 2));
+        run("list[#list + 1] = 3; list[1] = 10", "list", JavaCollectionView.of(list, Integer.class));
+        assertEquals(Arrays.asList(10, 2, 3), list);
+
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        run("map.count = 5", "map", JavaCollectionView.of(map, String.class, Integer.class));
+        assertEquals(5, (int)map.get("count"));
+    }
+
+    @Test
+    public void untypedViewsUseIntegersForIntegralNumbers() {
+        List<Object> list = new ArrayList<Object>();
+        run("list[1] = 4; list[2] = 1.5; list[3] = 'x'", "list", JavaCollectionView.of(list));
+        assertEquals(Arrays.<Object>asList(4, 1.5, "x"), list);
+    }
+
+    @Test(expected = LuaError.class)
+    public void typedViewsRejectWrongTypes() {
+        List<Integer> list = new ArrayList<Integer>(Arrays.asList(1));
+        run("list[1] = 'x'", "list", JavaCollectionView.of(list, Integer.class));
+    }
+
+    @Test(expected = LuaError.class)
+    public void arrayViewsRejectWrongTypes() {
+        run("array[1] = 'x'", "array", JavaCollectionView.ofArray(new Thread[1]));
+    }
+
+    @Test(expected = LuaError.class)
+    public void tableListsCheckElementType() {
+        LuaTable table = new LuaTable();
+        table.set(1, LuaValue.valueOf("x"));
+        LuaUtils.asList(table, Thread.class).get(0);
+    }
+
+    @Test
+    public void tableListsAcceptAnythingForObject() {
+        LuaTable table = new LuaTable();
+        table.set(1, LuaValue.valueOf("x"));
+        assertEquals("x", LuaUtils.asList(table, Object.class).get(0));
+    }
+}
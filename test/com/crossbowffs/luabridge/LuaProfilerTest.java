@@ -0,0 +1,42 @@
+package com.crossbowffs.luabridge;
+
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LuaProfilerTest {
+    private static void assertScriptError(Globals globals, String script, String message) {
+        LuaProfiler.install(globals);
+        try {
+            globals.load(script, "script").call();
+            fail();
+        } catch (LuaError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void errorsSurviveWithoutDebugLib() {
+        assertScriptError(JsePlatform.standardGlobals(), "local x = nil; return x.y", "index");
+    }
+
+    @Test
+    public void errorsSurviveWithDebugLib() {
+        assertScriptError(JsePlatform.debugGlobals(), "error('boom')", "boom");
+    }
+
+    @Test
+    public void pcallKeepsOriginalMessage() {
+        Globals globals = JsePlatform.standardGlobals();
+        LuaProfiler.install(globals);
+        String script = "local ok, e = pcall(function() error('boom') end); return e";
+        String message = globals.load(script, "script").call().tojstring();
+        assertTrue(message, message.contains("boom"));
+        assertEquals(-1, message.indexOf("NullPointerException"));
+    }
+}
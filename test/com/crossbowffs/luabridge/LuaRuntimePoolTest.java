@@ -0,0 +1,81 @@
+package com.crossbowffs.luabridge;
+
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LuaRuntimePoolTest {
+    @Test
+    public void doubleReleaseIsRejected() throws Exception {
+        LuaRuntimePool pool = new LuaRuntimePool(2);
+        Globals globals = pool.borrow();
+        pool.release(globals);
+        try {
+            pool.release(globals);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(1, pool.idleCount());
+
+        // Both Globals must be handed out exactly once
+        Globals a = pool.borrow();
+        Globals b = pool.borrow();
+        assertNotSame(a, b);
+    }
+
+    @Test
+    public void idleGlobalsCannotBeInvalidated() throws Exception {
+        LuaRuntimePool pool = new LuaRuntimePool(1);
+        pool.warmUp();
+        Globals globals = pool.borrow();
+        pool.release(globals);
+        try {
+            pool.invalidate(globals);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertSame(globals, pool.borrow());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void foreignGlobalsAreRejected() {
+        new LuaRuntimePool(1).release(new Globals());
+    }
+
+    @Test
+    public void globalsAreResetOnRelease() throws Exception {
+        LuaRuntimePool pool = new LuaRuntimePool(1);
+        pool.bind("x", 1);
+        pool.execute("x = 2; y = 3", "set", LuaValue.NONE);
+        LuaValue result = pool.execute("return x, y", "get", LuaValue.NONE).arg1();
+        assertEquals(1, result.toint());
+        assertTrue(pool.execute("return y", "get", LuaValue.NONE).arg1().isnil());
+    }
+
+    @Test
+    public void sameScriptKeepsEachChunkName() throws Exception {
+        LuaRuntimePool pool = new LuaRuntimePool(1);
+        String script = "error('oops')";
+        assertTrue(errorOf(pool, script, "first").contains("first"));
+        assertTrue(errorOf(pool, script, "second").contains("second"));
+        assertSame(pool.compile(script, "first"), pool.compile(script, "first"));
+    }
+
+    private static String errorOf(LuaRuntimePool pool, String script, String chunkName) throws Exception {
+        try {
+            pool.execute(script, chunkName, LuaValue.NONE);
+            throw new AssertionError("Script did not fail");
+        } catch (LuaError e) {
+            return e.getMessage();
+        }
+    }
+}
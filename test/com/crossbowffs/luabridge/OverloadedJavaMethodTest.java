@@ -0,0 +1,69 @@
+package com.crossbowffs.luabridge;
+
+import org.junit.Test;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.ZeroArgFunction;
+
+import static org.junit.Assert.assertEquals;
+
+public class OverloadedJavaMethodTest {
+    private static OverloadedJavaMethod overloads(Class<?>[]... signatures) {
+        OverloadedJavaMethod method = new OverloadedJavaMethod("f");
+        for (int i = 0; i < signatures.length; ++i) {
+            method.addOverload(constant(i), true, signatures[i]);
+        }
+        return method;
+    }
+
+    private static ZeroArgFunction constant(final int value) {
+        return new ZeroArgFunction() {
+            @Override
+            public LuaValue call() {
+                return LuaValue.valueOf(value);
+            }
+        };
+    }
+
+    private static Class<?>[] sig(Class<?>... types) {
+        return types;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIdenticalRanks() {
+        overloads(sig(int.class), sig(long.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPrimitiveAndBoxed() {
+        overloads(sig(int.class), sig(Integer.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTiesForSomeArguments() {
+        // Both need one widening conversion for two integers
+        overloads(sig(int.class, double.class), sig(double.class, int.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTiesForCoercedArguments() {
+        // Two floats are coerced equally well to ints and strings
+        overloads(sig(int.class, int.class), sig(String.class, String.class));
+    }
+
+    @Test
+    public void acceptsDistinguishableOverloads() {
+        OverloadedJavaMethod method = overloads(
+            sig(int.class, int.class),
+            sig(double.class, double.class),
+            sig(String.class));
+        assertEquals(0, method.call(LuaValue.valueOf(1), LuaValue.valueOf(2)).toint());
+        assertEquals(1, method.call(LuaValue.valueOf(1.5), LuaValue.valueOf(2)).toint());
+        assertEquals(2, method.call(LuaValue.valueOf("x")).toint());
+    }
+
+    @Test
+    public void acceptsSubclassOverloads() {
+        OverloadedJavaMethod method = overloads(sig(CharSequence.class), sig(String.class));
+        assertEquals(1, method.call(LuaValue.valueOf("x")).toint());
+    }
+}